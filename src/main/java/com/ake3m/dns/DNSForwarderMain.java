@@ -1,6 +1,9 @@
 package com.ake3m.dns;
 
 import module java.base;
+import com.ake3m.dns.cache.CachingForwarder;
+import com.ake3m.dns.cache.ResponseCache;
+import com.ake3m.dns.cache.WireCache;
 import com.ake3m.dns.converter.DNSHeaderEntityConverter;
 import com.ake3m.dns.converter.DNSQuestionEntityConverter;
 import com.ake3m.dns.converter.DNSRecordEntityConverter;
@@ -8,13 +11,25 @@ import com.ake3m.dns.handling.Converter;
 import com.ake3m.dns.handling.DNSClient;
 import com.ake3m.dns.handling.DNSHandler;
 import com.ake3m.dns.handling.DNSServer;
+import com.ake3m.dns.handling.ExecutionMode;
+import com.ake3m.dns.handling.transport.PooledTcpTransport;
+import com.ake3m.dns.handling.upstream.HedgePolicy;
+import com.ake3m.dns.handling.interceptor.BlocklistInterceptor;
 import com.ake3m.dns.handling.interceptor.RequestInterceptor;
 import com.ake3m.dns.handling.interceptor.ResponseInterceptor;
+import com.ake3m.dns.handling.routing.Route;
+import com.ake3m.dns.handling.routing.RoutingForwarder;
+import com.ake3m.dns.handling.routing.UpstreamPools;
+import com.ake3m.dns.policy.DomainTrie;
+import com.ake3m.dns.policy.ReloadingPolicy;
+import com.ake3m.dns.policy.SuffixTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class DNSForwarderMain {
     private static final Logger log = LoggerFactory.getLogger(DNSForwarderMain.class);
+    private static final Duration HEDGE_MIN_DELAY = Duration.ofMillis(10);
+    private static final double HEDGE_BUDGET = 0.05;
 
     public static void main(String[] args) throws IOException {
 
@@ -27,37 +42,114 @@ public class DNSForwarderMain {
                 new DNSQuestionEntityConverter(),
                 new DNSRecordEntityConverter());
 
-        DNSClient dnsClient = new DNSClient(arguments.resolverIp(), arguments.resolverPort(), converter);
+        DNSClient.Mode clientMode = arguments.executionMode() == ExecutionMode.VIRTUAL_THREAD
+                ? DNSClient.Mode.VIRTUAL_THREAD
+                : arguments.clientMode();
+        HedgePolicy hedgePolicy = arguments.hedgePercentile() > 0
+                ? new HedgePolicy(arguments.hedgePercentile(), HEDGE_MIN_DELAY, HEDGE_BUDGET)
+                : null;
+        DNSClient dnsClient = new DNSClient(arguments.upstreams(), converter, clientMode, hedgePolicy, arguments.deadline(), arguments.tcpKeepalive());
+        DNSHandler.Forwarder forwarder = arguments.cacheSize() > 0
+                ? new CachingForwarder(dnsClient, new ResponseCache(arguments.cacheSize()), new WireCache(arguments.cacheSize()))
+                : dnsClient;
+        if (arguments.routes() != null) {
+            UpstreamPools pools = new UpstreamPools(converter, arguments.tcpKeepalive());
+            ReloadingPolicy<SuffixTable<DNSHandler.Forwarder>> routes =
+                    ReloadingPolicy.watch(arguments.routes(), file -> pools.build(Route.load(file)), SuffixTable::size);
+            forwarder = new RoutingForwarder(routes, forwarder);
+        }
         List<DNSHandler.Interceptor> requestInterceptors = List.of(new RequestInterceptor());
         List<DNSHandler.Interceptor> responseInterceptors = List.of(new ResponseInterceptor());
-        DNSHandler handler = new DNSHandler(dnsClient, requestInterceptors, responseInterceptors);
-        DNSServer dnsServer = new DNSServer(arguments.serverPort(), handler, converter);
+        List<DNSHandler.Stage> stages = arguments.blocklist() != null
+                ? List.of(new BlocklistInterceptor(ReloadingPolicy.watch(arguments.blocklist(), DomainTrie::open, DomainTrie::size), arguments.blockedAnswer()))
+                : List.of();
+        DNSHandler handler = new DNSHandler(forwarder, requestInterceptors, responseInterceptors, stages);
+        DNSServer dnsServer = new DNSServer(
+                arguments.serverPort(),
+                handler,
+                converter,
+                DNSServer.Engine.CHANNEL,
+                arguments.serverWorkers(),
+                arguments.executionMode(),
+                arguments.tcpConnections() > 0
+                        ? new DNSServer.Tcp(DNSServer.Tcp.DEFAULT.idleTimeout(), arguments.tcpConnections(), DNSServer.Tcp.DEFAULT.maxInFlight(), DNSServer.Tcp.DEFAULT.writeTimeout())
+                        : null);
 
         dnsServer.start();
     }
 
-    record Arguments(String resolverIp, int resolverPort, int serverPort) {
+    record Arguments(List<InetSocketAddress> upstreams, int serverPort, int serverWorkers, DNSClient.Mode clientMode, ExecutionMode executionMode, int cacheSize, double hedgePercentile, Duration deadline, int tcpConnections, Duration tcpKeepalive, Path blocklist, BlocklistInterceptor.Answer blockedAnswer, Path routes) {
         public static Arguments parse(String[] args) {
-            String resolverIp = "8.8.8.8";
-            int resolverPort = 53;
+            List<InetSocketAddress> upstreams = List.of(new InetSocketAddress("8.8.8.8", 53));
             int serverPort = 2053;
+            int serverWorkers = Runtime.getRuntime().availableProcessors();
+            DNSClient.Mode clientMode = DNSClient.Mode.MULTIPLEXED;
+            ExecutionMode executionMode = ExecutionMode.ASYNC;
+            int cacheSize = 10_000;
+            double hedgePercentile = 0;
+            Duration deadline = DNSClient.DEFAULT_DEADLINE;
+            int tcpConnections = DNSServer.Tcp.DEFAULT.maxConnections();
+            Duration tcpKeepalive = PooledTcpTransport.DEFAULT_KEEPALIVE;
+            Path blocklist = null;
+            BlocklistInterceptor.Answer blockedAnswer = BlocklistInterceptor.Answer.NXDOMAIN;
+            Path routes = null;
 
             for (int i = 0; i < args.length; i++) {
                 String part = args[i];
                 if (part.equalsIgnoreCase("u")) {
-                    var value = args[i + 1].split(":");
-                    resolverIp = value[0].trim();
-                    if (value.length > 1) {
-                        resolverPort = Integer.parseInt(value[1].trim());
-                    }
+                    upstreams = Route.upstreams(args[i + 1]);
                 }
 
                 if (part.equalsIgnoreCase("p")) {
                     serverPort = Integer.parseInt(args[i + 1]);
                 }
+
+                if (part.equalsIgnoreCase("w")) {
+                    serverWorkers = Integer.parseInt(args[i + 1]);
+                }
+
+                if (part.equalsIgnoreCase("m")) {
+                    clientMode = DNSClient.Mode.valueOf(args[i + 1].trim().toUpperCase());
+                }
+
+                if (part.equalsIgnoreCase("x")) {
+                    executionMode = ExecutionMode.valueOf(args[i + 1].trim().toUpperCase());
+                }
+
+                if (part.equalsIgnoreCase("c")) {
+                    cacheSize = Integer.parseInt(args[i + 1]);
+                }
+
+                if (part.equalsIgnoreCase("h")) {
+                    hedgePercentile = Double.parseDouble(args[i + 1]);
+                }
+
+                if (part.equalsIgnoreCase("t")) {
+                    deadline = Duration.ofMillis(Long.parseLong(args[i + 1]));
+                }
+
+                if (part.equalsIgnoreCase("l")) {
+                    tcpConnections = Integer.parseInt(args[i + 1]);
+                }
+
+                if (part.equalsIgnoreCase("k")) {
+                    tcpKeepalive = Duration.ofSeconds(Long.parseLong(args[i + 1]));
+                }
+
+                if (part.equalsIgnoreCase("b")) {
+                    blocklist = Path.of(args[i + 1]);
+                }
+
+                if (part.equalsIgnoreCase("a")) {
+                    blockedAnswer = BlocklistInterceptor.Answer.valueOf(args[i + 1].trim().toUpperCase());
+                }
+
+                if (part.equalsIgnoreCase("r")) {
+                    routes = Path.of(args[i + 1]);
+                }
             }
 
-            return new Arguments(resolverIp, resolverPort, serverPort);
+            return new Arguments(upstreams, serverPort, serverWorkers, clientMode, executionMode, cacheSize, hedgePercentile, deadline, tcpConnections, tcpKeepalive, blocklist, blockedAnswer, routes);
         }
     }
 }
\ No newline at end of file
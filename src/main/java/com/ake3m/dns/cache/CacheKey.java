@@ -0,0 +1,35 @@
+package com.ake3m.dns.cache;
+
+import com.ake3m.dns.model.DNSMessage;
+import com.ake3m.dns.model.DNSQuestion;
+import com.ake3m.dns.model.Edns;
+import com.ake3m.dns.model.Name;
+
+/**
+ * Cache key for a question. Names are compared case-insensitively, as required by
+ * <a href="https://www.rfc-editor.org/rfc/rfc4343">RFC 4343</a>, which {@link Name} does without lower-casing. Types
+ * and classes are keyed by their numeric codes so questions for unknown types do not share an entry. The CD header bit
+ * and the DO bit of the OPT record are part of the key, since they decide whether the upstream returns DNSSEC records
+ * and answers that failed validation.
+ */
+public record CacheKey(Name qname, int qtype, int qclass, int cd, boolean dnssecOk) {
+
+    public static CacheKey of(DNSQuestion question) {
+        return new CacheKey(question.name(), question.typeCode(), question.classCode(), 0, false);
+    }
+
+    /**
+     * Returns the key of a request with exactly one question.
+     */
+    public static CacheKey of(DNSMessage request) {
+        DNSQuestion question = request.questions()[0];
+        Edns edns = Edns.of(request);
+        return new CacheKey(
+                question.name(),
+                question.typeCode(),
+                question.classCode(),
+                request.header().z() & 1,
+                edns != null && edns.dnssecOk()
+        );
+    }
+}
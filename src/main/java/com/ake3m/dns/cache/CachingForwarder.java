@@ -0,0 +1,79 @@
+package com.ake3m.dns.cache;
+
+import com.ake3m.dns.handling.DNSError;
+import com.ake3m.dns.handling.DNSHandler;
+import com.ake3m.dns.handling.Either;
+import com.ake3m.dns.model.DNSMessage;
+
+import java.util.concurrent.CompletableFuture;
+
+import static com.ake3m.dns.handling.Either.right;
+
+/**
+ * Answers repeat questions from a {@link ResponseCache} and only forwards misses upstream. Raw queries are answered
+ * from a {@link WireCache} the same way, when one is given. Sitting at the end of the handler's chain, the caches only
+ * see what the upstream answered, never what a stage such as the blocklist answered itself, and every query passes the
+ * stages before it gets here.
+ */
+public class CachingForwarder implements DNSHandler.Forwarder {
+    private final DNSHandler.Forwarder delegate;
+    private final ResponseCache cache;
+    private final WireCache wireCache;
+
+    public CachingForwarder(DNSHandler.Forwarder delegate, ResponseCache cache) {
+        this(delegate, cache, null);
+    }
+
+    /**
+     * @param wireCache when not {@code null}, caches the responses to raw queries
+     */
+    public CachingForwarder(DNSHandler.Forwarder delegate, ResponseCache cache, WireCache wireCache) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.wireCache = wireCache;
+    }
+
+    @Override
+    public CompletableFuture<Either<DNSError, DNSMessage>> forward(DNSMessage request) {
+        if (request.questions().length != 1 || request.header().opcode() != 0) {
+            return delegate.forward(request);
+        }
+
+        CacheKey key = CacheKey.of(request);
+        DNSMessage cached = cache.get(key, request);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(right(cached));
+        }
+
+        return delegate.forward(request).thenApply(response -> {
+            if (response instanceof Either.Right<DNSError, DNSMessage> success) {
+                cache.put(key, success.data());
+            }
+            return response;
+        });
+    }
+
+    @Override
+    public boolean forwardsRaw() {
+        return delegate.forwardsRaw();
+    }
+
+    @Override
+    public CompletableFuture<Either<DNSError, byte[]>> forwardRaw(byte[] query) {
+        if (wireCache == null) {
+            return delegate.forwardRaw(query);
+        }
+
+        byte[] cached = wireCache.lookup(query, query.length);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(right(cached));
+        }
+
+        return delegate.forwardRaw(query).thenApply(response -> {
+            if (response instanceof Either.Right<DNSError, byte[]> success) {
+                wireCache.store(query, query.length, success.data());
+            }
+            return response;
+        });
+    }
+}
@@ -0,0 +1,125 @@
+package com.ake3m.dns.cache;
+
+import com.ake3m.dns.model.DNSMessage;
+import com.ake3m.dns.model.DNSRecord;
+import com.ake3m.dns.model.QType;
+import com.ake3m.dns.model.Rcode;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded cache of upstream responses. An entry lives for the smallest TTL in its answer section and is returned with
+ * every TTL reduced by the time it has spent in the cache. Negative answers (NXDOMAIN, and NOERROR without answers)
+ * live for the SOA TTL or SOA MINIMUM of the authority section, whichever is smaller, as described in
+ * <a href="https://www.rfc-editor.org/rfc/rfc2308#section-5">RFC 2308 5. Caching Negative Answers</a>.
+ */
+public class ResponseCache {
+    public static final long MAX_TTL_SECONDS = TimeUnit.DAYS.toSeconds(1);
+    public static final long MAX_NEGATIVE_TTL_SECONDS = TimeUnit.HOURS.toSeconds(3);
+
+    private final SegmentedLruMap<CacheKey, Entry> entries;
+    private final LongSupplier nanoClock;
+
+    public ResponseCache(int maxEntries) {
+        this(maxEntries, System::nanoTime);
+    }
+
+    public ResponseCache(int maxEntries, LongSupplier nanoClock) {
+        this.entries = new SegmentedLruMap<>(maxEntries);
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Returns the cached response re-addressed to the request's ID and question, so the client gets back its own
+     * spelling of the name, with decremented TTLs, or {@code null} on a miss.
+     */
+    public DNSMessage get(CacheKey key, DNSMessage request) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        long now = nanoClock.getAsLong();
+        if (now - entry.expiresAt() >= 0) {
+            entries.remove(key, entry);
+            return null;
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toSeconds(now - entry.storedAt());
+        DNSMessage message = entry.message();
+        return new DNSMessage(
+                message.header().withId(request.header().id()),
+                message.questions().length == request.questions().length ? request.questions() : message.questions(),
+                age(message.answers(), elapsed),
+                age(message.authorityRecords(), elapsed),
+                age(message.additionalRecords(), elapsed)
+        );
+    }
+
+    /**
+     * Stores a response for as long as its shortest-lived answer, or for its negative TTL. Errors, negative answers
+     * without an SOA, zero TTLs and truncated responses are not cached.
+     */
+    public void put(CacheKey key, DNSMessage response) {
+        long ttl = ttlOf(response);
+        if (ttl <= 0) {
+            return;
+        }
+
+        long now = nanoClock.getAsLong();
+        entries.put(key, new Entry(response, now, now + TimeUnit.SECONDS.toNanos(ttl)));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static long ttlOf(DNSMessage response) {
+        if (response.header().tc() != 0) {
+            return 0;
+        }
+        Rcode rcode = response.header().rcode();
+        if (rcode == Rcode.NOERROR && response.answers().length > 0) {
+            long ttl = MAX_TTL_SECONDS;
+            for (DNSRecord answer : response.answers()) {
+                ttl = Math.min(ttl, answer.ttl());
+            }
+            return ttl;
+        }
+
+        if (rcode == Rcode.NOERROR || rcode == Rcode.NAMEERR) {
+            return negativeTtlOf(response);
+        }
+        return 0;
+    }
+
+    private static long negativeTtlOf(DNSMessage response) {
+        for (DNSRecord authority : response.authorityRecords()) {
+            if (authority.qtype() == QType.SOA) {
+                String rdata = authority.rdata().trim();
+                long minimum = Long.parseLong(rdata.substring(rdata.lastIndexOf(' ') + 1));
+                return Math.min(MAX_NEGATIVE_TTL_SECONDS, Math.min(authority.ttl(), minimum));
+            }
+        }
+        return 0;
+    }
+
+    private static DNSRecord[] age(DNSRecord[] records, long elapsed) {
+        if (elapsed == 0 || records.length == 0) {
+            return records;
+        }
+
+        DNSRecord[] aged = new DNSRecord[records.length];
+        for (int i = 0; i < records.length; i++) {
+            // the TTL field of an OPT record carries EDNS flags
+            aged[i] = records[i].qtype() == QType.OPT
+                    ? records[i]
+                    : records[i].withTtl(Math.max(0, records[i].ttl() - elapsed));
+        }
+        return aged;
+    }
+
+    private record Entry(DNSMessage message, long storedAt, long expiresAt) {
+    }
+}
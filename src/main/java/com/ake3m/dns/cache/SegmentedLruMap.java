@@ -0,0 +1,80 @@
+package com.ake3m.dns.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded map split into segments, each an access-ordered LRU map behind its own lock, so concurrent operations on
+ * different keys rarely contend.
+ */
+final class SegmentedLruMap<K, V> {
+    private static final int SEGMENTS = 16;
+
+    private final Segment<K, V>[] segments;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    SegmentedLruMap(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1: " + maxEntries);
+        }
+        int segmentCount = Math.min(SEGMENTS, maxEntries);
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<>(maxEntries / segmentCount);
+        }
+    }
+
+    V get(K key) {
+        return segment(key).get(key);
+    }
+
+    void put(K key, V value) {
+        segment(key).put(key, value);
+    }
+
+    void remove(K key, V value) {
+        segment(key).remove(key, value);
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment<K, V> segment(K key) {
+        int h = key.hashCode();
+        return segments[((h ^ (h >>> 16)) & 0x7FFFFFFF) % segments.length];
+    }
+
+    private static final class Segment<K, V> {
+        private final Map<K, V> entries;
+
+        Segment(int capacity) {
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        synchronized V get(K key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(K key, V value) {
+            entries.put(key, value);
+        }
+
+        synchronized void remove(K key, V value) {
+            entries.remove(key, value);
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.ake3m.dns.cache;
+
+import com.ake3m.dns.converter.WireQuestion;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static com.ake3m.dns.converter.ByteConverter.readU16;
+import static com.ake3m.dns.converter.ByteConverter.readU32;
+import static com.ake3m.dns.converter.ByteConverter.skipName;
+import static com.ake3m.dns.converter.ByteConverter.writeU16;
+import static com.ake3m.dns.converter.ByteConverter.writeU32;
+
+/**
+ * Cache of serialized responses keyed by the raw question of the query. Alongside the bytes it keeps the offset of
+ * every TTL field, so a hit is a copy of the stored response with the ID, question and TTLs rewritten in place, without
+ * decoding a single record.
+ */
+public class WireCache {
+    private static final int SOA = 6;
+    private static final int OPT = 41;
+    private static final int TC = 0x0200;
+
+    private final SegmentedLruMap<WireQuestion, Entry> entries;
+    private final LongSupplier nanoClock;
+
+    public WireCache(int maxEntries) {
+        this(maxEntries, System::nanoTime);
+    }
+
+    public WireCache(int maxEntries, LongSupplier nanoClock) {
+        this.entries = new SegmentedLruMap<>(maxEntries);
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Returns the cached response for the query, re-addressed to the query's ID and its own spelling of the name, with
+     * decremented TTLs, or {@code null} on a miss.
+     */
+    public byte[] lookup(byte[] query, int length) {
+        WireQuestion key = WireQuestion.of(query, length);
+        if (key == null) {
+            return null;
+        }
+
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        long now = nanoClock.getAsLong();
+        if (now - entry.expiresAt() >= 0) {
+            entries.remove(key, entry);
+            return null;
+        }
+
+        byte[] template = entry.response();
+        byte[] out = Arrays.copyOf(template, template.length);
+        writeU16(out, 0, readU16(query, 0));
+        if (key.isQuestionOf(template)) {
+            System.arraycopy(query, WireQuestion.HEADER_LENGTH, out, WireQuestion.HEADER_LENGTH, key.end() - WireQuestion.HEADER_LENGTH);
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toSeconds(now - entry.storedAt());
+        if (elapsed > 0) {
+            for (int offset : entry.ttlOffsets()) {
+                writeU32(out, offset, Math.max(0, readU32(template, offset) - elapsed));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Stores the serialized response to the query for as long as its shortest-lived answer, or for its negative TTL
+     * as {@link ResponseCache} does. Errors, negative answers without an SOA, zero TTLs and truncated responses are
+     * not cached; store the whole response and fit it to the transport after {@link #lookup}.
+     */
+    public void store(byte[] query, int length, byte[] response) {
+        WireQuestion key = WireQuestion.of(query, length);
+        if (key == null || response.length < WireQuestion.HEADER_LENGTH || (readU16(response, 2) & TC) != 0) {
+            return;
+        }
+
+        Layout layout = Layout.of(response);
+        if (layout == null) {
+            return;
+        }
+
+        long ttl = ttlOf(readU16(response, 2) & 0xF, readU16(response, 6), layout);
+        if (ttl <= 0) {
+            return;
+        }
+
+        long now = nanoClock.getAsLong();
+        entries.put(key, new Entry(
+                Arrays.copyOf(response, layout.end()),
+                layout.ttlOffsets(),
+                now,
+                now + TimeUnit.SECONDS.toNanos(ttl)
+        ));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static long ttlOf(int rcode, int ancount, Layout layout) {
+        if (rcode == 0 && ancount > 0) {
+            return Math.min(layout.minAnswerTtl(), ResponseCache.MAX_TTL_SECONDS);
+        }
+        if (rcode == 0 || rcode == 3) {
+            return Math.min(layout.negativeTtl(), ResponseCache.MAX_NEGATIVE_TTL_SECONDS);
+        }
+        return 0;
+    }
+
+    private record Entry(byte[] response, int[] ttlOffsets, long storedAt, long expiresAt) {
+    }
+
+    /**
+     * Where the TTL fields of a serialized message are, where the message ends, the smallest answer TTL and the
+     * negative TTL of the first SOA in the authority section. OPT pseudo-records are skipped since their TTL field
+     * carries EDNS flags.
+     */
+    private record Layout(int end, int[] ttlOffsets, long minAnswerTtl, long negativeTtl) {
+
+        static Layout of(byte[] in) {
+            try {
+                int qdcount = readU16(in, 4);
+                int ancount = readU16(in, 6);
+                int nscount = readU16(in, 8);
+                int rrcount = ancount + nscount + readU16(in, 10);
+
+                int offset = WireQuestion.HEADER_LENGTH;
+                for (int i = 0; i < qdcount; i++) {
+                    offset = skipName(in, offset) + 4;
+                }
+
+                int[] ttlOffsets = new int[rrcount];
+                int ttls = 0;
+                long minAnswerTtl = Long.MAX_VALUE;
+                long negativeTtl = 0;
+                for (int i = 0; i < rrcount; i++) {
+                    offset = skipName(in, offset);
+                    int type = readU16(in, offset);
+                    int ttlOffset = offset + 4;
+                    if (type != OPT) {
+                        ttlOffsets[ttls++] = ttlOffset;
+                    }
+                    long ttl = readU32(in, ttlOffset);
+                    int rdataEnd = ttlOffset + 6 + readU16(in, ttlOffset + 4);
+                    if (i < ancount) {
+                        minAnswerTtl = Math.min(minAnswerTtl, ttl);
+                    } else if (i < ancount + nscount && type == SOA && negativeTtl == 0) {
+                        negativeTtl = Math.min(ttl, readU32(in, rdataEnd - 4));
+                    }
+                    offset = rdataEnd;
+                }
+
+                if (offset > in.length) {
+                    return null;
+                }
+                return new Layout(offset, Arrays.copyOf(ttlOffsets, ttls), minAnswerTtl, negativeTtl);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+    }
+}
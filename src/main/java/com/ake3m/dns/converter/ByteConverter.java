@@ -1,5 +1,7 @@
 package com.ake3m.dns.converter;
 
+import com.ake3m.dns.model.Name;
+
 import java.net.UnknownHostException;
 
 import static java.net.InetAddress.getByAddress;
@@ -124,6 +126,58 @@ public class ByteConverter {
         return offset;
     }
 
+    /**
+     * Reads MX rdata, a 16-bit preference followed by the exchange name, as {@code <preference> <exchange>}.
+     */
+    public static Result<String> readMX(byte[] in, int offset) {
+        int preference = readU16(in, offset);
+        Result<String> exchange = readName(in, offset + 2);
+        return new Result<>(preference + " " + exchange.value(), exchange.offset());
+    }
+
+    /**
+     * Writes the MX rdata, compressing the exchange name when {@code names} is given.
+     */
+    public static int writeMX(String rdata, int offset, byte[] out, NameCompressor names) {
+        if (rdata == null) throw new IllegalArgumentException("rdata is null");
+
+        String[] parts = rdata.trim().split("\\s+");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("MX rdata must be: <preference> <exchange>");
+        }
+
+        offset = writeU16(out, offset, Integer.parseInt(parts[0]));
+        return names == null ? writeName(parts[1], offset, out) : names.writeName(parts[1], offset, out);
+    }
+
+    /**
+     * Reads MINFO rdata, the responsible and the error mailbox names, as {@code <rmailbx> <emailbx>}.
+     */
+    public static Result<String> readMINFO(byte[] in, int offset) {
+        Result<String> rmailbx = readName(in, offset);
+        Result<String> emailbx = readName(in, rmailbx.offset());
+        return new Result<>(rmailbx.value() + " " + emailbx.value(), emailbx.offset());
+    }
+
+    /**
+     * Writes the MINFO rdata, compressing both names when {@code names} is given.
+     */
+    public static int writeMINFO(String rdata, int offset, byte[] out, NameCompressor names) {
+        if (rdata == null) throw new IllegalArgumentException("rdata is null");
+
+        String[] parts = rdata.trim().split("\\s+");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("MINFO rdata must be: <rmailbx> <emailbx>");
+        }
+
+        if (names == null) {
+            offset = writeName(parts[0], offset, out);
+            return writeName(parts[1], offset, out);
+        }
+        offset = names.writeName(parts[0], offset, out);
+        return names.writeName(parts[1], offset, out);
+    }
+
     public static Result<String> readSOA(byte[] in, int offset) {
         Result<String> mname = readName(in, offset);
         Result<String> rname = readName(in, mname.offset());
@@ -153,6 +207,13 @@ public class ByteConverter {
     }
 
     public static int writeSOA(String rdata, int offset, byte[] out) {
+        return writeSOA(rdata, offset, out, null);
+    }
+
+    /**
+     * Writes the SOA rdata, compressing MNAME and RNAME when {@code names} is given.
+     */
+    public static int writeSOA(String rdata, int offset, byte[] out, NameCompressor names) {
         if (rdata == null) throw new IllegalArgumentException("rdata is null");
 
         String[] parts = rdata.trim().split("\\s+");
@@ -171,8 +232,13 @@ public class ByteConverter {
         long expire = Long.parseLong(parts[5]);
         long minimum = Long.parseLong(parts[6]);
 
-        offset = writeName(mname, offset, out);
-        offset = writeName(rname, offset, out);
+        if (names == null) {
+            offset = writeName(mname, offset, out);
+            offset = writeName(rname, offset, out);
+        } else {
+            offset = names.writeName(mname, offset, out);
+            offset = names.writeName(rname, offset, out);
+        }
 
         offset = writeU32(out, offset, serial);
         offset = writeU32(out, offset, refresh);
@@ -237,6 +303,7 @@ public class ByteConverter {
         int pos = offset;
         int consumed = 0;
         boolean jumped = false;
+        int jumps = 0;
 
         while (true) {
             if (pos >= in.length) {
@@ -258,6 +325,9 @@ public class ByteConverter {
                 if (pos + 1 >= in.length) {
                     throw new IllegalArgumentException("Truncated DNS compression pointer");
                 }
+                if (++jumps > Name.MAX_LENGTH / 2) {
+                    throw new IllegalArgumentException("DNS compression loop");
+                }
 
                 int pointer =
                         ((len & 0x3F) << 8) |
@@ -295,17 +365,116 @@ public class ByteConverter {
         return new Result<>(name.toString(), offset + consumed);
     }
 
+    /**
+     * Returns the offset just past the name at {@code offset} without decoding it or following compression pointers.
+     */
+    public static int skipName(byte[] in, int offset) {
+        int pos = offset;
+        while (true) {
+            if (pos >= in.length) {
+                throw new IllegalArgumentException("DNS name exceeds packet length");
+            }
 
-    public static int writeName(String value, int offset, byte[] out) {
-        String[] parts = value.split("\\.");
+            int len = in[pos] & 0xFF;
+            if (len == 0) {
+                return pos + 1;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                return pos + 2;
+            }
+            pos += len + 1;
+        }
+    }
 
-        for (String part : parts) {
-            out[offset++] = (byte) part.length();
-            for (int i = 0; i < part.length(); i++) {
-                out[offset++] = (byte) part.charAt(i);
+    /**
+     * Reads the name at {@code offset}, following compression pointers, and returns it as a {@link Name}. The name is
+     * walked once to check it and measure it and once more to copy it, so the only allocation is the name itself.
+     */
+    public static Result<Name> readWireName(byte[] in, int offset) {
+        int length = 0;
+        int pos = offset;
+        int next = -1;
+        int jumps = 0;
+
+        while (true) {
+            if (pos >= in.length) {
+                throw new IllegalArgumentException("DNS name exceeds packet length");
+            }
+
+            int len = in[pos] & 0xFF;
+            if (len == 0) {
+                length++;
+                break;
+            }
+
+            if ((len & 0xC0) == 0xC0) {
+                if (pos + 1 >= in.length) {
+                    throw new IllegalArgumentException("Truncated DNS compression pointer");
+                }
+                if (++jumps > Name.MAX_LENGTH / 2) {
+                    throw new IllegalArgumentException("DNS compression loop");
+                }
+                if (next < 0) {
+                    next = pos + 2;
+                }
+                pos = ((len & 0x3F) << 8) | (in[pos + 1] & 0xFF);
+                continue;
+            }
+
+            if (pos + 1 + len > in.length) {
+                throw new IllegalArgumentException("Truncated DNS label");
+            }
+            if (length + len + 2 > Name.MAX_LENGTH) {
+                throw new IllegalArgumentException("DNS name longer than " + Name.MAX_LENGTH);
+            }
+            length += len + 1;
+            pos += len + 1;
+        }
+
+        byte[] wire = new byte[length];
+        copyName(in, offset, wire);
+        return new Result<>(Name.ofWire(wire), next < 0 ? pos + 1 : next);
+    }
+
+    /**
+     * Copies the labels of a name that {@link #readWireName} already checked, following its compression pointers.
+     */
+    private static void copyName(byte[] in, int pos, byte[] wire) {
+        int length = 0;
+        while (true) {
+            int len = in[pos] & 0xFF;
+            if ((len & 0xC0) == 0xC0) {
+                pos = ((len & 0x3F) << 8) | (in[pos + 1] & 0xFF);
+                continue;
+            }
+            System.arraycopy(in, pos, wire, length, len + 1);
+            if (len == 0) {
+                return;
+            }
+            length += len + 1;
+            pos += len + 1;
+        }
+    }
+
+    public static int writeName(String value, int offset, byte[] out) {
+        int length = value.endsWith(".") ? value.length() - 1 : value.length();
+        int start = 0;
+        while (start < length) {
+            int dot = value.indexOf('.', start);
+            int end = dot < 0 || dot > length ? length : dot;
+            out[offset++] = (byte) (end - start);
+            for (int i = start; i < end; i++) {
+                out[offset++] = (byte) value.charAt(i);
             }
+            start = end + 1;
         }
         out[offset++] = 0;
         return offset;
     }
+
+    public static int writeName(Name name, int offset, byte[] out) {
+        byte[] wire = name.wire();
+        System.arraycopy(wire, 0, out, offset, wire.length);
+        return offset + wire.length;
+    }
 }
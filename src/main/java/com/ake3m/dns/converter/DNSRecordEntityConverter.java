@@ -1,16 +1,23 @@
 package com.ake3m.dns.converter;
 
 import com.ake3m.dns.model.DNSRecord;
-import com.ake3m.dns.model.QClass;
+import com.ake3m.dns.model.Name;
 import com.ake3m.dns.model.QType;
 
+import java.util.HexFormat;
+
 import static com.ake3m.dns.converter.ByteConverter.*;
+import static java.util.Arrays.copyOfRange;
 
 public class DNSRecordEntityConverter {
+    private static final HexFormat HEX = HexFormat.of().withUpperCase();
+    private static final DNSRecord.Presentation PRESENTATION = DNSRecordEntityConverter::present;
+
     public Result<DNSRecord> read(byte[] in, int offset) {
-        Result<String> qname = readName(in, offset);
+        Result<Name> qname = readWireName(in, offset);
         offset = qname.offset();
-        QType qtype = QType.fromInt(ByteConverter.readU16(in, offset));
+        int typeCode = ByteConverter.readU16(in, offset);
+        QType qtype = QType.fromInt(typeCode);
         offset += 2;
         int qclass = ByteConverter.readU16(in, offset);
         offset += 2;
@@ -18,31 +25,91 @@ public class DNSRecordEntityConverter {
         offset += 4;
         int rdlength = ByteConverter.readU16(in, offset);
         offset += 2;
+
+        if (!hasNames(qtype)) {
+            if (offset + rdlength > in.length) {
+                throw new IllegalArgumentException("Record exceeds packet length");
+            }
+            byte[] rdata = copyOfRange(in, offset, offset + rdlength);
+            return new Result<>(new DNSRecord(qname.value(), typeCode, qclass, ttl, rdata, PRESENTATION), offset + rdlength);
+        }
+
         Result<String> result = readRdata(in, offset, qtype, rdlength);
         String rdata = result.value();
         offset = result.offset();
 
-        return new Result<>(new DNSRecord(qname.value(), qtype, QClass.fromInt(qclass), ttl, rdlength, rdata), offset);
+        return new Result<>(new DNSRecord(qname.value(), typeCode, qclass, ttl, rdlength, rdata), offset);
     }
 
     public int write(DNSRecord dnsRecord, int offset, byte[] out) {
-        offset = writeName(dnsRecord.name(), offset, out);
-        offset = writeU16(out, offset, dnsRecord.qtype().code());
-        offset = writeU16(out, offset, dnsRecord.qclass().code());
+        offset = writeName(dnsRecord.owner(), offset, out);
+        offset = writeU16(out, offset, dnsRecord.typeCode());
+        offset = writeU16(out, offset, dnsRecord.classCode());
         offset = writeU32(out, offset, dnsRecord.ttl());
         offset = writeU16(out, offset, dnsRecord.rdlength());
+        if (dnsRecord.wireRdata() != null) {
+            return writeBytes(dnsRecord.wireRdata(), offset, out);
+        }
         offset = writeRdata(out, offset, dnsRecord.rdata(), dnsRecord.qtype());
         return offset;
     }
 
+    /**
+     * Writes the record with its owner name and any name in its rdata compressed against the names already in the
+     * message. RDLENGTH is the length actually written, since compression shortens the rdata.
+     */
+    public int write(DNSRecord dnsRecord, int offset, byte[] out, NameCompressor names) {
+        offset = names.writeName(dnsRecord.owner(), offset, out);
+        offset = writeU16(out, offset, dnsRecord.typeCode());
+        offset = writeU16(out, offset, dnsRecord.classCode());
+        offset = writeU32(out, offset, dnsRecord.ttl());
+        int rdlengthOffset = offset;
+        offset = dnsRecord.wireRdata() != null
+                ? writeBytes(dnsRecord.wireRdata(), offset + 2, out)
+                : writeRdata(out, offset + 2, dnsRecord.rdata(), dnsRecord.qtype(), names);
+        writeU16(out, rdlengthOffset, offset - rdlengthOffset - 2);
+        return offset;
+    }
+
+    private static int writeRdata(byte[] out, int offset, String rdata, QType qtype, NameCompressor names) {
+        return switch (qtype) {
+            case NS,
+                 CNAME,
+                 PTR -> names.writeName(rdata, offset, out);
+            case MX -> writeMX(rdata, offset, out, names);
+            case MINFO -> writeMINFO(rdata, offset, out, names);
+            case SOA -> writeSOA(rdata, offset, out, names);
+            default -> writeRdata(out, offset, rdata, qtype);
+        };
+    }
+
+    /**
+     * Types whose rdata holds domain names, which may be compressed and so cannot be kept as a self-contained slice.
+     */
+    private static boolean hasNames(QType qtype) {
+        return switch (qtype) {
+            case NS, CNAME, PTR, MINFO, MX, SOA -> true;
+            default -> false;
+        };
+    }
+
+    private static int writeBytes(byte[] rdata, int offset, byte[] out) {
+        System.arraycopy(rdata, 0, out, offset, rdata.length);
+        return offset + rdata.length;
+    }
+
+    private static String present(QType qtype, byte[] rdata) {
+        return readRdata(rdata, 0, qtype, rdata.length).value();
+    }
+
 
     private static int writeRdata(byte[] out, int offset, String rdata, QType qtype) {
         return switch (qtype) {
             case NS,
                  CNAME,
-                 PTR,
-                 MINFO,
-                 MX -> writeName(rdata, offset, out);
+                 PTR -> writeName(rdata, offset, out);
+            case MX -> writeMX(rdata, offset, out, null);
+            case MINFO -> writeMINFO(rdata, offset, out, null);
             case SOA -> writeSOA(rdata, offset, out);
             case TXT -> writeTXT(rdata, offset, out);
             case AAAA -> writeIPv6(rdata, offset, out);
@@ -55,20 +122,14 @@ public class DNSRecordEntityConverter {
         return switch (qtype) {
             case NS,
                  CNAME,
-                 PTR,
-                 MINFO,
-                 MX -> readName(in, offset);
+                 PTR -> readName(in, offset);
+            case MX -> readMX(in, offset);
+            case MINFO -> readMINFO(in, offset);
             case SOA -> readSOA(in, offset);
             case TXT -> readTXT(in, offset, rdlength);
             case AAAA -> readIPv6(in, offset);
             case A -> readIPv4(in, offset);
-            default -> {
-                StringBuilder hex = new StringBuilder();
-                for (int i = 0; i < rdlength; i++) {
-                    hex.append(String.format("%02X", in[offset + i]));
-                }
-                yield new Result<>(hex.toString(), offset + rdlength);
-            }
+            default -> new Result<>(HEX.formatHex(in, offset, offset + rdlength), offset + rdlength);
         };
     }
 }
@@ -0,0 +1,165 @@
+package com.ake3m.dns.converter;
+
+import com.ake3m.dns.model.Name;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import static com.ake3m.dns.converter.ByteConverter.writeU16;
+
+/**
+ * Writes names with the message compression of
+ * <a href="https://www.rfc-editor.org/rfc/rfc1035#section-4.1.4">RFC 1035 4.1.4. Message compression</a>: every
+ * suffix written to the message is remembered by its offset, and a name whose suffix was already written ends in a
+ * pointer to it. Suffixes only match when they are spelled the same, so names keep their case. The table is an
+ * open-addressed array of offsets that starts small and grows with the names of the message, up to {@link #MAX_SLOTS},
+ * and a hit is confirmed against the bytes already written, so compressing a name allocates nothing beyond the table.
+ * <p>
+ * A compressor belongs to one message at a time. Encoders borrow one with {@link #acquire()} and hand it back with
+ * {@link #release()}, which empties it for the next message; the pool is shared by all threads rather than held per
+ * thread, so encoding on short-lived virtual threads reuses tables instead of leaving one behind on each of them. As
+ * with the message buffers of the converter, a compressor that comes back to a full pool is dropped.
+ */
+public final class NameCompressor {
+    private static final int INITIAL_SLOTS = 16;
+    private static final int MAX_SLOTS = 256;
+    private static final int MAX_POINTER = 0x3FFF;
+    private static final ArrayBlockingQueue<NameCompressor> POOL = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 2);
+
+    private int[] hashes = new int[INITIAL_SLOTS];
+    private int[] offsets = new int[INITIAL_SLOTS];
+    private int size;
+
+    /**
+     * Returns an empty compressor for a new message that is not taken from or returned to the pool.
+     */
+    public static NameCompressor forMessage() {
+        return new NameCompressor();
+    }
+
+    /**
+     * Returns an empty compressor for a new message, one that an earlier message released when there is one.
+     */
+    public static NameCompressor acquire() {
+        NameCompressor names = POOL.poll();
+        return names != null ? names : new NameCompressor();
+    }
+
+    /**
+     * Empties the compressor and returns it to the pool. It must not be used after that.
+     */
+    public void release() {
+        reset();
+        POOL.offer(this);
+    }
+
+    private void reset() {
+        if (size > 0) {
+            Arrays.fill(offsets, 0);
+            size = 0;
+        }
+    }
+
+    public int writeName(String name, int offset, byte[] out) {
+        return writeName(Name.of(name), offset, out);
+    }
+
+    public int writeName(Name name, int offset, byte[] out) {
+        byte[] wire = name.wire();
+        int pos = 0;
+        while (wire[pos] != 0) {
+            int hash = hash(wire, pos);
+            int pointer = find(wire, pos, hash, out);
+            if (pointer > 0) {
+                return writeU16(out, offset, 0xC000 | pointer);
+            }
+            if (offset <= MAX_POINTER) {
+                add(hash, offset);
+            }
+
+            int len = (wire[pos] & 0xFF) + 1;
+            System.arraycopy(wire, pos, out, offset, len);
+            offset += len;
+            pos += len;
+        }
+        out[offset++] = 0;
+        return offset;
+    }
+
+    private int find(byte[] wire, int pos, int hash, byte[] out) {
+        int mask = offsets.length - 1;
+        for (int slot = hash & mask; offsets[slot] != 0; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && matches(wire, pos, out, offsets[slot])) {
+                return offsets[slot];
+            }
+        }
+        return 0;
+    }
+
+    private void add(int hash, int offset) {
+        if (size >= offsets.length * 3 / 4) {
+            if (offsets.length == MAX_SLOTS) {
+                return;
+            }
+            grow();
+        }
+        insert(hashes, offsets, hash, offset);
+        size++;
+    }
+
+    private void grow() {
+        int[] oldHashes = hashes;
+        int[] oldOffsets = offsets;
+        hashes = new int[oldOffsets.length * 2];
+        offsets = new int[oldOffsets.length * 2];
+        for (int slot = 0; slot < oldOffsets.length; slot++) {
+            if (oldOffsets[slot] != 0) {
+                insert(hashes, offsets, oldHashes[slot], oldOffsets[slot]);
+            }
+        }
+    }
+
+    private static void insert(int[] hashes, int[] offsets, int hash, int offset) {
+        int mask = offsets.length - 1;
+        int slot = hash & mask;
+        while (offsets[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        hashes[slot] = hash;
+        offsets[slot] = offset;
+    }
+
+    /**
+     * Whether the name written at {@code at}, following pointers, is the suffix of {@code wire} from {@code pos}.
+     */
+    private static boolean matches(byte[] wire, int pos, byte[] out, int at) {
+        while (true) {
+            int len = out[at] & 0xFF;
+            if ((len & 0xC0) == 0xC0) {
+                at = ((len & 0x3F) << 8) | (out[at + 1] & 0xFF);
+                continue;
+            }
+            if (len != (wire[pos] & 0xFF)) {
+                return false;
+            }
+            if (len == 0) {
+                return true;
+            }
+            for (int i = 1; i <= len; i++) {
+                if (out[at + i] != wire[pos + i]) {
+                    return false;
+                }
+            }
+            at += len + 1;
+            pos += len + 1;
+        }
+    }
+
+    private static int hash(byte[] wire, int pos) {
+        int hash = 0;
+        for (int i = pos; i < wire.length; i++) {
+            hash = 31 * hash + wire[i];
+        }
+        return hash;
+    }
+}
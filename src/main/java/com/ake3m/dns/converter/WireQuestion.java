@@ -0,0 +1,164 @@
+package com.ake3m.dns.converter;
+
+import java.util.Arrays;
+
+import static com.ake3m.dns.converter.ByteConverter.readU16;
+
+/**
+ * The question section of a standard query with one question, as raw bytes with the name lower-cased, so two queries
+ * for the same name, type and class compare equal without being decoded. Queries that use compression in the question
+ * have no wire question. Queries with and without an additional section, where EDNS clients put their OPT record, are
+ * told apart, since the responses they get differ, and so are queries that differ in the CD header bit or the DO bit of
+ * their OPT record, which decide whether DNSSEC records are returned and whether validation failures are.
+ */
+public final class WireQuestion {
+    public static final int HEADER_LENGTH = 12;
+    private static final int CD = 0x0010;
+    private static final int OPT = 41;
+    private static final int DO = 0x8000;
+
+    private static final int EDNS_FLAG = 1;
+    private static final int DO_FLAG = 2;
+    private static final int CD_FLAG = 4;
+
+    private final byte[] question;
+    private final int flags;
+    private final int hash;
+
+    private WireQuestion(byte[] question, int flags) {
+        this.question = question;
+        this.flags = flags;
+        this.hash = 31 * Arrays.hashCode(question) + flags;
+    }
+
+    /**
+     * Returns the question of the query, or {@code null} when it is not a standard query with exactly one
+     * uncompressed question.
+     */
+    public static WireQuestion of(byte[] query, int length) {
+        if (length < HEADER_LENGTH) {
+            return null;
+        }
+
+        int flags = readU16(query, 2);
+        if ((flags & 0xF800) != 0) {
+            return null;
+        }
+
+        int end = questionEnd(query, length);
+        if (end < 0) {
+            return null;
+        }
+
+        int dnssecOk = dnssecOk(query, length, end);
+        if (dnssecOk < 0) {
+            return null;
+        }
+
+        byte[] question = Arrays.copyOfRange(query, HEADER_LENGTH, end);
+        lowerCase(question, question.length - 4);
+        return new WireQuestion(question, (readU16(query, 10) > 0 ? EDNS_FLAG : 0)
+                | (dnssecOk == 1 ? DO_FLAG : 0)
+                | ((flags & CD) != 0 ? CD_FLAG : 0));
+    }
+
+    /**
+     * Returns the question of a query or a response spelled exactly as it is and without any flags, so a response can
+     * be matched to the query it answers, and an answer that changed the case of the name is not; or {@code null} when
+     * the message does not have exactly one uncompressed question.
+     */
+    public static WireQuestion exact(byte[] message, int length) {
+        if (length < HEADER_LENGTH) {
+            return null;
+        }
+        int end = questionEnd(message, length);
+        return end < 0 ? null : new WireQuestion(Arrays.copyOfRange(message, HEADER_LENGTH, end), 0);
+    }
+
+    /**
+     * The offset just past the only question of the message, or -1 when it has more or fewer, the name is compressed
+     * or the question runs past {@code length}.
+     */
+    private static int questionEnd(byte[] message, int length) {
+        if (readU16(message, 4) != 1) {
+            return -1;
+        }
+
+        int pos = HEADER_LENGTH;
+        while (true) {
+            if (pos >= length) {
+                return -1;
+            }
+            int len = message[pos] & 0xFF;
+            if ((len & 0xC0) != 0) {
+                return -1;
+            }
+            pos += len + 1;
+            if (len == 0) {
+                break;
+            }
+        }
+        return pos + 4 > length ? -1 : pos + 4;
+    }
+
+    /**
+     * Walks the records after the question for an OPT record: 1 when it has the DO bit set, 0 when it has not or there
+     * is none, and -1 when the records run past {@code length}.
+     */
+    private static int dnssecOk(byte[] query, int length, int offset) {
+        int records = readU16(query, 6) + readU16(query, 8) + readU16(query, 10);
+        int pos = offset;
+        for (int i = 0; i < records; i++) {
+            while (pos < length && (query[pos] & 0xFF) != 0 && (query[pos] & 0xC0) == 0) {
+                pos += (query[pos] & 0xFF) + 1;
+            }
+            pos += pos < length && (query[pos] & 0xC0) == 0xC0 ? 2 : 1;
+            if (pos + 10 > length) {
+                return -1;
+            }
+            if (readU16(query, pos) == OPT) {
+                return (readU16(query, pos + 6) & DO) != 0 ? 1 : 0;
+            }
+            pos += 10 + readU16(query, pos + 8);
+        }
+        return 0;
+    }
+
+    /**
+     * The offset just past the question in the message it was read from.
+     */
+    public int end() {
+        return HEADER_LENGTH + question.length;
+    }
+
+    /**
+     * Whether {@code message} carries exactly this question, ignoring the case of the name.
+     */
+    public boolean isQuestionOf(byte[] message) {
+        if (message.length < end() || readU16(message, 4) != 1) {
+            return false;
+        }
+        byte[] other = Arrays.copyOfRange(message, HEADER_LENGTH, end());
+        lowerCase(other, other.length - 4);
+        return Arrays.equals(question, other);
+    }
+
+    private static void lowerCase(byte[] name, int length) {
+        for (int i = 0; i < length; i++) {
+            byte b = name[i];
+            if (b >= 'A' && b <= 'Z') {
+                name[i] = (byte) (b + ('a' - 'A'));
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof WireQuestion other && flags == other.flags && Arrays.equals(question, other.question);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,100 @@
+package com.ake3m.dns.converter;
+
+import com.ake3m.dns.model.DNSHeader;
+import com.ake3m.dns.model.DNSMessage;
+import com.ake3m.dns.model.DNSQuestion;
+import com.ake3m.dns.model.DNSRecord;
+
+import static com.ake3m.dns.converter.ByteConverter.readU16;
+import static com.ake3m.dns.converter.ByteConverter.skipName;
+
+/**
+ * The sections of a received message, read straight from its bytes. Construction only walks the names and lengths to
+ * find where each section starts; questions and records are decoded when they are asked for, and {@link #write}
+ * copies the original encoding, compression pointers included, without decoding anything.
+ */
+public class WireSections implements DNSMessage.Sections {
+    private final byte[] in;
+    private final DNSHeader header;
+    private final DNSQuestionEntityConverter questionConverter;
+    private final DNSRecordEntityConverter recordConverter;
+    private final int answersOffset;
+    private final int authorityOffset;
+    private final int additionalOffset;
+    private final int start;
+    private final int end;
+
+    public WireSections(byte[] in,
+                        int offset,
+                        DNSHeader header,
+                        DNSQuestionEntityConverter questionConverter,
+                        DNSRecordEntityConverter recordConverter) {
+        this.in = in;
+        this.header = header;
+        this.questionConverter = questionConverter;
+        this.recordConverter = recordConverter;
+        this.start = offset;
+
+        for (int i = 0; i < header.qdcount(); i++) {
+            offset = skipName(in, offset) + 4;
+        }
+        this.answersOffset = offset;
+        this.authorityOffset = skipRecords(in, answersOffset, header.ancount());
+        this.additionalOffset = skipRecords(in, authorityOffset, header.nscount());
+        this.end = skipRecords(in, additionalOffset, header.arcount());
+        if (end > in.length) {
+            throw new IllegalArgumentException("DNS message exceeds packet length");
+        }
+    }
+
+    @Override
+    public DNSQuestion[] questions() {
+        DNSQuestion[] questions = new DNSQuestion[header.qdcount()];
+        int offset = start;
+        for (int i = 0; i < questions.length; i++) {
+            Result<DNSQuestion> result = questionConverter.read(in, offset);
+            questions[i] = result.value();
+            offset = result.offset();
+        }
+        return questions;
+    }
+
+    @Override
+    public DNSRecord[] answers() {
+        return readRecords(answersOffset, header.ancount());
+    }
+
+    @Override
+    public DNSRecord[] authorityRecords() {
+        return readRecords(authorityOffset, header.nscount());
+    }
+
+    @Override
+    public DNSRecord[] additionalRecords() {
+        return readRecords(additionalOffset, header.arcount());
+    }
+
+    @Override
+    public int write(byte[] out, int offset) {
+        System.arraycopy(in, start, out, offset, end - start);
+        return offset + end - start;
+    }
+
+    private DNSRecord[] readRecords(int offset, int count) {
+        DNSRecord[] records = new DNSRecord[count];
+        for (int i = 0; i < count; i++) {
+            Result<DNSRecord> result = recordConverter.read(in, offset);
+            records[i] = result.value();
+            offset = result.offset();
+        }
+        return records;
+    }
+
+    private static int skipRecords(byte[] in, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            offset = skipName(in, offset) + 8;
+            offset += 2 + readU16(in, offset);
+        }
+        return offset;
+    }
+}
@@ -3,14 +3,44 @@ package com.ake3m.dns.handling;
 import com.ake3m.dns.converter.DNSHeaderEntityConverter;
 import com.ake3m.dns.converter.DNSQuestionEntityConverter;
 import com.ake3m.dns.converter.DNSRecordEntityConverter;
+import com.ake3m.dns.converter.NameCompressor;
 import com.ake3m.dns.converter.Result;
+import com.ake3m.dns.converter.WireQuestion;
+import com.ake3m.dns.converter.WireSections;
 import com.ake3m.dns.model.DNSHeader;
 import com.ake3m.dns.model.DNSMessage;
 import com.ake3m.dns.model.DNSQuestion;
 import com.ake3m.dns.model.DNSRecord;
+import com.ake3m.dns.model.Edns;
+import com.ake3m.dns.model.QType;
 import com.ake3m.dns.model.Rcode;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import static com.ake3m.dns.converter.ByteConverter.readU16;
+import static com.ake3m.dns.converter.ByteConverter.skipName;
+
 public class Converter {
+    /**
+     * The largest message the two-byte length of a TCP frame can carry.
+     */
+    public static final int MAX_MESSAGE_LENGTH = 65535;
+    /**
+     * Messages are encoded into a buffer large enough for any message and copied out at their actual length. The
+     * buffers are shared by all threads rather than held per thread, since a virtual thread per query would allocate
+     * a fresh one for every message. Encoding never blocks, so about as many are in use at once as there are cores; a
+     * buffer that comes back to a full pool is dropped.
+     */
+    private static final ArrayBlockingQueue<byte[]> SCRATCH = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 2);
+    /**
+     * An OPT record without options: the root name, type, class, TTL and an empty RDLENGTH.
+     */
+    private static final int OPT_LENGTH = 11;
+
     private final DNSHeaderEntityConverter dnsHeaderEntityConverter;
     private final DNSQuestionEntityConverter dnsQuestionEntityConverter;
     private final DNSRecordEntityConverter dnsRecordEntityConverter;
@@ -50,6 +80,9 @@ public class Converter {
         );
     }
 
+    /**
+     * Decodes the header, the questions and the additional section, where a query carries its OPT record.
+     */
     public DNSMessage toDNSRequest(byte[] in) {
         Result<DNSHeader> headerResult = dnsHeaderEntityConverter.read(in);
         DNSHeader header = headerResult.value();
@@ -63,90 +96,276 @@ public class Converter {
             offset = questionResult.offset();
         }
 
+        offset = skipRecords(in, offset, header.ancount() + header.nscount());
+        DNSRecord[] additionalRecords = new DNSRecord[header.arcount()];
+        for (int i = 0; i < header.arcount(); i++) {
+            Result<DNSRecord> recordResult = dnsRecordEntityConverter.read(in, offset);
+            additionalRecords[i] = recordResult.value();
+            offset = recordResult.offset();
+        }
+
         return new DNSMessage(
                 header,
                 questions,
                 new DNSRecord[]{},
                 new DNSRecord[]{},
-                new DNSRecord[]{}
+                additionalRecords
         );
     }
 
+    /**
+     * Encodes the questions of the message for an upstream, with an OPT record advertising
+     * {@link Edns#DEFAULT_PAYLOAD_SIZE} in place of whatever EDNS the requestor sent.
+     */
     public byte[] toDNSRequest(DNSMessage message) {
-        byte[] in = new byte[512];
-        int offset = dnsHeaderEntityConverter.write(message.header(), in);
-        for (DNSQuestion question : message.questions()) {
-            offset = dnsQuestionEntityConverter.write(question, offset, in);
+        Edns requested = Edns.of(message);
+        Edns edns = new Edns(Edns.DEFAULT_PAYLOAD_SIZE, 0, 0, requested != null && requested.dnssecOk());
+        DNSHeader header = message.header();
+
+        byte[] out = acquire();
+        NameCompressor names = NameCompressor.acquire();
+        try {
+            int offset = dnsHeaderEntityConverter.write(withCounts(header, header.tc(), header.qdcount(), 0, 0, 1), out);
+            for (DNSQuestion question : message.questions()) {
+                offset = dnsQuestionEntityConverter.write(question, offset, out, names);
+            }
+            offset = dnsRecordEntityConverter.write(edns.toRecord(), offset, out, names);
+            return Arrays.copyOf(out, offset);
+        } finally {
+            names.release();
+            release(out);
         }
-        return in;
     }
 
+    /**
+     * Decodes the header and leaves the sections to be decoded when they are first read.
+     */
     public DNSMessage toDNSResponse(byte[] in) {
         Result<DNSHeader> headerResult = dnsHeaderEntityConverter.read(in);
         DNSHeader header = headerResult.value();
-        DNSQuestion[] questions = new DNSQuestion[header.qdcount()];
-        DNSRecord[] answers = new DNSRecord[header.ancount()];
-        DNSRecord[] authorityRecords = new DNSRecord[header.nscount()];
-        DNSRecord[] additionalRecords = new DNSRecord[header.arcount()];
+        return new DNSMessage(
+                header,
+                new WireSections(in, headerResult.offset(), header, dnsQuestionEntityConverter, dnsRecordEntityConverter)
+        );
+    }
 
-        int offset = headerResult.offset();
-        for (int i = 0; i < header.qdcount(); i++) {
-            Result<DNSQuestion> questionResult = dnsQuestionEntityConverter.read(in, offset);
-            DNSQuestion question = questionResult.value();
-            questions[i] = question;
-            offset = questionResult.offset();
+    public byte[] toDNSResponse(DNSMessage message) {
+        byte[] out = acquire();
+        try {
+            return Arrays.copyOf(out, write(message, out));
+        } finally {
+            release(out);
         }
+    }
+
+    /**
+     * Encodes a response for a requestor that sent {@code requested}, or no EDNS at all when it is {@code null}. The
+     * response carries an OPT record advertising {@link Edns#DEFAULT_PAYLOAD_SIZE} exactly when the request had one,
+     * and is cut down to the requestor's UDP payload size when it does not fit.
+     */
+    public byte[] toDNSResponse(DNSMessage message, Edns requested) {
+        return toDNSResponse(message, requested, Edns.udpLimit(requested));
+    }
 
-        for (int i = 0; i < header.ancount(); i++) {
-            Result<DNSRecord> answerResult = dnsRecordEntityConverter.read(in, offset);
-            DNSRecord answer = answerResult.value();
-            answers[i] = answer;
-            offset = answerResult.offset();
+    /**
+     * Encodes a response as {@link #toDNSResponse(DNSMessage, Edns)} does, cut down to {@code limit} bytes instead of
+     * the requestor's UDP payload size.
+     */
+    public byte[] toDNSResponse(DNSMessage message, Edns requested, int limit) {
+        DNSMessage response = withEdns(message, requested);
+        byte[] out = acquire();
+        try {
+            int length = write(response, out);
+            if (length <= limit) {
+                return Arrays.copyOf(out, length);
+            }
+            return Arrays.copyOf(out, writeTruncated(response, requested, limit, out));
+        } finally {
+            release(out);
         }
+    }
+
+    private static byte[] acquire() {
+        byte[] out = SCRATCH.poll();
+        return out != null ? out : new byte[MAX_MESSAGE_LENGTH];
+    }
+
+    private static void release(byte[] out) {
+        SCRATCH.offer(out);
+    }
+
+    /**
+     * Writes the whole RRsets that fit in {@code limit}, in order, and stops at the first one that does not; an RRset
+     * is never split. TC is set when answer or authority records were left out, while additional records are dropped
+     * without it, as in <a href="https://www.rfc-editor.org/rfc/rfc2181#section-9">RFC 2181 9. The TC (truncated)
+     * header bit</a>. Room is kept for the OPT record.
+     */
+    private int writeTruncated(DNSMessage response, Edns requested, int limit, byte[] out) {
+        DNSRecord opt = requested == null ? null : edns(response, requested).toRecord();
+        int room = limit - (opt == null ? 0 : OPT_LENGTH);
+
+        NameCompressor names = NameCompressor.acquire();
+        try {
+            int offset = WireQuestion.HEADER_LENGTH;
+            for (DNSQuestion question : response.questions()) {
+                offset = dnsQuestionEntityConverter.write(question, offset, out, names);
+            }
+
+            DNSRecord[][] sections = {
+                    response.answers(), response.authorityRecords(), withoutOpt(response.additionalRecords())};
+            int[] counts = new int[sections.length];
+            boolean truncated = false;
+            sections:
+            for (int section = 0; section < sections.length; section++) {
+                DNSRecord[] records = sections[section];
+                for (int start = 0; start < records.length; ) {
+                    int end = rrsetEnd(records, start);
+                    int next = offset;
+                    for (int i = start; i < end; i++) {
+                        next = dnsRecordEntityConverter.write(records[i], next, out, names);
+                    }
+                    if (next > room) {
+                        // names written by the dropped RRset stay in the table, but nothing after it is compressed
+                        truncated = section < 2;
+                        break sections;
+                    }
+                    offset = next;
+                    counts[section] += end - start;
+                    start = end;
+                }
+            }
 
-        for (int i = 0; i < header.nscount(); i++) {
-            Result<DNSRecord> authorityRecordResult = dnsRecordEntityConverter.read(in, offset);
-            DNSRecord authorityRecord = authorityRecordResult.value();
-            authorityRecords[i] = authorityRecord;
-            offset = authorityRecordResult.offset();
+            if (opt != null) {
+                offset = dnsRecordEntityConverter.write(opt, offset, out, names);
+            }
+            DNSHeader header = response.header();
+            dnsHeaderEntityConverter.write(withCounts(header, truncated ? 1 : header.tc(), response.questions().length,
+                    counts[0], counts[1], counts[2] + (opt == null ? 0 : 1)), out);
+            return offset;
+        } finally {
+            names.release();
         }
+    }
 
-        for (int i = 0; i < header.arcount(); i++) {
-            Result<DNSRecord> additionalRecordResult = dnsRecordEntityConverter.read(in, offset);
-            DNSRecord additionalRecord = additionalRecordResult.value();
-            additionalRecords[i] = additionalRecord;
-            offset = additionalRecordResult.offset();
+    /**
+     * The index just past the RRset that starts at {@code start}: the run of records with its owner, type and class.
+     */
+    private static int rrsetEnd(DNSRecord[] records, int start) {
+        DNSRecord first = records[start];
+        int end = start + 1;
+        while (end < records.length
+                && records[end].typeCode() == first.typeCode()
+                && records[end].classCode() == first.classCode()
+                && records[end].owner().equals(first.owner())) {
+            end++;
         }
+        return end;
+    }
 
-        return new DNSMessage(
-                header,
-                questions,
-                answers,
-                authorityRecords,
-                additionalRecords
-        );
+    private static DNSRecord[] withoutOpt(DNSRecord[] records) {
+        List<DNSRecord> kept = new ArrayList<>(records.length);
+        for (DNSRecord record : records) {
+            if (record.qtype() != QType.OPT) {
+                kept.add(record);
+            }
+        }
+        return kept.toArray(DNSRecord[]::new);
     }
 
-    public byte[] toDNSResponse(DNSMessage message) {
-        final byte[] out = new byte[512];
+    private int write(DNSMessage message, byte[] out) {
         int offset = dnsHeaderEntityConverter.write(message.header(), out);
 
-        for (DNSQuestion question : message.questions()) {
-            offset = dnsQuestionEntityConverter.write(question, offset, out);
+        if (message.sections() != null) {
+            return message.sections().write(out, offset);
         }
 
-        for (DNSRecord answer : message.answers()) {
-            offset = dnsRecordEntityConverter.write(answer, offset, out);
+        NameCompressor names = NameCompressor.acquire();
+        try {
+            for (DNSQuestion question : message.questions()) {
+                offset = dnsQuestionEntityConverter.write(question, offset, out, names);
+            }
+
+            for (DNSRecord answer : message.answers()) {
+                offset = dnsRecordEntityConverter.write(answer, offset, out, names);
+            }
+
+            for (DNSRecord answer : message.authorityRecords()) {
+                offset = dnsRecordEntityConverter.write(answer, offset, out, names);
+            }
+
+            for (DNSRecord answer : message.additionalRecords()) {
+                offset = dnsRecordEntityConverter.write(answer, offset, out, names);
+            }
+
+            return offset;
+        } finally {
+            names.release();
         }
+    }
 
-        for (DNSRecord answer : message.authorityRecords()) {
-            offset = dnsRecordEntityConverter.write(answer, offset, out);
+    /**
+     * Replaces the OPT record of the response with ours, or drops it for a requestor without EDNS. The message is
+     * returned as it is when its OPT record already says the same, so undecoded sections stay undecoded.
+     */
+    private static DNSMessage withEdns(DNSMessage message, Edns requested) {
+        Edns current = Edns.of(message);
+        Edns edns = requested == null ? null : edns(message, requested);
+        if (Objects.equals(current, edns)) {
+            return message;
         }
 
-        for (DNSRecord answer : message.additionalRecords()) {
-            offset = dnsRecordEntityConverter.write(answer, offset, out);
+        List<DNSRecord> additionalRecords = new ArrayList<>(Arrays.asList(withoutOpt(message.additionalRecords())));
+        if (edns != null) {
+            additionalRecords.add(edns.toRecord());
         }
 
-        return out;
+        DNSHeader header = message.header();
+        return new DNSMessage(
+                withCounts(header, header.tc(), message.questions().length, message.answers().length,
+                        message.authorityRecords().length, additionalRecords.size()),
+                message.questions(),
+                message.answers(),
+                message.authorityRecords(),
+                additionalRecords.toArray(DNSRecord[]::new)
+        );
+    }
+
+    /**
+     * The EDNS parameters of our response: our payload size, the upstream's extended rcode and the requestor's DO bit.
+     */
+    private static Edns edns(DNSMessage message, Edns requested) {
+        Edns upstream = Edns.of(message);
+        return new Edns(
+                Edns.DEFAULT_PAYLOAD_SIZE,
+                upstream == null ? 0 : upstream.extendedRcode(),
+                0,
+                requested.dnssecOk()
+        );
+    }
+
+    private static DNSHeader withCounts(DNSHeader header, int tc, int qdcount, int ancount, int nscount, int arcount) {
+        return new DNSHeader(
+                header.id(),
+                header.qr(),
+                header.opcode(),
+                header.aa(),
+                tc,
+                header.rd(),
+                header.ra(),
+                header.z(),
+                header.rcode(),
+                qdcount,
+                ancount,
+                nscount,
+                arcount
+        );
+    }
+
+    private static int skipRecords(byte[] in, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            offset = skipName(in, offset) + 8;
+            offset += 2 + readU16(in, offset);
+        }
+        return offset;
     }
 }
@@ -1,90 +1,356 @@
 package com.ake3m.dns.handling;
 
+import com.ake3m.dns.handling.transport.MultiplexedUdpTransport;
+import com.ake3m.dns.handling.transport.PooledTcpTransport;
+import com.ake3m.dns.handling.transport.SerialUdpTransport;
+import com.ake3m.dns.handling.transport.Transport;
+import com.ake3m.dns.handling.transport.VirtualThreadUdpTransport;
+import com.ake3m.dns.handling.upstream.HedgePolicy;
+import com.ake3m.dns.handling.upstream.Upstream;
+import com.ake3m.dns.handling.upstream.UpstreamSelector;
 import com.ake3m.dns.model.DNSMessage;
 import com.ake3m.dns.model.Rcode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.*;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.ake3m.dns.converter.ByteConverter.readBits;
+import static com.ake3m.dns.converter.ByteConverter.readU16;
 import static com.ake3m.dns.handling.Either.left;
 import static com.ake3m.dns.handling.Either.right;
 
-public final class DNSClient implements AutoCloseable {
+public final class DNSClient implements DNSHandler.Forwarder, AutoCloseable {
 
     private static final Logger log = LoggerFactory.getLogger(DNSClient.class);
-    public static final int TIMEOUT_SECONDS = 30;
+    public static final Duration DEFAULT_DEADLINE = Duration.ofSeconds(4);
+    public static final int MAX_ATTEMPTS = 4;
 
-    private final DatagramSocket socket;
-    private final ExecutorService executor;
+    private final UpstreamSelector selector;
     private final Converter converter;
+    private final HedgePolicy hedgePolicy;
+    private final Duration deadline;
 
     public DNSClient(
             String ip,
             int port,
             Converter converter
     ) throws SocketException {
+        this(ip, port, converter, Mode.SERIAL);
+    }
+
+    public DNSClient(
+            String ip,
+            int port,
+            Converter converter,
+            Mode mode
+    ) throws SocketException {
+        this(List.of(new InetSocketAddress(ip, port)), converter, mode);
+    }
+
+    public DNSClient(
+            List<InetSocketAddress> upstreams,
+            Converter converter,
+            Mode mode
+    ) throws SocketException {
+        this(upstreams, converter, mode, null, DEFAULT_DEADLINE);
+    }
+
+    /**
+     * @param hedgePolicy when not {@code null}, a query that has not been answered within the policy's delay is also
+     *                    sent to a second upstream and the first answer wins
+     * @param deadline    how long a query may take across all of its retransmissions before it fails
+     */
+    public DNSClient(
+            List<InetSocketAddress> upstreams,
+            Converter converter,
+            Mode mode,
+            HedgePolicy hedgePolicy,
+            Duration deadline
+    ) throws SocketException {
+        this(upstreams, converter, mode, hedgePolicy, deadline, PooledTcpTransport.DEFAULT_KEEPALIVE);
+    }
+
+    /**
+     * @param tcpKeepalive how long a pooled TCP connection to an upstream stays open without queries
+     */
+    public DNSClient(
+            List<InetSocketAddress> upstreams,
+            Converter converter,
+            Mode mode,
+            HedgePolicy hedgePolicy,
+            Duration deadline,
+            Duration tcpKeepalive
+    ) throws SocketException {
 
         this.converter = converter;
+        this.hedgePolicy = hedgePolicy;
+        this.deadline = deadline;
 
-        this.executor = Executors.newSingleThreadExecutor(r -> {
-            Thread t = new Thread(r, "dns-client");
-            t.setDaemon(true);
-            return t;
-        });
+        List<Upstream> connected = new ArrayList<>();
+        try {
+            for (InetSocketAddress address : upstreams) {
+                Transport tcp = new PooledTcpTransport(address, PooledTcpTransport.DEFAULT_CONNECTIONS, tcpKeepalive);
+                connected.add(mode == Mode.TCP
+                        ? new Upstream(address, tcp, null, System::nanoTime)
+                        : new Upstream(address, transport(address, mode), tcp, System::nanoTime));
+            }
+        } catch (SocketException e) {
+            connected.forEach(Upstream::close);
+            throw e;
+        }
+        this.selector = new UpstreamSelector(connected);
+    }
 
-        this.socket = new DatagramSocket();
-        this.socket.connect(new InetSocketAddress(ip, port));
-        this.socket.setSoTimeout(TIMEOUT_SECONDS * 1000);
+    private static Transport transport(InetSocketAddress upstream, Mode mode) throws SocketException {
+        return switch (mode) {
+            case SERIAL -> new SerialUdpTransport(upstream);
+            case MULTIPLEXED -> new MultiplexedUdpTransport(upstream);
+            case VIRTUAL_THREAD -> new VirtualThreadUdpTransport(upstream);
+            case TCP -> throw new IllegalArgumentException("TCP upstreams use the pooled TCP transport");
+        };
     }
 
+    @Override
     public CompletableFuture<Either<DNSError, DNSMessage>> forward(DNSMessage message) {
+        long start = System.nanoTime();
+        Upstream upstream = selector.select();
         return CompletableFuture
-                .supplyAsync(() -> sendAndReceive(message), executor)
-                .exceptionally(ex -> handleFailure(ex, message));
+                .completedFuture(message)
+                .thenApply(converter::toDNSRequest)
+                .thenCompose(request -> retransmit(upstream, request, start, 0))
+                .thenApply(this::toEither)
+                .exceptionally(ex -> handleFailure(ex, message, Duration.ofNanos(System.nanoTime() - start)));
     }
 
-    private Either<DNSError, DNSMessage> sendAndReceive(DNSMessage message) {
-        try {
+    @Override
+    public boolean forwardsRaw() {
+        return true;
+    }
 
-            synchronized (socket) {
-                byte[] request = converter.toDNSRequest(message);
-                socket.send(new DatagramPacket(request, request.length));
+    /**
+     * Sends the client's bytes upstream as they are and relays the upstream's bytes back; the transports already put
+     * back the query's ID. Only failures and error rcodes are decoded, to build the SERVFAIL.
+     */
+    @Override
+    public CompletableFuture<Either<DNSError, byte[]>> forwardRaw(byte[] query) {
+        long start = System.nanoTime();
+        Upstream upstream = selector.select();
+        return retransmit(upstream, query, start, 0)
+                .thenApply(this::toRawEither)
+                .exceptionally(ex -> handleFailure(ex, converter.toDNSRequest(query), Duration.ofNanos(System.nanoTime() - start))
+                        .mapRight(converter::toDNSResponse));
+    }
 
-                byte[] buffer = new byte[512];
-                DatagramPacket response = new DatagramPacket(buffer, buffer.length);
-                socket.receive(response);
+    /**
+     * Waits one retransmission timeout of the upstream, doubled for every earlier attempt, and then tries again on
+     * another upstream when there is one. Gives up after {@link #MAX_ATTEMPTS} or once the deadline has passed.
+     */
+    private CompletableFuture<byte[]> retransmit(Upstream upstream, byte[] request, long start, int attempt) {
+        Duration remaining = deadline.minusNanos(System.nanoTime() - start);
+        Duration rto = upstream.rtt().rto().multipliedBy(1L << attempt);
+        Duration timeout = rto.compareTo(remaining) < 0 ? rto : remaining;
 
-                DNSMessage dnsResponse = converter.toDNSResponse(response.getData());
+        return send(upstream, request, timeout)
+                .handle((response, ex) -> {
+                    if (ex == null) {
+                        return truncated(response) && upstream.tcp() != null
+                                ? overTcp(upstream, request, response, start)
+                                : CompletableFuture.completedFuture(response);
+                    }
+                    if (unwrap(ex) instanceof CancellationException
+                            || attempt + 1 >= MAX_ATTEMPTS
+                            || System.nanoTime() - start >= deadline.toNanos()) {
+                        return CompletableFuture.<byte[]>failedFuture(ex);
+                    }
+                    Upstream next = selector.select(upstream);
+                    log.debug("Retransmitting query to {} after {} failed: {}", next, upstream, unwrap(ex).toString());
+                    return retransmit(next, request, start, attempt + 1);
+                })
+                .thenCompose(response -> response);
+    }
 
-                if (dnsResponse.header().rcode() != Rcode.NOERROR) {
-                    return left(
-                            new DNSError.RcodeFailure(dnsResponse.header().rcode()),
-                            converter.toDNSErrorResponse(dnsResponse)
-                    );
-                }
+    /**
+     * Repeats a query whose UDP answer came back with TC set over TCP, within what is left of the deadline. When TCP
+     * fails the truncated answer is returned, so the requestor can still retry over TCP itself.
+     */
+    private CompletableFuture<byte[]> overTcp(Upstream upstream, byte[] request, byte[] truncated, long start) {
+        log.debug("Repeating truncated answer from {} over TCP", upstream);
+        return upstream.tcp()
+                .exchange(request, deadline.minusNanos(System.nanoTime() - start))
+                .handle((response, ex) -> {
+                    if (ex == null) {
+                        return response;
+                    }
+                    log.debug("TCP query to {} failed: {}", upstream, unwrap(ex).toString());
+                    return truncated;
+                });
+    }
+
+    private static boolean truncated(byte[] response) {
+        return readBits(readU16(response, 2), 9, 1) == 1;
+    }
+
+    private CompletableFuture<byte[]> send(Upstream upstream, byte[] request, Duration timeout) {
+        return hedgePolicy == null || selector.upstreams().size() < 2
+                ? exchange(upstream, request, timeout)
+                : hedgedExchange(upstream, request, timeout);
+    }
+
+    /**
+     * Sends the query to the primary upstream and, if it has not answered after the hedge delay and the budget
+     * allows, to a second one. The first answer completes the query and cancels the other attempt; the query only
+     * fails once every attempt has failed.
+     */
+    private CompletableFuture<byte[]> hedgedExchange(Upstream primary, byte[] request, Duration timeout) {
+        hedgePolicy.earn();
+
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        List<CompletableFuture<byte[]>> attempts = new CopyOnWriteArrayList<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+
+        attempts.add(attempt(primary, request, timeout, result, outstanding));
+
+        Duration delay = hedgePolicy.delay(primary);
+        CompletableFuture.delayedExecutor(delay.toNanos(), TimeUnit.NANOSECONDS).execute(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            Upstream secondary = selector.select(primary);
+            if (secondary == primary || !hedgePolicy.tryAcquire()) {
+                return;
+            }
+            if (outstanding.getAndUpdate(n -> n == 0 ? 0 : n + 1) == 0) {
+                return;
+            }
+            log.debug("Hedging query to {} after {}", secondary, delay);
+            attempts.add(attempt(secondary, request, timeout, result, outstanding));
+            if (result.isDone()) {
+                attempts.forEach(attempt -> attempt.cancel(false));
+            }
+        });
+
+        result.whenComplete((response, ex) -> attempts.forEach(attempt -> attempt.cancel(false)));
+        return result;
+    }
 
-                return right(dnsResponse);
+    private static CompletableFuture<byte[]> attempt(Upstream upstream,
+                                                     byte[] request,
+                                                     Duration timeout,
+                                                     CompletableFuture<byte[]> result,
+                                                     AtomicInteger outstanding) {
+        CompletableFuture<byte[]> attempt = exchangeAsync(upstream, request, timeout);
+        attempt.whenComplete((response, ex) -> {
+            if (ex == null) {
+                result.complete(response);
+            } else if (outstanding.decrementAndGet() == 0) {
+                result.completeExceptionally(ex);
             }
+        });
+        return attempt;
+    }
+
+    /**
+     * Returns the transport's own future, so cancelling it reaches the transport. A cancelled exchange was abandoned
+     * rather than failed and does not count against the upstream.
+     */
+    private static CompletableFuture<byte[]> exchange(Upstream upstream, byte[] request, Duration timeout) {
+        long start = System.nanoTime();
+        CompletableFuture<byte[]> exchange = upstream.transport().exchange(request, timeout);
+        exchange.whenComplete((response, ex) -> {
+            if (ex == null) {
+                upstream.recordSuccess(Duration.ofNanos(System.nanoTime() - start));
+            } else if (!exchange.isCancelled()) {
+                upstream.recordFailure();
+            }
+        });
+        return exchange;
+    }
+
+    /**
+     * Starts {@link #exchange} on another thread. A transport may answer on the calling thread, as
+     * {@link VirtualThreadUdpTransport} does when called from a virtual thread, and would otherwise block the hedge from
+     * being scheduled until the primary attempt is over. Cancelling the returned future cancels the exchange.
+     */
+    private static CompletableFuture<byte[]> exchangeAsync(Upstream upstream, byte[] request, Duration timeout) {
+        CompletableFuture<byte[]> attempt = new CompletableFuture<>();
+        CompletableFuture.runAsync(() -> {
+            if (attempt.isDone()) {
+                return;
+            }
+            CompletableFuture<byte[]> exchange;
+            try {
+                exchange = exchange(upstream, request, timeout);
+            } catch (RuntimeException e) {
+                attempt.completeExceptionally(e);
+                return;
+            }
+            exchange.whenComplete((response, ex) -> {
+                if (ex == null) {
+                    attempt.complete(response);
+                } else {
+                    attempt.completeExceptionally(ex);
+                }
+            });
+            attempt.whenComplete((response, ex) -> exchange.cancel(false));
+        });
+        return attempt;
+    }
+
+    public List<Upstream> upstreams() {
+        return selector.upstreams();
+    }
+
+    private Either<DNSError, DNSMessage> toEither(byte[] response) {
+        DNSMessage dnsResponse = converter.toDNSResponse(response);
 
-        } catch (SocketTimeoutException e) {
+        Rcode rcode = dnsResponse.header().rcode();
+        if (rcode != Rcode.NOERROR && rcode != Rcode.NAMEERR) {
             return left(
-                    new DNSError.UpstreamTimeout(Duration.ofSeconds(TIMEOUT_SECONDS)),
-                    converter.toDNSErrorResponse(message)
+                    new DNSError.RcodeFailure(rcode),
+                    converter.toDNSErrorResponse(dnsResponse)
             );
-        } catch (IOException e) {
+        }
+
+        return right(dnsResponse);
+    }
+
+    private Either<DNSError, byte[]> toRawEither(byte[] response) {
+        Rcode rcode = Rcode.fromInt(readBits(readU16(response, 2), 0, 4));
+        if (rcode != Rcode.NOERROR && rcode != Rcode.NAMEERR) {
             return left(
-                    new DNSError.UpstreamFailure(e),
-                    converter.toDNSErrorResponse(message)
+                    new DNSError.RcodeFailure(rcode),
+                    converter.toDNSResponse(converter.toDNSErrorResponse(converter.toDNSResponse(response)))
             );
         }
+
+        return right(response);
     }
 
-    private Either<DNSError, DNSMessage> handleFailure(Throwable ex, DNSMessage message) {
+    private Either<DNSError, DNSMessage> handleFailure(Throwable ex, DNSMessage message, Duration elapsed) {
         Throwable cause = unwrap(ex);
+
+        if (cause instanceof SocketTimeoutException || cause instanceof TimeoutException) {
+            return left(
+                    new DNSError.UpstreamTimeout(elapsed),
+                    converter.toDNSErrorResponse(message)
+            );
+        }
+
+        if (cause instanceof IOException) {
+            return left(
+                    new DNSError.UpstreamFailure(cause),
+                    converter.toDNSErrorResponse(message)
+            );
+        }
+
         log.error("DNS client failure", cause);
 
         return left(
@@ -95,14 +361,31 @@ public final class DNSClient implements AutoCloseable {
 
     @Override
     public void close() {
-        socket.close();
-        executor.shutdownNow();
+        selector.upstreams().forEach(Upstream::close);
     }
 
     private static Throwable unwrap(Throwable t) {
-        if (t instanceof CompletionException || t instanceof ExecutionException) {
-            return t.getCause() != null ? t.getCause() : t;
+        while ((t instanceof CompletionException || t instanceof ExecutionException || t instanceof UncheckedIOException)
+                && t.getCause() != null) {
+            t = t.getCause();
         }
         return t;
     }
+
+    /**
+     * How queries share the upstream socket.
+     * <ul>
+     *     <li>{@code SERIAL}: one query in flight at a time, each waiting for its response before the next is sent</li>
+     *     <li>{@code MULTIPLEXED}: any number of queries in flight, matched to responses by transaction ID and question</li>
+     *     <li>{@code VIRTUAL_THREAD}: each query blocks on its own socket from its own virtual thread</li>
+     *     <li>{@code TCP}: no UDP at all, queries are pipelined over a small pool of persistent TCP connections, for
+     *     upstreams where UDP is lossy</li>
+     * </ul>
+     */
+    public enum Mode {
+        SERIAL,
+        MULTIPLEXED,
+        VIRTUAL_THREAD,
+        TCP
+    }
 }
@@ -1,44 +1,197 @@
 package com.ake3m.dns.handling;
 
+import com.ake3m.dns.converter.WireQuestion;
 import com.ake3m.dns.model.DNSMessage;
+import com.ake3m.dns.model.Rcode;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 
+/**
+ * Runs a query through its stages and hands it to the forwarder. The request interceptors, the response interceptors
+ * and the configured {@link Stage}s form one asynchronous chain in that order, ending in the forwarder; a stage that
+ * answers on its own ends the query there, and only the stages before it see the response.
+ */
 public class DNSHandler implements DNSServer.Handler {
-    private final DNSClient dnsClient;
-    private final Function<DNSMessage, DNSMessage> requestInterceptor;
-    private final Function<DNSMessage, DNSMessage> responseInterceptor;
+    private final Forwarder forwarder;
+    private final List<Stage> stages;
+    private final SingleFlight singleFlight = new SingleFlight();
+    private final boolean passThrough;
 
-    public DNSHandler(DNSClient dnsClient, List<Interceptor> requestInterceptors, List<Interceptor> responseInterceptors) {
-        this.dnsClient = dnsClient;
-        this.requestInterceptor = intercept(requestInterceptors);
-        this.responseInterceptor = intercept(responseInterceptors);
+    public DNSHandler(Forwarder forwarder, List<Interceptor> requestInterceptors, List<Interceptor> responseInterceptors) {
+        this(forwarder, requestInterceptors, responseInterceptors, List.of());
+    }
+
+    public DNSHandler(Forwarder forwarder,
+                      List<Interceptor> requestInterceptors,
+                      List<Interceptor> responseInterceptors,
+                      List<Stage> stages) {
+        this.forwarder = forwarder;
+        List<Stage> chain = new ArrayList<>();
+        if (!requestInterceptors.isEmpty()) {
+            chain.add(new InterceptorStage(requestInterceptors, true));
+        }
+        if (!responseInterceptors.isEmpty()) {
+            chain.add(new InterceptorStage(responseInterceptors, false));
+        }
+        chain.addAll(stages);
+        this.stages = List.copyOf(chain);
+        this.passThrough = forwarder.forwardsRaw() && this.stages.stream().noneMatch(Stage::needsMessage);
     }
 
     @Override
     public CompletableFuture<Either<DNSError, DNSMessage>> handle(DNSMessage request) {
-        return dnsClient
-                .forward(requestInterceptor.apply(request))
-                .thenApply(e -> e.mapRight(responseInterceptor));
+        return proceed(0, request);
     }
 
-    private Function<DNSMessage, DNSMessage> intercept(List<Interceptor> interceptors) {
-        return (DNSMessage message) -> {
-            Chain chain = msg -> msg;
-            for (Interceptor interceptor : interceptors) {
-                message = interceptor.intercept(message, chain);
-            }
-            return message;
-        };
+    private CompletableFuture<Either<DNSError, DNSMessage>> proceed(int index, DNSMessage request) {
+        if (index == stages.size()) {
+            return singleFlight.forward(request, forwarder);
+        }
+        return stages.get(index).apply(request, next -> proceed(index + 1, next));
+    }
+
+    /**
+     * Relays standard single-question queries without decoding them when no stage needs the message and the
+     * forwarder can forward raw bytes. Anything else is left to {@link #handle(DNSMessage)}.
+     */
+    @Override
+    public CompletableFuture<Either<DNSError, byte[]>> handleRaw(byte[] query, int length) {
+        if (!passThrough) {
+            return null;
+        }
+        WireQuestion question = WireQuestion.of(query, length);
+        if (question == null) {
+            return null;
+        }
+        return proceedRaw(0, Arrays.copyOf(query, length), question);
+    }
+
+    private CompletableFuture<Either<DNSError, byte[]>> proceedRaw(int index, byte[] query, WireQuestion question) {
+        if (index == stages.size()) {
+            return singleFlight.forwardRaw(query, question, forwarder);
+        }
+        return stages.get(index).applyRaw(query, question, next -> proceedRaw(index + 1, next, question));
     }
 
+    public interface Forwarder {
+        CompletableFuture<Either<DNSError, DNSMessage>> forward(DNSMessage request);
+
+        /**
+         * Whether {@link #forwardRaw(byte[])} is supported.
+         */
+        default boolean forwardsRaw() {
+            return false;
+        }
+
+        /**
+         * Forwards an undecoded query and completes with the undecoded response, addressed to the query's ID. A
+         * forwarder that does not support it answers every query with a bare SERVFAIL.
+         */
+        default CompletableFuture<Either<DNSError, byte[]>> forwardRaw(byte[] query) {
+            byte[] servfail = new byte[WireQuestion.HEADER_LENGTH];
+            System.arraycopy(query, 0, servfail, 0, 2);
+            // QR set, opcode and RD kept, counts left at zero
+            servfail[2] = (byte) (0x80 | (query[2] & 0x79));
+            servfail[3] = (byte) Rcode.SERVFAIL.code();
+            return CompletableFuture.completedFuture(Either.left(
+                    new DNSError.InternalError(new UnsupportedOperationException(getClass().getName() + " does not forward raw queries")),
+                    servfail));
+        }
+    }
+
+    /**
+     * A synchronous step that sees every request before it is forwarded, or every response after. Interceptors run
+     * as a stage of their own, so they cannot answer a query themselves; use a {@link Stage} for that.
+     */
     public interface Interceptor {
         DNSMessage intercept(DNSMessage request, Chain chain);
+
+        /**
+         * Whether the interceptor has anything to do with the message. When none of the configured interceptors do,
+         * queries skip decoding and the interceptors altogether.
+         */
+        default boolean needsMessage() {
+            return true;
+        }
     }
 
     public interface Chain {
         DNSMessage next(DNSMessage request);
     }
+
+    /**
+     * An asynchronous step of the chain. A stage passes the request on, as it is or rewritten, with
+     * {@link Next#proceed} and may then work on the response; or it completes with a response of its own without
+     * calling {@code next}, and neither the later stages nor the upstream see the query.
+     */
+    public interface Stage {
+        CompletableFuture<Either<DNSError, DNSMessage>> apply(DNSMessage request, Next next);
+
+        /**
+         * Whether the stage needs the decoded message. When no stage does, queries are relayed undecoded through
+         * {@link #applyRaw}.
+         */
+        default boolean needsMessage() {
+            return true;
+        }
+
+        /**
+         * Runs the stage on an undecoded query and its {@link WireQuestion}. Only called when no stage needs the
+         * message; the default passes the query on untouched. A stage may change the ID or flags of the query it passes
+         * on, but not its question.
+         */
+        default CompletableFuture<Either<DNSError, byte[]>> applyRaw(byte[] query, WireQuestion question, RawNext next) {
+            return next.proceed(query);
+        }
+    }
+
+    public interface Next {
+        CompletableFuture<Either<DNSError, DNSMessage>> proceed(DNSMessage request);
+    }
+
+    public interface RawNext {
+        CompletableFuture<Either<DNSError, byte[]>> proceed(byte[] query);
+    }
+
+    /**
+     * Runs a list of interceptors as one stage, on the request on its way in or on the response on its way out.
+     */
+    private static final class InterceptorStage implements Stage {
+        private final Function<DNSMessage, DNSMessage> intercept;
+        private final boolean request;
+        private final boolean needsMessage;
+
+        InterceptorStage(List<Interceptor> interceptors, boolean request) {
+            this.intercept = intercept(interceptors);
+            this.request = request;
+            this.needsMessage = interceptors.stream().anyMatch(Interceptor::needsMessage);
+        }
+
+        @Override
+        public CompletableFuture<Either<DNSError, DNSMessage>> apply(DNSMessage message, Next next) {
+            if (request) {
+                return next.proceed(intercept.apply(message));
+            }
+            return next.proceed(message).thenApply(response -> response.mapRight(intercept));
+        }
+
+        @Override
+        public boolean needsMessage() {
+            return needsMessage;
+        }
+
+        private static Function<DNSMessage, DNSMessage> intercept(List<Interceptor> interceptors) {
+            return (DNSMessage message) -> {
+                Chain chain = msg -> msg;
+                for (Interceptor interceptor : interceptors) {
+                    message = interceptor.intercept(message, chain);
+                }
+                return message;
+            };
+        }
+    }
 }
@@ -1,59 +1,425 @@
 package com.ake3m.dns.handling;
 
+import com.ake3m.dns.handling.transport.TcpFraming;
 import com.ake3m.dns.model.DNSMessage;
+import com.ake3m.dns.model.Edns;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 public class DNSServer {
     private static final Logger log = LoggerFactory.getLogger(DNSServer.class);
     private final int port;
     private final Handler handler;
     private final Converter converter;
+    private final Engine engine;
+    private final int workers;
+    private final ExecutionMode executionMode;
+    private final ExecutorService virtualThreads;
+    private final Tcp tcp;
 
     public DNSServer(int port,
                      Handler handler,
                      Converter converter) {
+        this(port, handler, converter, Engine.SOCKET, 1);
+    }
+
+    public DNSServer(int port,
+                     Handler handler,
+                     Converter converter,
+                     Engine engine,
+                     int workers) {
+        this(port, handler, converter, engine, workers, ExecutionMode.ASYNC);
+    }
+
+    public DNSServer(int port,
+                     Handler handler,
+                     Converter converter,
+                     Engine engine,
+                     int workers,
+                     ExecutionMode executionMode) {
+        this(port, handler, converter, engine, workers, executionMode, null);
+    }
+
+    /**
+     * @param tcp when not {@code null}, queries are also accepted over TCP on the same port
+     */
+    public DNSServer(int port,
+                     Handler handler,
+                     Converter converter,
+                     Engine engine,
+                     int workers,
+                     ExecutionMode executionMode,
+                     Tcp tcp) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1: " + workers);
+        }
         this.port = port;
         this.handler = handler;
         this.converter = converter;
+        this.engine = engine;
+        this.workers = workers;
+        this.executionMode = executionMode;
+        this.virtualThreads = executionMode == ExecutionMode.VIRTUAL_THREAD
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : null;
+        this.tcp = tcp;
     }
 
     public void start() throws IOException {
+        if (tcp != null) {
+            ServerSocket serverSocket = new ServerSocket(port);
+            Thread listener = new Thread(() -> listen(serverSocket), "dns-server-tcp");
+            listener.setDaemon(true);
+            listener.start();
+        }
+        switch (engine) {
+            case SOCKET -> startSocket();
+            case CHANNEL -> startChannels();
+        }
+    }
+
+    private void startSocket() throws IOException {
         try (DatagramSocket serverSocket = new DatagramSocket(port)) {
+            final byte[] requestBuffer = new byte[Edns.MAX_PAYLOAD_SIZE];
+            DatagramPacket requestPacket = new DatagramPacket(requestBuffer, requestBuffer.length);
             while (true) {
-                final byte[] requestBuffer = new byte[512];
-                DatagramPacket requestPacket = new DatagramPacket(requestBuffer, requestBuffer.length);
+                requestPacket.setLength(requestBuffer.length);
                 serverSocket.receive(requestPacket);
-                byte[] in = requestPacket.getData();
+                byte[] in = Arrays.copyOf(requestBuffer, requestPacket.getLength());
+                SocketAddress client = requestPacket.getSocketAddress();
+
+                try {
+                    log.info("Received dns packet");
+                    dispatch(in, in.length, false, out -> send(serverSocket, new DatagramPacket(out, out.length, client)));
+                } catch (RuntimeException e) {
+                    log.error("Dropping malformed dns packet", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Binds one channel per worker to the same port with SO_REUSEPORT so the kernel spreads datagrams across
+     * independent receive loops. Without SO_REUSEPORT all workers share a single channel.
+     */
+    private void startChannels() throws IOException {
+        List<DatagramChannel> channels = new ArrayList<>();
+        try {
+            DatagramChannel first = DatagramChannel.open();
+            channels.add(first);
+            boolean reusePort = workers > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (workers > 1 && !reusePort) {
+                log.warn("SO_REUSEPORT is not supported, {} workers will share one channel", workers);
+            }
 
+            for (int i = 1; i < (reusePort ? workers : 1); i++) {
+                channels.add(DatagramChannel.open());
+            }
+            for (DatagramChannel channel : channels) {
+                if (reusePort) {
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channel.bind(new InetSocketAddress(port));
+            }
+
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                DatagramChannel channel = channels.get(i % channels.size());
+                Thread thread = new Thread(() -> receive(channel), "dns-server-" + i);
+                thread.start();
+                threads.add(thread);
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (DatagramChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+
+    private void receive(DatagramChannel channel) {
+        ByteBuffer requestBuffer = ByteBuffer.allocate(Edns.MAX_PAYLOAD_SIZE);
+        while (channel.isOpen()) {
+            SocketAddress client;
+            try {
+                requestBuffer.clear();
+                client = channel.receive(requestBuffer);
+            } catch (IOException e) {
+                if (channel.isOpen()) {
+                    log.error("Failed to receive dns packet", e);
+                }
+                return;
+            }
+
+            byte[] in = new byte[requestBuffer.flip().remaining()];
+            requestBuffer.get(in);
+
+            try {
                 log.info("Received dns packet");
-                DNSMessage request = converter.toDNSRequest(in);
-                handler.handle(request)
-                        .thenAccept(response -> {
-                            switch (response) {
-                                case Either.Left<DNSError, DNSMessage> left -> {
-                                    log.error("Error handling dns packet: {}", left.error());
-                                    send(left.data(), requestPacket, serverSocket);
-                                }
-                                case Either.Right<DNSError, DNSMessage> right -> {
-                                    log.info("Responding to dns packet");
-                                    send(right.data(), requestPacket, serverSocket);
+                dispatch(in, in.length, false, out -> send(channel, ByteBuffer.wrap(out), client));
+            } catch (RuntimeException e) {
+                log.error("Dropping malformed dns packet", e);
+            }
+        }
+    }
+
+    /**
+     * Accepts TCP connections and serves each on its own virtual thread. Connections beyond
+     * {@link Tcp#maxConnections()} are closed as soon as they are accepted.
+     */
+    private void listen(ServerSocket serverSocket) {
+        ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+        ScheduledThreadPoolExecutor stalls = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "dns-server-tcp-stalls");
+            thread.setDaemon(true);
+            return thread;
+        });
+        stalls.setRemoveOnCancelPolicy(true);
+        Semaphore open = new Semaphore(tcp.maxConnections());
+        try (serverSocket) {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                if (!open.tryAcquire()) {
+                    log.warn("Refusing TCP connection from {}, {} are open", socket.getRemoteSocketAddress(), tcp.maxConnections());
+                    socket.close();
+                    continue;
+                }
+                connections.execute(() -> {
+                    try {
+                        serve(socket, connections, stalls);
+                    } finally {
+                        open.release();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            log.error("TCP listener failed", e);
+        }
+    }
+
+    /**
+     * Reads pipelined queries off one connection and writes each answer as soon as it is ready, so answers can go out
+     * in another order than the queries came in, as
+     * <a href="https://www.rfc-editor.org/rfc/rfc7766#section-6.2.1.1">RFC 7766 6.2.1.1. Query Pipelining</a> allows.
+     * Reading stops while {@link Tcp#maxInFlight()} queries of the connection are unanswered. The connection is
+     * closed when the client closes it, stalls in the middle of a query, or sends nothing for
+     * {@link Tcp#idleTimeout()} while no query is outstanding, and by its {@link Writer} when the client stops reading.
+     */
+    private void serve(Socket socket, ExecutorService connections, ScheduledExecutorService stalls) {
+        Semaphore inFlight = new Semaphore(tcp.maxInFlight());
+        Future<?> writing = null;
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout((int) Math.max(1, tcp.idleTimeout().toMillis()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Writer writer = new Writer(socket, tcp, stalls);
+            writing = connections.submit(writer);
+
+            while (true) {
+                int first;
+                try {
+                    first = in.read();
+                } catch (SocketTimeoutException e) {
+                    if (inFlight.availablePermits() == tcp.maxInFlight()) {
+                        log.debug("Closing idle TCP connection from {}", socket.getRemoteSocketAddress());
+                        return;
+                    }
+                    continue;
+                }
+                if (first < 0) {
+                    return;
+                }
+                byte[] query = new byte[(first << 8) | in.readUnsignedByte()];
+                in.readFully(query);
+
+                inFlight.acquire();
+                log.info("Received dns packet over TCP");
+                try {
+                    dispatch(query, query.length, true, writer::enqueue)
+                            .whenComplete((ignored, ex) -> {
+                                inFlight.release();
+                                if (ex != null) {
+                                    log.error("Error handling dns packet", ex);
                                 }
-                            }
-                        });
+                            });
+                } catch (RuntimeException e) {
+                    inFlight.release();
+                    log.error("Dropping malformed dns packet", e);
+                }
+            }
+        } catch (IOException e) {
+            log.debug("TCP connection from {} closed: {}", socket.getRemoteSocketAddress(), e.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (writing != null) {
+                writing.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Writes the answers of one TCP connection on a virtual thread of the connection's own. Whatever thread completes
+     * a query, often one shared by every query such as an upstream transport's reader, only queues the answer and
+     * never waits for the client. The connection is closed when a write takes longer than {@link Tcp#writeTimeout()}
+     * or {@link Tcp#maxInFlight()} answers are waiting to be written, both signs that the client stopped reading.
+     */
+    private static final class Writer implements Runnable {
+        private final Socket socket;
+        private final Duration writeTimeout;
+        private final ScheduledExecutorService stalls;
+        private final BlockingQueue<byte[]> answers;
+
+        Writer(Socket socket, Tcp tcp, ScheduledExecutorService stalls) {
+            this.socket = socket;
+            this.writeTimeout = tcp.writeTimeout();
+            this.stalls = stalls;
+            this.answers = new ArrayBlockingQueue<>(tcp.maxInFlight());
+        }
+
+        void enqueue(byte[] response) {
+            if (!answers.offer(response)) {
+                log.debug("Closing TCP connection from {}, {} answers are waiting to be written",
+                        socket.getRemoteSocketAddress(), answers.size());
+                close();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                OutputStream out = socket.getOutputStream();
+                while (true) {
+                    byte[] response = answers.take();
+                    ScheduledFuture<?> stall = stalls.schedule(this::stalled, writeTimeout.toNanos(), TimeUnit.NANOSECONDS);
+                    try {
+                        TcpFraming.writeFrame(out, response);
+                    } finally {
+                        stall.cancel(false);
+                    }
+                }
+            } catch (IOException e) {
+                log.debug("Failed to answer over TCP, closing connection: {}", e.toString());
+                close();
+            } catch (InterruptedException e) {
+                // the connection is done
+            }
+        }
+
+        private void stalled() {
+            log.debug("Closing TCP connection from {}, writing an answer took longer than {} ms",
+                    socket.getRemoteSocketAddress(), writeTimeout.toMillis());
+            close();
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
             }
         }
     }
 
-    private void send(DNSMessage left, DatagramPacket requestPacket, DatagramSocket serverSocket) {
-        byte[] out = converter.toDNSResponse(left);
-        DatagramPacket responsePacket = new DatagramPacket(out, out.length, requestPacket.getSocketAddress());
-        send(serverSocket, responsePacket);
+    /**
+     * Hands the query to the handler. Over TCP the response is not held to a UDP payload size. Caching is left to the
+     * handler's forwarder, behind its stages, so a stage such as the blocklist sees every query, and the answers it
+     * makes up itself are never cached.
+     */
+    private CompletableFuture<Void> dispatch(byte[] in, int length, boolean tcp, Consumer<byte[]> sender) {
+        return switch (executionMode) {
+            case ASYNC -> handle(in, length, tcp, sender);
+            case VIRTUAL_THREAD -> CompletableFuture.runAsync(() -> {
+                try {
+                    handle(in, length, tcp, sender).join();
+                } catch (RuntimeException e) {
+                    log.error("Dropping malformed dns packet", e);
+                }
+            }, virtualThreads);
+        };
+    }
+
+    /**
+     * Raw responses come back whole, as the upstream or a cache behind the handler has them, and are fitted to the
+     * transport here; decoded ones are encoded for it.
+     */
+    private CompletableFuture<Void> handle(byte[] in, int length, boolean tcp, Consumer<byte[]> sender) {
+        CompletableFuture<Either<DNSError, byte[]>> raw = handler.handleRaw(in, length);
+        if (raw != null) {
+            return raw.thenAccept(response -> respond(response, out -> tcp ? out : fit(in, out), sender));
+        }
+        DNSMessage request = converter.toDNSRequest(in);
+        Edns edns = Edns.of(request);
+        int limit = tcp ? Converter.MAX_MESSAGE_LENGTH : Edns.udpLimit(edns);
+        return handler.handle(request).thenAccept(response ->
+                respond(response.mapRight(out -> converter.toDNSResponse(out, edns, limit)), UnaryOperator.identity(), sender));
+    }
+
+    /**
+     * Re-encodes a response that was not built for this query, from a cache or another query's upstream exchange,
+     * when it is larger than the query's UDP payload size allows.
+     */
+    private byte[] fit(byte[] in, byte[] response) {
+        if (response.length <= Edns.MIN_PAYLOAD_SIZE) {
+            return response;
+        }
+        Edns edns = Edns.of(converter.toDNSRequest(in));
+        if (response.length <= Edns.udpLimit(edns)) {
+            return response;
+        }
+        return converter.toDNSResponse(converter.toDNSResponse(response), edns);
+    }
+
+    /**
+     * Sends a successful response through {@code fit}, which sizes it for the transport.
+     */
+    private void respond(Either<DNSError, byte[]> response, UnaryOperator<byte[]> fit, Consumer<byte[]> sender) {
+        switch (response) {
+            case Either.Left<DNSError, byte[]> left -> {
+                log.error("Error handling dns packet: {}", left.error());
+                sender.accept(left.data());
+            }
+            case Either.Right<DNSError, byte[]> right -> {
+                log.info("Responding to dns packet");
+                sender.accept(fit.apply(right.data()));
+            }
+        }
     }
 
     private static void send(DatagramSocket serverSocket, DatagramPacket responsePacket) {
@@ -64,7 +430,57 @@ public class DNSServer {
         }
     }
 
+    private static void send(DatagramChannel channel, ByteBuffer response, SocketAddress client) {
+        try {
+            channel.send(response, client);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public interface Handler {
         CompletableFuture<Either<DNSError, DNSMessage>> handle(DNSMessage message);
+
+        /**
+         * Handles a query without decoding it, or returns {@code null} when it has to go through
+         * {@link #handle(DNSMessage)}.
+         */
+        default CompletableFuture<Either<DNSError, byte[]>> handleRaw(byte[] query, int length) {
+            return null;
+        }
+    }
+
+    /**
+     * Limits of the TCP listener.
+     *
+     * @param idleTimeout    how long a connection without outstanding queries may stay silent before it is closed
+     * @param maxConnections how many connections may be open at once
+     * @param maxInFlight    how many queries of one connection may be unanswered before reading from it pauses
+     * @param writeTimeout   how long writing one answer may take before the connection is closed
+     */
+    public record Tcp(Duration idleTimeout, int maxConnections, int maxInFlight, Duration writeTimeout) {
+        public static final Tcp DEFAULT = new Tcp(Duration.ofSeconds(10), 1000, 100, Duration.ofSeconds(5));
+
+        public Tcp {
+            if (maxConnections < 1 || maxInFlight < 1) {
+                throw new IllegalArgumentException("TCP limits must be at least 1: " + maxConnections + ", " + maxInFlight);
+            }
+        }
+
+        public Tcp(Duration idleTimeout, int maxConnections, int maxInFlight) {
+            this(idleTimeout, maxConnections, maxInFlight, DEFAULT.writeTimeout());
+        }
+    }
+
+    /**
+     * How datagrams are received.
+     * <ul>
+     *     <li>{@code SOCKET}: a single blocking {@link DatagramSocket} receive loop on the calling thread</li>
+     *     <li>{@code CHANNEL}: one {@link DatagramChannel} receive loop per worker, bound with SO_REUSEPORT</li>
+     * </ul>
+     */
+    public enum Engine {
+        SOCKET,
+        CHANNEL
     }
 }
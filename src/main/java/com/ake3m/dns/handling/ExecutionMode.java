@@ -0,0 +1,13 @@
+package com.ake3m.dns.handling;
+
+/**
+ * Where a query's work runs.
+ * <ul>
+ *     <li>{@code ASYNC}: a CompletableFuture pipeline, continuing on whichever thread completes each stage</li>
+ *     <li>{@code VIRTUAL_THREAD}: one virtual thread per query that blocks on upstream I/O and parks cheaply</li>
+ * </ul>
+ */
+public enum ExecutionMode {
+    ASYNC,
+    VIRTUAL_THREAD
+}
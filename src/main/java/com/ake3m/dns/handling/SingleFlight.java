@@ -0,0 +1,140 @@
+package com.ake3m.dns.handling;
+
+import com.ake3m.dns.converter.WireQuestion;
+import com.ake3m.dns.model.DNSHeader;
+import com.ake3m.dns.model.DNSMessage;
+import com.ake3m.dns.model.DNSQuestion;
+import com.ake3m.dns.model.Edns;
+import com.ake3m.dns.model.Name;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import static com.ake3m.dns.converter.ByteConverter.readBits;
+import static com.ake3m.dns.converter.ByteConverter.readU16;
+import static com.ake3m.dns.converter.ByteConverter.writeU16;
+
+/**
+ * Coalesces concurrent identical questions onto one upstream query. The first request for a question is forwarded;
+ * requests for the same question that arrive before it completes share its answer, re-addressed to their own
+ * transaction ID and question.
+ */
+public class SingleFlight {
+    private final ConcurrentHashMap<Key, CompletableFuture<Either<DNSError, DNSMessage>>> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<RawKey, CompletableFuture<Either<DNSError, byte[]>>> rawInFlight = new ConcurrentHashMap<>();
+
+    public CompletableFuture<Either<DNSError, DNSMessage>> forward(DNSMessage request, DNSHandler.Forwarder forwarder) {
+        if (request.questions().length != 1 || request.header().opcode() != 0) {
+            return forwarder.forward(request);
+        }
+
+        Key key = Key.of(request);
+        CompletableFuture<Either<DNSError, DNSMessage>> leader = new CompletableFuture<>();
+        CompletableFuture<Either<DNSError, DNSMessage>> existing = inFlight.putIfAbsent(key, leader);
+
+        if (existing != null) {
+            return existing.thenApply(response -> response.mapRight(message -> readdress(message, request)));
+        }
+
+        call(() -> forwarder.forward(request)).whenComplete((response, ex) -> {
+            inFlight.remove(key, leader);
+            if (ex != null) {
+                leader.completeExceptionally(ex);
+            } else {
+                leader.complete(response);
+            }
+        });
+        return leader;
+    }
+
+    /**
+     * Coalesces undecoded queries the same way, keyed by their wire question. Waiters get a copy of the response with
+     * their own ID and, when the response echoes the question, their own spelling of the name.
+     */
+    public CompletableFuture<Either<DNSError, byte[]>> forwardRaw(byte[] query, WireQuestion question, DNSHandler.Forwarder forwarder) {
+        RawKey key = new RawKey(question, readBits(readU16(query, 2), 8, 1));
+        CompletableFuture<Either<DNSError, byte[]>> leader = new CompletableFuture<>();
+        CompletableFuture<Either<DNSError, byte[]>> existing = rawInFlight.putIfAbsent(key, leader);
+
+        if (existing != null) {
+            return existing.thenApply(response -> response.mapRight(message -> readdress(message, query, question)));
+        }
+
+        call(() -> forwarder.forwardRaw(query)).whenComplete((response, ex) -> {
+            rawInFlight.remove(key, leader);
+            if (ex != null) {
+                leader.completeExceptionally(ex);
+            } else {
+                leader.complete(response);
+            }
+        });
+        return leader;
+    }
+
+    /**
+     * Turns a forwarder that throws instead of returning a failed future into one that fails, so the leader is still
+     * completed and removed and its waiters do not hang.
+     */
+    private static <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> forward) {
+        try {
+            return forward.get();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public int inFlight() {
+        return inFlight.size() + rawInFlight.size();
+    }
+
+    private static byte[] readdress(byte[] message, byte[] query, WireQuestion question) {
+        byte[] out = Arrays.copyOf(message, message.length);
+        writeU16(out, 0, readU16(query, 0));
+        if (question.isQuestionOf(message)) {
+            System.arraycopy(query, WireQuestion.HEADER_LENGTH, out, WireQuestion.HEADER_LENGTH, question.end() - WireQuestion.HEADER_LENGTH);
+        }
+        return out;
+    }
+
+    private static DNSMessage readdress(DNSMessage message, DNSMessage request) {
+        DNSHeader header = message.header().withId(request.header().id());
+        if (message.header().qdcount() != request.questions().length
+                || Arrays.equals(message.questions(), request.questions())) {
+            return message.withHeader(header);
+        }
+        return new DNSMessage(
+                header,
+                request.questions(),
+                message.answers(),
+                message.authorityRecords(),
+                message.additionalRecords()
+        );
+    }
+
+    /**
+     * The wire question already tells apart the CD and DO bits.
+     */
+    private record RawKey(WireQuestion question, int rd) {
+    }
+
+    /**
+     * Requests that differ in RD, CD or DO get different answers from the upstream, so they are not coalesced.
+     */
+    private record Key(Name qname, int qtype, int qclass, int rd, int cd, boolean dnssecOk) {
+
+        static Key of(DNSMessage request) {
+            DNSQuestion question = request.questions()[0];
+            Edns edns = Edns.of(request);
+            return new Key(
+                    question.name(),
+                    question.typeCode(),
+                    question.classCode(),
+                    request.header().rd(),
+                    request.header().z() & 1,
+                    edns != null && edns.dnssecOk()
+            );
+        }
+    }
+}
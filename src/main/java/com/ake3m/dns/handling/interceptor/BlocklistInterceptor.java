@@ -0,0 +1,134 @@
+package com.ake3m.dns.handling.interceptor;
+
+import com.ake3m.dns.converter.WireQuestion;
+import com.ake3m.dns.handling.DNSError;
+import com.ake3m.dns.handling.DNSHandler;
+import com.ake3m.dns.handling.Either;
+import com.ake3m.dns.model.DNSHeader;
+import com.ake3m.dns.model.DNSMessage;
+import com.ake3m.dns.model.DNSQuestion;
+import com.ake3m.dns.model.DNSRecord;
+import com.ake3m.dns.model.Name;
+import com.ake3m.dns.model.QClass;
+import com.ake3m.dns.model.QType;
+import com.ake3m.dns.model.Rcode;
+import com.ake3m.dns.policy.DomainTrie;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static com.ake3m.dns.converter.ByteConverter.readU16;
+import static com.ake3m.dns.converter.ByteConverter.writeU16;
+
+/**
+ * Answers queries for blocked domains and their subdomains itself, so they never reach the upstream. Depending on the
+ * {@link Answer}, a blocked name does not exist, or resolves to the unspecified address for A and AAAA and to no
+ * records for other types. Works on the raw query as well, so blocking does not force queries to be decoded.
+ */
+public class BlocklistInterceptor implements DNSHandler.Stage {
+    private static final Logger log = LoggerFactory.getLogger(BlocklistInterceptor.class);
+    public static final long BLOCKED_TTL = 300;
+
+    private final Supplier<DomainTrie> blocklist;
+    private final Answer answer;
+
+    public BlocklistInterceptor(DomainTrie blocklist, Answer answer) {
+        this(() -> blocklist, answer);
+    }
+
+    /**
+     * Checks each query against whatever blocklist {@code blocklist} supplies at the time, such as a
+     * {@link com.ake3m.dns.policy.ReloadingPolicy}. The supplier is called once per query and must not block.
+     */
+    public BlocklistInterceptor(Supplier<DomainTrie> blocklist, Answer answer) {
+        this.blocklist = blocklist;
+        this.answer = answer;
+    }
+
+    @Override
+    public CompletableFuture<Either<DNSError, DNSMessage>> apply(DNSMessage request, DNSHandler.Next next) {
+        if (request.questions().length != 1 || !blocklist.get().matches(request.questions()[0].name())) {
+            return next.proceed(request);
+        }
+        DNSQuestion question = request.questions()[0];
+        log.debug("Blocked {}", question.qname());
+
+        String address = address(question.typeCode(), question.classCode());
+        DNSRecord[] answers = address == null
+                ? new DNSRecord[]{}
+                : new DNSRecord[]{new DNSRecord(question.name(), question.qtype(), question.qclass(), BLOCKED_TTL, address.equals("::") ? 16 : 4, address)};
+        DNSHeader h = request.header();
+        DNSHeader header = new DNSHeader(h.id(), 1, h.opcode(), 0, 0, h.rd(), 1, 0,
+                answer == Answer.NXDOMAIN ? Rcode.NAMEERR : Rcode.NOERROR, 1, answers.length, 0, 0);
+        return CompletableFuture.completedFuture(Either.right(
+                new DNSMessage(header, request.questions(), answers, new DNSRecord[]{}, new DNSRecord[]{})));
+    }
+
+    @Override
+    public boolean needsMessage() {
+        return false;
+    }
+
+    /**
+     * Checks the name where it lies in the query and writes the answer after a copy of the question.
+     */
+    @Override
+    public CompletableFuture<Either<DNSError, byte[]>> applyRaw(byte[] query, WireQuestion question, DNSHandler.RawNext next) {
+        if (!blocklist.get().matches(query, WireQuestion.HEADER_LENGTH)) {
+            return next.proceed(query);
+        }
+        int end = question.end();
+        if (log.isDebugEnabled()) {
+            log.debug("Blocked {}", Name.ofWire(Arrays.copyOfRange(query, WireQuestion.HEADER_LENGTH, end - 4)));
+        }
+
+        String address = address(readU16(query, end - 4), readU16(query, end - 2));
+        int rdlength = address == null ? 0 : address.equals("::") ? 16 : 4;
+        byte[] response = new byte[end + (address == null ? 0 : 12 + rdlength)];
+        System.arraycopy(query, 0, response, 0, end);
+        // QR and RA set, opcode and RD kept, everything else cleared
+        response[2] = (byte) (0x80 | (query[2] & 0x79));
+        response[3] = (byte) (0x80 | (answer == Answer.NXDOMAIN ? Rcode.NAMEERR : Rcode.NOERROR).code());
+        writeU16(response, 6, address == null ? 0 : 1);
+        writeU16(response, 8, 0);
+        writeU16(response, 10, 0);
+        if (address != null) {
+            writeU16(response, end, 0xC000 | WireQuestion.HEADER_LENGTH);
+            System.arraycopy(query, end - 4, response, end + 2, 4);
+            writeU16(response, end + 6, (int) (BLOCKED_TTL >>> 16));
+            writeU16(response, end + 8, (int) (BLOCKED_TTL & 0xFFFF));
+            writeU16(response, end + 10, rdlength);
+        }
+        return CompletableFuture.completedFuture(Either.right(response));
+    }
+
+    /**
+     * The address a blocked name resolves to for the question type, or {@code null} when the answer has no records.
+     */
+    private String address(int typeCode, int classCode) {
+        if (answer == Answer.NXDOMAIN || classCode != QClass.IN.code()) {
+            return null;
+        }
+        if (typeCode == QType.A.code()) {
+            return "0.0.0.0";
+        }
+        if (typeCode == QType.AAAA.code()) {
+            return "::";
+        }
+        return null;
+    }
+
+    public enum Answer {
+        /**
+         * The name does not exist.
+         */
+        NXDOMAIN,
+        /**
+         * The name resolves to {@code 0.0.0.0} or {@code ::}, which clients cannot connect to.
+         */
+        NULL_ADDRESS
+    }
+}
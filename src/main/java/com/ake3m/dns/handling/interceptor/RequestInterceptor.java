@@ -10,7 +10,15 @@ public class RequestInterceptor implements DNSHandler.Interceptor {
 
     @Override
     public DNSMessage intercept(DNSMessage message, DNSHandler.Chain chain) {
-        log.info("Received request: {}", message);
+        log.debug("Received request: {}", message);
         return chain.next(message);
     }
+
+    /**
+     * Only logs, so the message is needed only when debug logging is on.
+     */
+    @Override
+    public boolean needsMessage() {
+        return log.isDebugEnabled();
+    }
 }
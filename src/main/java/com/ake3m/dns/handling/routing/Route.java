@@ -0,0 +1,92 @@
+package com.ake3m.dns.handling.routing;
+
+import com.ake3m.dns.handling.DNSClient;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where queries for names under {@code suffix} go, and how: the upstreams of the pool and the client mode, per-query
+ * deadline and response cache size it is built with. A routes file has one route per line:
+ * <pre>
+ * # suffix        upstreams                       options
+ * corp.internal   10.0.0.53,10.0.0.54:5353        deadline=1500 cache=1000
+ * .               8.8.8.8,1.1.1.1                 mode=multiplexed
+ * </pre>
+ * Options are {@code mode=serial|multiplexed|virtual_thread|tcp}, {@code deadline=<millis>} and
+ * {@code cache=<entries>} (0 turns the cache off). The suffix {@code .} replaces the default upstreams.
+ */
+public record Route(String suffix, List<InetSocketAddress> upstreams, DNSClient.Mode mode, Duration deadline, int cacheSize) {
+    public static final int DEFAULT_CACHE_SIZE = 1_000;
+
+    public static List<Route> load(Path file) throws IOException {
+        List<Route> routes = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                try {
+                    Route route = parse(line);
+                    if (route != null) {
+                        routes.add(route);
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid route on line " + number + " of " + file + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        return routes;
+    }
+
+    /**
+     * Parses one line of a routes file, returning {@code null} for blank lines and comments.
+     */
+    public static Route parse(String line) {
+        int comment = line.indexOf('#');
+        String[] parts = (comment < 0 ? line : line.substring(0, comment)).trim().split("\\s+");
+        if (parts[0].isEmpty()) {
+            return null;
+        }
+        if (parts.length < 2) {
+            throw new IllegalArgumentException("expected a suffix and upstreams: " + line.trim());
+        }
+
+        DNSClient.Mode mode = DNSClient.Mode.MULTIPLEXED;
+        Duration deadline = DNSClient.DEFAULT_DEADLINE;
+        int cacheSize = DEFAULT_CACHE_SIZE;
+        for (int i = 2; i < parts.length; i++) {
+            String[] option = parts[i].split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("expected key=value: " + parts[i]);
+            }
+            switch (option[0].toLowerCase()) {
+                case "mode" -> mode = DNSClient.Mode.valueOf(option[1].toUpperCase());
+                case "deadline" -> deadline = Duration.ofMillis(Long.parseLong(option[1]));
+                case "cache" -> cacheSize = Integer.parseInt(option[1]);
+                default -> throw new IllegalArgumentException("unknown option: " + option[0]);
+            }
+        }
+        return new Route(parts[0], upstreams(parts[1]), mode, deadline, cacheSize);
+    }
+
+    /**
+     * Parses a comma-separated list of {@code host[:port]} upstreams, port 53 by default.
+     */
+    public static List<InetSocketAddress> upstreams(String list) {
+        List<InetSocketAddress> upstreams = new ArrayList<>();
+        for (String upstream : list.split(",")) {
+            var value = upstream.split(":");
+            int port = value.length > 1 ? Integer.parseInt(value[1].trim()) : 53;
+            upstreams.add(new InetSocketAddress(value[0].trim(), port));
+        }
+        return upstreams;
+    }
+}
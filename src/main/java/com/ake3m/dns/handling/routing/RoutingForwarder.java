@@ -0,0 +1,49 @@
+package com.ake3m.dns.handling.routing;
+
+import com.ake3m.dns.converter.WireQuestion;
+import com.ake3m.dns.handling.DNSError;
+import com.ake3m.dns.handling.DNSHandler;
+import com.ake3m.dns.handling.Either;
+import com.ake3m.dns.model.DNSMessage;
+import com.ake3m.dns.policy.SuffixTable;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Sends each query to the forwarder of the longest routed suffix of its name, and to the fallback when no suffix
+ * matches. The routes are read from {@code routes} on every query, so a {@link com.ake3m.dns.policy.ReloadingPolicy}
+ * can replace them while queries are in flight. Raw queries are routed by the name in the query bytes; the routed
+ * forwarders must be able to forward raw queries whenever the fallback can.
+ */
+public class RoutingForwarder implements DNSHandler.Forwarder {
+    private final Supplier<SuffixTable<DNSHandler.Forwarder>> routes;
+    private final DNSHandler.Forwarder fallback;
+
+    public RoutingForwarder(Supplier<SuffixTable<DNSHandler.Forwarder>> routes, DNSHandler.Forwarder fallback) {
+        this.routes = routes;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public CompletableFuture<Either<DNSError, DNSMessage>> forward(DNSMessage request) {
+        if (request.questions().length == 0) {
+            return fallback.forward(request);
+        }
+        return orFallback(routes.get().lookup(request.questions()[0].name())).forward(request);
+    }
+
+    @Override
+    public boolean forwardsRaw() {
+        return fallback.forwardsRaw();
+    }
+
+    @Override
+    public CompletableFuture<Either<DNSError, byte[]>> forwardRaw(byte[] query) {
+        return orFallback(routes.get().lookup(query, WireQuestion.HEADER_LENGTH)).forwardRaw(query);
+    }
+
+    private DNSHandler.Forwarder orFallback(DNSHandler.Forwarder route) {
+        return route != null ? route : fallback;
+    }
+}
@@ -0,0 +1,111 @@
+package com.ake3m.dns.handling.routing;
+
+import com.ake3m.dns.cache.CachingForwarder;
+import com.ake3m.dns.cache.ResponseCache;
+import com.ake3m.dns.cache.WireCache;
+import com.ake3m.dns.handling.Converter;
+import com.ake3m.dns.handling.DNSClient;
+import com.ake3m.dns.handling.DNSHandler;
+import com.ake3m.dns.policy.SuffixTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Builds the routing table for a list of {@link Route}s, with one {@link DNSClient} per route, and its own
+ * {@link ResponseCache} and {@link WireCache} when the route has a cache size, so {@code cache=0} turns caching off for
+ * decoded and raw queries alike. Rebuilding keeps the pool of every route that did not change, with its sockets,
+ * upstream statistics and caches, and closes the pools of routes that went away once queries already sent to them have
+ * had their deadline to finish.
+ */
+public final class UpstreamPools implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(UpstreamPools.class);
+
+    private final Converter converter;
+    private final Duration tcpKeepalive;
+    private final ReentrantLock lock = new ReentrantLock();
+    private Map<Route, Pool> pools = new HashMap<>();
+
+    public UpstreamPools(Converter converter, Duration tcpKeepalive) {
+        this.converter = converter;
+        this.tcpKeepalive = tcpKeepalive;
+    }
+
+    public SuffixTable<DNSHandler.Forwarder> build(List<Route> routes) throws IOException {
+        lock.lock();
+        try {
+            Map<Route, Pool> next = new HashMap<>();
+            Map<String, DNSHandler.Forwarder> table = new LinkedHashMap<>();
+            try {
+                for (Route route : routes) {
+                    Pool pool = next.get(route);
+                    if (pool == null) {
+                        pool = pools.containsKey(route) ? pools.get(route) : open(route);
+                        next.put(route, pool);
+                    }
+                    table.put(route.suffix(), pool.forwarder());
+                }
+            } catch (IOException | RuntimeException e) {
+                next.forEach((route, pool) -> {
+                    if (!pools.containsKey(route)) {
+                        pool.client().close();
+                    }
+                });
+                throw e;
+            }
+
+            pools.forEach((route, pool) -> {
+                if (!next.containsKey(route)) {
+                    log.info("Closing upstream pool for {} in {} ms", route.suffix(), route.deadline().toMillis());
+                    CompletableFuture.delayedExecutor(route.deadline().toMillis(), TimeUnit.MILLISECONDS)
+                            .execute(pool.client()::close);
+                }
+            });
+            pools = next;
+            return SuffixTable.of(table);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Pool open(Route route) throws IOException {
+        log.info("Opening upstream pool for {} to {}", route.suffix(), route.upstreams());
+        DNSClient client = new DNSClient(route.upstreams(), converter, route.mode(), null, route.deadline(), tcpKeepalive);
+        DNSHandler.Forwarder forwarder = route.cacheSize() > 0
+                ? new CachingForwarder(client, new ResponseCache(route.cacheSize()), new WireCache(route.cacheSize()))
+                : client;
+        return new Pool(client, forwarder);
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return pools.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            pools.values().forEach(pool -> pool.client().close());
+            pools = new HashMap<>();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private record Pool(DNSClient client, DNSHandler.Forwarder forwarder) {
+    }
+}
@@ -0,0 +1,115 @@
+package com.ake3m.dns.handling.transport;
+
+import com.ake3m.dns.model.Edns;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.ake3m.dns.converter.ByteConverter.readU16;
+import static com.ake3m.dns.converter.ByteConverter.writeU16;
+
+/**
+ * Many queries in flight over a single connected socket. Senders never wait on the socket: a dedicated reader thread
+ * drains responses and completes the matching future from {@link PendingQueries}, matching on the bytes without
+ * decoding them. Responses that match nothing (late, duplicated, malformed or for another question) are dropped.
+ */
+public final class MultiplexedUdpTransport implements Transport {
+    private static final Logger log = LoggerFactory.getLogger(MultiplexedUdpTransport.class);
+
+    private final DatagramSocket socket;
+    private final PendingQueries pending = new PendingQueries();
+    private final Thread reader;
+
+    public MultiplexedUdpTransport(InetSocketAddress upstream) throws SocketException {
+        this.socket = new DatagramSocket();
+        this.socket.connect(upstream);
+
+        this.reader = new Thread(this::readLoop, "dns-client-reader");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    @Override
+    public CompletableFuture<byte[]> exchange(byte[] query, Duration timeout) {
+        int originalId = readU16(query, 0);
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        PendingQueries.Key key;
+        try {
+            key = pending.register(query, future);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        byte[] out = Arrays.copyOf(query, query.length);
+        writeU16(out, 0, key.id());
+
+        try {
+            socket.send(new DatagramPacket(out, out.length));
+        } catch (IOException e) {
+            pending.remove(key, future);
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<byte[]> result = future
+                .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((response, ex) -> pending.remove(key, future))
+                .thenApply(response -> {
+                    writeU16(response, 0, originalId);
+                    return response;
+                });
+        // cancelling the returned stage does not reach the pending future, so release its ID here
+        result.whenComplete((response, ex) -> {
+            if (result.isCancelled()) {
+                pending.remove(key, future);
+                future.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    private void readLoop() {
+        byte[] buffer = new byte[Edns.MAX_PAYLOAD_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    log.error("Upstream socket failure", e);
+                }
+                break;
+            }
+
+            byte[] response = Arrays.copyOf(packet.getData(), packet.getLength());
+            CompletableFuture<byte[]> future = pending.take(response);
+            if (future == null) {
+                log.debug("Dropping unmatched upstream response");
+                continue;
+            }
+            future.complete(response);
+        }
+
+        pending.failAll(new SocketException("Upstream socket closed"));
+    }
+
+    public int inFlight() {
+        return pending.size();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        reader.interrupt();
+    }
+}
@@ -0,0 +1,64 @@
+package com.ake3m.dns.handling.transport;
+
+import com.ake3m.dns.converter.WireQuestion;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.ake3m.dns.converter.ByteConverter.readU16;
+
+/**
+ * Outstanding upstream queries keyed by the transaction ID they were sent with and their question, so a response is
+ * only ever matched to the query that produced it. Both are read straight from the bytes; the question is compared as
+ * spelled, so an answer that changed the case of the name does not match.
+ */
+public final class PendingQueries {
+    private static final int MAX_ID_ATTEMPTS = 64;
+
+    private final ConcurrentHashMap<Key, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the future under a random transaction ID that is not already in flight for the query's question.
+     */
+    public Key register(byte[] query, CompletableFuture<byte[]> future) {
+        WireQuestion question = WireQuestion.exact(query, query.length);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < MAX_ID_ATTEMPTS; i++) {
+            Key key = new Key(random.nextInt(0x10000), question);
+            if (pending.putIfAbsent(key, future) == null) {
+                return key;
+            }
+        }
+        throw new IllegalStateException("No free transaction ID for the question");
+    }
+
+    /**
+     * Removes and returns the future waiting on the response, or {@code null} when the response is late, duplicated,
+     * was never asked for or too short to be a DNS message.
+     */
+    public CompletableFuture<byte[]> take(byte[] response) {
+        if (response.length < WireQuestion.HEADER_LENGTH) {
+            return null;
+        }
+        return pending.remove(new Key(readU16(response, 0), WireQuestion.exact(response, response.length)));
+    }
+
+    public void remove(Key key, CompletableFuture<byte[]> future) {
+        pending.remove(key, future);
+    }
+
+    public void failAll(Throwable cause) {
+        pending.values().removeIf(future -> {
+            future.completeExceptionally(cause);
+            return true;
+        });
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    public record Key(int id, WireQuestion question) {
+    }
+}
@@ -0,0 +1,302 @@
+package com.ake3m.dns.handling.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serial;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.ake3m.dns.converter.ByteConverter.readU16;
+import static com.ake3m.dns.converter.ByteConverter.writeU16;
+
+/**
+ * A small pool of persistent TCP connections to one upstream. Each connection carries any number of pipelined queries
+ * under their own transaction IDs, and a reader thread per connection completes them from {@link PendingQueries} in
+ * whatever order the upstream answers, matching each answer on its bytes without decoding it. A query goes to the
+ * least busy connection, and another connection is opened, up to the pool size, while every open one has queries
+ * outstanding.
+ * <p>
+ * A connection that fails or is closed by the upstream leaves the pool and the next query opens a fresh one; a query
+ * that was written to a connection the upstream had already closed is sent once more on a new connection. A connection
+ * without outstanding queries is closed after the keepalive.
+ */
+public final class PooledTcpTransport implements Transport {
+    private static final Logger log = LoggerFactory.getLogger(PooledTcpTransport.class);
+    public static final int DEFAULT_CONNECTIONS = 2;
+    public static final Duration DEFAULT_KEEPALIVE = Duration.ofSeconds(30);
+
+    private final InetSocketAddress upstream;
+    private final int maxConnections;
+    private final Duration keepalive;
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    private final ReentrantLock openLock = new ReentrantLock();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile boolean closed;
+
+    public PooledTcpTransport(InetSocketAddress upstream) {
+        this(upstream, DEFAULT_CONNECTIONS, DEFAULT_KEEPALIVE);
+    }
+
+    public PooledTcpTransport(InetSocketAddress upstream, int maxConnections, Duration keepalive) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1: " + maxConnections);
+        }
+        this.upstream = upstream;
+        this.maxConnections = maxConnections;
+        this.keepalive = keepalive;
+    }
+
+    /**
+     * Connecting and the one resend after a connection closed under the query all come out of {@code timeout}.
+     */
+    @Override
+    public CompletableFuture<byte[]> exchange(byte[] query, Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        Connection connection = pick();
+        CompletableFuture<byte[]> result = connection != null
+                ? connection.exchange(query, timeout)
+                : openAndExchange(query, deadline);
+        return result.exceptionallyCompose(ex -> {
+            if (!(unwrap(ex) instanceof ConnectionClosed) || closed) {
+                return CompletableFuture.failedFuture(ex);
+            }
+            log.debug("TCP connection to {} was closed under a query, sending it on a new one", upstream);
+            return openAndExchange(query, deadline);
+        });
+    }
+
+    private CompletableFuture<byte[]> openAndExchange(byte[] query, long deadline) {
+        if (deadline - System.nanoTime() <= 0) {
+            return CompletableFuture.failedFuture(new TimeoutException("No time left to query " + upstream + " over TCP"));
+        }
+        return CompletableFuture
+                .supplyAsync(() -> open(Duration.ofNanos(deadline - System.nanoTime())), executor)
+                .thenCompose(opened -> {
+                    long remaining = deadline - System.nanoTime();
+                    return remaining > 0
+                            ? opened.exchange(query, Duration.ofNanos(remaining))
+                            : CompletableFuture.failedFuture(new TimeoutException("Connecting to " + upstream + " took the whole timeout"));
+                });
+    }
+
+    /**
+     * The least busy open connection, or {@code null} when there is none or another one should be opened.
+     */
+    private Connection pick() {
+        Connection best = null;
+        for (Connection connection : connections) {
+            if (best == null || connection.pending.size() < best.pending.size()) {
+                best = connection;
+            }
+        }
+        if (best == null || (best.pending.size() > 0 && connections.size() < maxConnections)) {
+            return null;
+        }
+        return best;
+    }
+
+    private Connection open(Duration timeout) {
+        openLock.lock();
+        try {
+            Connection idle = pick();
+            if (idle != null) {
+                return idle;
+            }
+            if (closed) {
+                throw new UncheckedIOException(new SocketException("Transport closed"));
+            }
+            Connection connection = new Connection(connect(timeout));
+            connections.add(connection);
+            executor.execute(connection::readLoop);
+            return connection;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            openLock.unlock();
+        }
+    }
+
+    private Socket connect(Duration timeout) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(upstream, (int) Math.max(1, timeout.toMillis()));
+            socket.setSoTimeout((int) Math.max(1, keepalive.toMillis()));
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public int connections() {
+        return connections.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        connections.forEach(connection -> connection.close(new SocketException("Transport closed")));
+        executor.shutdownNow();
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof UncheckedIOException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    private final class Connection {
+        private final Socket socket;
+        private final OutputStream out;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final PendingQueries pending = new PendingQueries();
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+
+        CompletableFuture<byte[]> exchange(byte[] query, Duration timeout) {
+            int originalId = readU16(query, 0);
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            PendingQueries.Key key;
+            try {
+                key = pending.register(query, future);
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+
+            byte[] framed = Arrays.copyOf(query, query.length);
+            writeU16(framed, 0, key.id());
+            try {
+                executor.execute(() -> write(framed));
+            } catch (RejectedExecutionException e) {
+                pending.remove(key, future);
+                return CompletableFuture.failedFuture(new ConnectionClosed(null));
+            }
+
+            CompletableFuture<byte[]> result = future
+                    .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                    .whenComplete((response, ex) -> pending.remove(key, future))
+                    .thenApply(response -> {
+                        writeU16(response, 0, originalId);
+                        return response;
+                    });
+            // cancelling the returned stage does not reach the pending future, so release its ID here
+            result.whenComplete((response, ex) -> {
+                if (result.isCancelled()) {
+                    pending.remove(key, future);
+                    future.cancel(false);
+                }
+            });
+            return result;
+        }
+
+        /**
+         * Runs on the executor, so the caller, which may be the reader thread of another transport, never waits for
+         * the upstream to drain its receive buffer. A failed write fails every query on the connection, this one
+         * included, with {@link ConnectionClosed}.
+         */
+        private void write(byte[] framed) {
+            writeLock.lock();
+            try {
+                TcpFraming.writeFrame(out, framed);
+            } catch (IOException e) {
+                close(new ConnectionClosed(e));
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Completes queries as their answers arrive. Ends when the upstream closes the connection, reading fails, or
+         * the keepalive passes without an answer while nothing is outstanding.
+         */
+        void readLoop() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (true) {
+                    int first;
+                    try {
+                        first = in.read();
+                    } catch (SocketTimeoutException e) {
+                        if (pending.size() == 0) {
+                            log.debug("Closing idle TCP connection to {}", upstream);
+                            close(new ConnectionClosed(e));
+                            return;
+                        }
+                        continue;
+                    }
+                    if (first < 0) {
+                        close(new ConnectionClosed(null));
+                        return;
+                    }
+                    byte[] response = new byte[(first << 8) | in.readUnsignedByte()];
+                    in.readFully(response);
+                    complete(response);
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    log.debug("TCP connection to {} failed: {}", upstream, e.toString());
+                }
+                close(new ConnectionClosed(e));
+            }
+        }
+
+        private void complete(byte[] response) {
+            CompletableFuture<byte[]> future = pending.take(response);
+            if (future == null) {
+                log.debug("Dropping unmatched upstream response");
+                return;
+            }
+            future.complete(response);
+        }
+
+        void close(IOException cause) {
+            connections.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            pending.failAll(cause);
+        }
+    }
+
+    /**
+     * The connection a query was on went away before it was answered.
+     */
+    static final class ConnectionClosed extends SocketException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        ConnectionClosed(IOException cause) {
+            super("TCP connection closed");
+            if (cause != null) {
+                initCause(cause);
+            }
+        }
+    }
+}
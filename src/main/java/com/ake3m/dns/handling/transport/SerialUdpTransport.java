@@ -0,0 +1,78 @@
+package com.ake3m.dns.handling.transport;
+
+import com.ake3m.dns.model.Edns;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.ake3m.dns.converter.ByteConverter.readU16;
+
+/**
+ * One query at a time over a single connected socket: the request is sent and the response awaited while holding
+ * the socket, so every other query queues behind it.
+ */
+public final class SerialUdpTransport implements Transport {
+
+    private final DatagramSocket socket;
+    private final ExecutorService executor;
+
+    public SerialUdpTransport(InetSocketAddress upstream) throws SocketException {
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "dns-client");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.socket = new DatagramSocket();
+        this.socket.connect(upstream);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> exchange(byte[] query, Duration timeout) {
+        return CompletableFuture.supplyAsync(() -> sendAndReceive(query, timeout), executor);
+    }
+
+    /**
+     * Skips responses whose ID is not the query's, such as a late answer to an earlier query that timed out, until
+     * the timeout runs out.
+     */
+    private byte[] sendAndReceive(byte[] query, Duration timeout) {
+        try {
+
+            synchronized (socket) {
+                long deadline = System.nanoTime() + timeout.toNanos();
+                socket.send(new DatagramPacket(query, query.length));
+
+                byte[] buffer = new byte[Edns.MAX_PAYLOAD_SIZE];
+                DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+                do {
+                    // a timeout of 0 would wait forever
+                    socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                    response.setLength(buffer.length);
+                    socket.receive(response);
+                } while (response.getLength() < 2 || readU16(buffer, 0) != readU16(query, 0));
+
+                return Arrays.copyOf(response.getData(), response.getLength());
+            }
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,39 @@
+package com.ake3m.dns.handling.transport;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static com.ake3m.dns.converter.ByteConverter.writeU16;
+
+/**
+ * The two-byte length prefix DNS messages carry over TCP, as described in
+ * <a href="https://www.rfc-editor.org/rfc/rfc1035#section-4.2.2">RFC 1035 4.2.2. TCP usage</a>.
+ */
+public final class TcpFraming {
+
+    private TcpFraming() {
+    }
+
+    /**
+     * Writes the message after its length, in one write so the prefix does not go out in a segment of its own.
+     */
+    public static void writeFrame(OutputStream out, byte[] message) throws IOException {
+        byte[] frame = new byte[message.length + 2];
+        writeU16(frame, 0, message.length);
+        System.arraycopy(message, 0, frame, 2, message.length);
+        out.write(frame);
+        out.flush();
+    }
+
+    /**
+     * Reads one length-prefixed message, throwing {@link java.io.EOFException} when the stream ends first.
+     */
+    public static byte[] readFrame(InputStream in) throws IOException {
+        DataInputStream data = in instanceof DataInputStream stream ? stream : new DataInputStream(in);
+        byte[] message = new byte[data.readUnsignedShort()];
+        data.readFully(message);
+        return message;
+    }
+}
@@ -0,0 +1,16 @@
+package com.ake3m.dns.handling.transport;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends a wire-format DNS query to a single upstream and completes with the wire-format response.
+ * Implementations must restore the caller's transaction ID in the returned bytes.
+ */
+public interface Transport extends AutoCloseable {
+
+    CompletableFuture<byte[]> exchange(byte[] query, Duration timeout);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,70 @@
+package com.ake3m.dns.handling.transport;
+
+import com.ake3m.dns.model.Edns;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.ake3m.dns.converter.ByteConverter.readU16;
+
+/**
+ * Each query runs on its own virtual thread with its own ephemeral socket, so a blocking receive only parks that
+ * query. Callers that are already on a virtual thread run the exchange inline.
+ */
+public final class VirtualThreadUdpTransport implements Transport {
+
+    private final InetSocketAddress upstream;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public VirtualThreadUdpTransport(InetSocketAddress upstream) {
+        this.upstream = upstream;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> exchange(byte[] query, Duration timeout) {
+        if (!Thread.currentThread().isVirtual()) {
+            return CompletableFuture.supplyAsync(() -> sendAndReceive(query, timeout), executor);
+        }
+
+        try {
+            return CompletableFuture.completedFuture(sendAndReceive(query, timeout));
+        } catch (UncheckedIOException e) {
+            return CompletableFuture.failedFuture(e.getCause());
+        }
+    }
+
+    private byte[] sendAndReceive(byte[] query, Duration timeout) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            long deadline = System.nanoTime() + timeout.toNanos();
+            socket.connect(upstream);
+            socket.send(new DatagramPacket(query, query.length));
+
+            byte[] buffer = new byte[Edns.MAX_PAYLOAD_SIZE];
+            DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+            do {
+                // a timeout of 0 would wait forever
+                socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                response.setLength(buffer.length);
+                socket.receive(response);
+            } while (response.getLength() < 2 || readU16(buffer, 0) != readU16(query, 0));
+
+            return Arrays.copyOf(response.getData(), response.getLength());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
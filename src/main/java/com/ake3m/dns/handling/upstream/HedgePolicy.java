@@ -0,0 +1,62 @@
+package com.ake3m.dns.handling.upstream;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When to send a hedged copy of a query to a second upstream: after the primary upstream's {@code percentile} latency
+ * has passed without an answer. A global token bucket caps hedges at {@code budgetRatio} of queries (plus a small
+ * burst), so hedging cannot double upstream load under stress.
+ */
+public class HedgePolicy {
+    public static final int MIN_SAMPLES = 20;
+    public static final Duration DEFAULT_DELAY = Duration.ofMillis(100);
+    private static final long TOKEN = 1000;
+    private static final long BURST = 10 * TOKEN;
+
+    private final double percentile;
+    private final Duration minDelay;
+    private final long earnedPerQuery;
+    private final AtomicLong tokens = new AtomicLong(BURST);
+
+    public HedgePolicy(double percentile, Duration minDelay, double budgetRatio) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1: " + percentile);
+        }
+        this.percentile = percentile;
+        this.minDelay = minDelay;
+        this.earnedPerQuery = Math.round(budgetRatio * TOKEN);
+    }
+
+    /**
+     * The primary upstream's latency percentile, or {@link #DEFAULT_DELAY} until it has enough samples, and never
+     * below the configured minimum.
+     */
+    public Duration delay(Upstream primary) {
+        Duration delay = primary.latency().count() >= MIN_SAMPLES
+                ? primary.latency().percentile(percentile)
+                : DEFAULT_DELAY;
+        return delay.compareTo(minDelay) < 0 ? minDelay : delay;
+    }
+
+    /**
+     * Credits the budget for one query.
+     */
+    public void earn() {
+        tokens.getAndUpdate(t -> Math.min(BURST, t + earnedPerQuery));
+    }
+
+    /**
+     * Takes one hedge from the budget, if there is one left.
+     */
+    public boolean tryAcquire() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < TOKEN) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+}
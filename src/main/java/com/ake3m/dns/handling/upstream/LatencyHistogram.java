@@ -0,0 +1,82 @@
+package com.ake3m.dns.handling.upstream;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of recent latencies: four buckets per power of two microseconds, so a percentile is
+ * accurate to within about 19%. Once {@link #DECAY_THRESHOLD} samples have accumulated every count is halved, which
+ * keeps the percentiles tracking recent behaviour.
+ */
+public class LatencyHistogram {
+    public static final long DECAY_THRESHOLD = 2048;
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int BUCKETS = 40 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicBoolean decaying = new AtomicBoolean();
+
+    public void record(Duration latency) {
+        counts.incrementAndGet(bucketOf(Math.max(1, latency.toNanos() / 1000)));
+        if (total.incrementAndGet() >= DECAY_THRESHOLD && decaying.compareAndSet(false, true)) {
+            long remaining = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = counts.get(i);
+                long halved = count >>> 1;
+                counts.addAndGet(i, halved - count);
+                remaining += halved;
+            }
+            total.set(remaining);
+            decaying.set(false);
+        }
+    }
+
+    public long count() {
+        return total.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, or {@link Duration#ZERO} without samples.
+     */
+    public Duration percentile(double percentile) {
+        long samples = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            samples += counts.get(i);
+        }
+        if (samples == 0) {
+            return Duration.ZERO;
+        }
+
+        long rank = (long) Math.ceil(percentile * samples);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Duration.ofNanos(upperBoundMicros(i) * 1000);
+            }
+        }
+        return Duration.ofNanos(upperBoundMicros(BUCKETS - 1) * 1000);
+    }
+
+    private static int bucketOf(long micros) {
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent < SUB_BUCKET_BITS) {
+            return (int) micros;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        return Math.min(BUCKETS - 1, ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub);
+    }
+
+    private static long upperBoundMicros(int bucket) {
+        int octave = bucket >>> SUB_BUCKET_BITS;
+        int sub = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+        if (octave == 0) {
+            return sub + 1;
+        }
+        int exponent = octave + SUB_BUCKET_BITS - 1;
+        return ((long) ((1 << SUB_BUCKET_BITS) + sub + 1)) << (exponent - SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,55 @@
+package com.ake3m.dns.handling.upstream;
+
+import java.time.Duration;
+
+/**
+ * Smoothed round-trip time and variance of one upstream, updated as exponentially weighted moving averages the way
+ * <a href="https://www.rfc-editor.org/rfc/rfc6298#section-2">RFC 6298 2. The Basic Algorithm</a> does for TCP, and the
+ * retransmission timeout derived from them.
+ */
+public class RttEstimator {
+    public static final Duration INITIAL_RTO = Duration.ofSeconds(1);
+    public static final Duration MIN_RTO = Duration.ofMillis(100);
+    public static final Duration MAX_RTO = Duration.ofSeconds(5);
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+
+    private double srtt;
+    private double rttvar;
+    private long samples;
+
+    public synchronized void record(Duration rtt) {
+        double r = rtt.toNanos();
+        if (samples++ == 0) {
+            srtt = r;
+            rttvar = r / 2;
+            return;
+        }
+        rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - r);
+        srtt = (1 - ALPHA) * srtt + ALPHA * r;
+    }
+
+    public synchronized Duration srtt() {
+        return Duration.ofNanos((long) srtt);
+    }
+
+    public synchronized Duration rttvar() {
+        return Duration.ofNanos((long) rttvar);
+    }
+
+    /**
+     * SRTT + 4 * RTTVAR clamped to [{@link #MIN_RTO}, {@link #MAX_RTO}], or {@link #INITIAL_RTO} before the first
+     * sample. The DNS clamps are far tighter than TCP's one second floor since resolvers answer in milliseconds.
+     */
+    public synchronized Duration rto() {
+        if (samples == 0) {
+            return INITIAL_RTO;
+        }
+        long rto = (long) (srtt + 4 * rttvar);
+        return Duration.ofNanos(Math.max(MIN_RTO.toNanos(), Math.min(MAX_RTO.toNanos(), rto)));
+    }
+
+    public synchronized long samples() {
+        return samples;
+    }
+}
@@ -0,0 +1,114 @@
+package com.ake3m.dns.handling.upstream;
+
+import com.ake3m.dns.handling.transport.Transport;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * An upstream resolver, the transports used to reach it and what has been observed about it. After
+ * {@link #FAILURE_THRESHOLD} consecutive failures it is considered unhealthy. Once {@link #BACKOFF} has elapsed a single
+ * query may probe it; it stays unhealthy until a query succeeds, and every failed probe starts the backoff over.
+ */
+public class Upstream implements AutoCloseable {
+    public static final int FAILURE_THRESHOLD = 3;
+    public static final Duration BACKOFF = Duration.ofSeconds(5);
+
+    private final InetSocketAddress address;
+    private final Transport transport;
+    private final Transport tcp;
+    private final RttEstimator rtt = new RttEstimator();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongSupplier nanoClock;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong unhealthyUntil = new AtomicLong();
+
+    public Upstream(InetSocketAddress address, Transport transport) {
+        this(address, transport, null, System::nanoTime);
+    }
+
+    public Upstream(InetSocketAddress address, Transport transport, LongSupplier nanoClock) {
+        this(address, transport, null, nanoClock);
+    }
+
+    /**
+     * @param tcp the transport truncated answers are repeated over, or {@code null} to hand them back as they are
+     */
+    public Upstream(InetSocketAddress address, Transport transport, Transport tcp, LongSupplier nanoClock) {
+        this.address = address;
+        this.transport = transport;
+        this.tcp = tcp;
+        this.nanoClock = nanoClock;
+    }
+
+    public InetSocketAddress address() {
+        return address;
+    }
+
+    public Transport transport() {
+        return transport;
+    }
+
+    public Transport tcp() {
+        return tcp;
+    }
+
+    public RttEstimator rtt() {
+        return rtt;
+    }
+
+    public LatencyHistogram latency() {
+        return latency;
+    }
+
+    public void recordSuccess(Duration elapsed) {
+        rtt.record(elapsed);
+        latency.record(elapsed);
+        consecutiveFailures.set(0);
+    }
+
+    public void recordFailure() {
+        if (consecutiveFailures.incrementAndGet() >= FAILURE_THRESHOLD) {
+            unhealthyUntil.set(nanoClock.getAsLong() + BACKOFF.toNanos());
+        }
+    }
+
+    public int consecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    public boolean healthy() {
+        return consecutiveFailures.get() < FAILURE_THRESHOLD;
+    }
+
+    /**
+     * Claims the probe of an unhealthy upstream whose backoff has elapsed. Only the first caller gets {@code true}, and
+     * the backoff starts over so the next probe waits for this one to fail.
+     */
+    public boolean tryProbe() {
+        if (healthy()) {
+            return false;
+        }
+        long until = unhealthyUntil.get();
+        long now = nanoClock.getAsLong();
+        return now - until >= 0 && unhealthyUntil.compareAndSet(until, now + BACKOFF.toNanos());
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+        if (tcp != null) {
+            tcp.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return address + "{srtt=" + TimeUnit.NANOSECONDS.toMicros(rtt.srtt().toNanos()) + "us, healthy=" + healthy() + "}";
+    }
+}
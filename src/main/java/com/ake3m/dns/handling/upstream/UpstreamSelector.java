@@ -0,0 +1,95 @@
+package com.ake3m.dns.handling.upstream;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Routes each query to the healthy upstream with the lowest smoothed RTT. A small share of queries goes to a random
+ * healthy upstream instead so that the estimates of the others stay fresh, and upstreams that have been neither
+ * sampled nor failed are tried first. An unhealthy upstream whose backoff has elapsed gets a single probe query while
+ * the rest keep going to the healthy ones. When every upstream is unhealthy they are all fair game.
+ */
+public class UpstreamSelector {
+    public static final double DEFAULT_EXPLORATION = 0.05;
+
+    private final List<Upstream> upstreams;
+    private final double exploration;
+
+    public UpstreamSelector(List<Upstream> upstreams) {
+        this(upstreams, DEFAULT_EXPLORATION);
+    }
+
+    public UpstreamSelector(List<Upstream> upstreams, double exploration) {
+        if (upstreams.isEmpty()) {
+            throw new IllegalArgumentException("At least one upstream is required");
+        }
+        this.upstreams = List.copyOf(upstreams);
+        this.exploration = exploration;
+    }
+
+    public Upstream select() {
+        return select(null);
+    }
+
+    /**
+     * Picks an upstream other than {@code exclude} when there is one.
+     */
+    public Upstream select(Upstream exclude) {
+        for (Upstream upstream : upstreams) {
+            if (upstream != exclude && upstream.tryProbe()) {
+                return upstream;
+            }
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        boolean explore = upstreams.size() > 1 && random.nextDouble() < exploration;
+
+        Upstream best = null;
+        int healthy = 0;
+        for (Upstream upstream : upstreams) {
+            if (upstream == exclude || !upstream.healthy()) {
+                continue;
+            }
+            healthy++;
+            if (explore) {
+                if (random.nextInt(healthy) == 0) {
+                    best = upstream;
+                }
+            } else if (best == null || faster(upstream, best)) {
+                best = upstream;
+            }
+        }
+
+        if (best != null) {
+            return best;
+        }
+        for (Upstream upstream : upstreams) {
+            if (upstream != exclude) {
+                return upstream;
+            }
+        }
+        return upstreams.get(0);
+    }
+
+    public List<Upstream> upstreams() {
+        return upstreams;
+    }
+
+    private static boolean faster(Upstream candidate, Upstream best) {
+        boolean untried = untried(candidate);
+        if (untried != untried(best)) {
+            return untried;
+        }
+        if (candidate.rtt().samples() == 0 || best.rtt().samples() == 0) {
+            return candidate.rtt().samples() != 0;
+        }
+        return candidate.rtt().srtt().compareTo(best.rtt().srtt()) < 0;
+    }
+
+    /**
+     * An upstream without samples that has failed is not worth trying before one that is known to answer.
+     */
+    private static boolean untried(Upstream upstream) {
+        return upstream.rtt().samples() == 0 && upstream.consecutiveFailures() == 0;
+    }
+}
@@ -19,4 +19,8 @@ public record DNSHeader(
         int nscount,
         int arcount
 ) {
+
+    public DNSHeader withId(int id) {
+        return new DNSHeader(id, qr, opcode, aa, tc, rd, ra, z, rcode, qdcount, ancount, nscount, arcount);
+    }
 }
@@ -3,21 +3,121 @@ package com.ake3m.dns.model;
 
 import java.util.Arrays;
 
-public record DNSMessage(
-        DNSHeader header,
-        DNSQuestion[] questions,
-        DNSRecord[] answers,
-        DNSRecord[] authorityRecords,
-        DNSRecord[] additionalRecords) {
+/**
+ * A DNS message. It is either built from its sections, or wraps {@link Sections} that decode them from the received
+ * bytes the first time they are read, so a message that is only routed by its header never allocates its records.
+ */
+public final class DNSMessage {
+    private final DNSHeader header;
+    private final Sections sections;
+    private volatile DNSQuestion[] questions;
+    private volatile DNSRecord[] answers;
+    private volatile DNSRecord[] authorityRecords;
+    private volatile DNSRecord[] additionalRecords;
+
+    public DNSMessage(
+            DNSHeader header,
+            DNSQuestion[] questions,
+            DNSRecord[] answers,
+            DNSRecord[] authorityRecords,
+            DNSRecord[] additionalRecords) {
+        this.header = header;
+        this.sections = null;
+        this.questions = questions;
+        this.answers = answers;
+        this.authorityRecords = authorityRecords;
+        this.additionalRecords = additionalRecords;
+    }
+
+    public DNSMessage(DNSHeader header, Sections sections) {
+        this.header = header;
+        this.sections = sections;
+    }
+
+    public DNSHeader header() {
+        return header;
+    }
+
+    public DNSQuestion[] questions() {
+        DNSQuestion[] decoded = questions;
+        if (decoded == null) {
+            questions = decoded = sections.questions();
+        }
+        return decoded;
+    }
+
+    public DNSRecord[] answers() {
+        DNSRecord[] decoded = answers;
+        if (decoded == null) {
+            answers = decoded = sections.answers();
+        }
+        return decoded;
+    }
+
+    public DNSRecord[] authorityRecords() {
+        DNSRecord[] decoded = authorityRecords;
+        if (decoded == null) {
+            authorityRecords = decoded = sections.authorityRecords();
+        }
+        return decoded;
+    }
+
+    public DNSRecord[] additionalRecords() {
+        DNSRecord[] decoded = additionalRecords;
+        if (decoded == null) {
+            additionalRecords = decoded = sections.additionalRecords();
+        }
+        return decoded;
+    }
+
+    /**
+     * The undecoded sections behind this message, or {@code null} when it was built from its sections.
+     */
+    public Sections sections() {
+        return sections;
+    }
+
+    /**
+     * Returns this message with another header. Messages backed by {@link Sections} keep them undecoded as long as the
+     * section counts are unchanged.
+     */
+    public DNSMessage withHeader(DNSHeader header) {
+        if (sections != null
+                && header.qdcount() == this.header.qdcount()
+                && header.ancount() == this.header.ancount()
+                && header.nscount() == this.header.nscount()
+                && header.arcount() == this.header.arcount()) {
+            return new DNSMessage(header, sections);
+        }
+        return new DNSMessage(header, questions(), answers(), authorityRecords(), additionalRecords());
+    }
 
     @Override
     public String toString() {
         return "DNSMessage{" +
                 "header=" + header +
-                ", questions=" + Arrays.toString(questions) +
-                ", answers=" + Arrays.toString(answers) +
-                ", authorityRecords=" + Arrays.toString(authorityRecords) +
-                ", additionalRecords=" + Arrays.toString(additionalRecords) +
+                ", questions=" + Arrays.toString(questions()) +
+                ", answers=" + Arrays.toString(answers()) +
+                ", authorityRecords=" + Arrays.toString(authorityRecords()) +
+                ", additionalRecords=" + Arrays.toString(additionalRecords()) +
                 '}';
     }
+
+    /**
+     * The sections of a received message, decoded on demand.
+     */
+    public interface Sections {
+        DNSQuestion[] questions();
+
+        DNSRecord[] answers();
+
+        DNSRecord[] authorityRecords();
+
+        DNSRecord[] additionalRecords();
+
+        /**
+         * Copies the encoded sections into {@code out} at {@code offset} and returns the offset just past them.
+         */
+        int write(byte[] out, int offset);
+    }
 }
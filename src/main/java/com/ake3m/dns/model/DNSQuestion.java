@@ -1,12 +1,99 @@
 package com.ake3m.dns.model;
 
+import java.util.Objects;
+
 /**
  * This was implemented following the RFC 1035
  * <a href="https://www.rfc-editor.org/rfc/rfc1035#section-4.1.2">4.1.2. Question section format</a>
+ * <p>
+ * Two questions are equal when their names are spelled the same, case included, since the case a client chose has to
+ * be echoed back to it. Compare {@link #name()}s to ignore case.
  */
-public record DNSQuestion(
-        String qname,
-        QType qtype,
-        QClass qclass
-) {
+public final class DNSQuestion {
+    private final Name name;
+    private final QType qtype;
+    private final QClass qclass;
+    private final int typeCode;
+    private final int classCode;
+
+    public DNSQuestion(
+            String qname,
+            QType qtype,
+            QClass qclass
+    ) {
+        this(Name.of(qname), qtype, qclass);
+    }
+
+    public DNSQuestion(
+            Name name,
+            QType qtype,
+            QClass qclass
+    ) {
+        this(name, qtype, qclass, qtype.code(), qclass.code());
+    }
+
+    /**
+     * A question as read off the wire, keeping codes without a {@link QType} or {@link QClass} constant.
+     */
+    public DNSQuestion(
+            Name name,
+            int typeCode,
+            int classCode
+    ) {
+        this(name, QType.fromInt(typeCode), QClass.fromInt(classCode), typeCode, classCode);
+    }
+
+    private DNSQuestion(Name name, QType qtype, QClass qclass, int typeCode, int classCode) {
+        this.name = name;
+        this.qtype = qtype;
+        this.qclass = qclass;
+        this.typeCode = typeCode;
+        this.classCode = classCode;
+    }
+
+    public String qname() {
+        return name.toString();
+    }
+
+    public Name name() {
+        return name;
+    }
+
+    public QType qtype() {
+        return qtype;
+    }
+
+    public QClass qclass() {
+        return qclass;
+    }
+
+    public int typeCode() {
+        return typeCode;
+    }
+
+    public int classCode() {
+        return classCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DNSQuestion other
+                && name.sameSpelling(other.name)
+                && typeCode == other.typeCode
+                && classCode == other.classCode;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, typeCode, classCode);
+    }
+
+    @Override
+    public String toString() {
+        return "DNSQuestion[" +
+                "qname=" + name +
+                ", qtype=" + (qtype == QType.UNKNOWN ? "TYPE" + typeCode : qtype) +
+                ", qclass=" + (qclass == QClass.UNKNOWN ? "CLASS" + classCode : qclass) +
+                ']';
+    }
 }
@@ -1,15 +1,202 @@
 package com.ake3m.dns.model;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Objects;
+
 /**
  * This was implemented following the RFC 1035
  * <a href="https://www.rfc-editor.org/rfc/rfc1035#section-4.1.3">4.1.3. Resource record format</a>
+ * <p>
+ * The rdata is held either as its presentation string or as the bytes read off the wire. Records read from the wire
+ * keep the bytes, so writing them back is a copy, and {@link #rdata()} formats them only when it is first asked for.
  */
-public record DNSRecord(
-        String name,
-        QType qtype,
-        QClass qclass,
-        long ttl,
-        int rdlength,
-        String rdata
-) {
+public final class DNSRecord {
+    private final Name name;
+    private final QType qtype;
+    private final QClass qclass;
+    private final int typeCode;
+    private final int classCode;
+    private final long ttl;
+    private final int rdlength;
+    private final byte[] wireRdata;
+    private final Presentation presentation;
+    private volatile String rdata;
+
+    public DNSRecord(
+            String name,
+            QType qtype,
+            QClass qclass,
+            long ttl,
+            int rdlength,
+            String rdata
+    ) {
+        this(Name.of(name), qtype, qclass, ttl, rdlength, rdata);
+    }
+
+    public DNSRecord(
+            Name name,
+            QType qtype,
+            QClass qclass,
+            long ttl,
+            int rdlength,
+            String rdata
+    ) {
+        this(name, qtype.code(), qclass.code(), ttl, rdlength, null, null, rdata);
+    }
+
+    public DNSRecord(
+            Name name,
+            int typeCode,
+            int classCode,
+            long ttl,
+            int rdlength,
+            String rdata
+    ) {
+        this(name, typeCode, classCode, ttl, rdlength, null, null, rdata);
+    }
+
+    /**
+     * A record whose rdata is kept in wire format and formatted by {@code presentation} on demand. The bytes must not
+     * contain compression pointers and are not copied. Type and class codes without a constant are kept as they are.
+     */
+    public DNSRecord(
+            Name name,
+            int typeCode,
+            int classCode,
+            long ttl,
+            byte[] wireRdata,
+            Presentation presentation
+    ) {
+        this(name, typeCode, classCode, ttl, wireRdata.length, wireRdata, presentation, null);
+    }
+
+    private DNSRecord(Name name,
+                      int typeCode,
+                      int classCode,
+                      long ttl,
+                      int rdlength,
+                      byte[] wireRdata,
+                      Presentation presentation,
+                      String rdata) {
+        this.name = name;
+        this.qtype = QType.fromInt(typeCode);
+        this.qclass = QClass.fromInt(classCode);
+        this.typeCode = typeCode;
+        this.classCode = classCode;
+        this.ttl = ttl;
+        this.rdlength = rdlength;
+        this.wireRdata = wireRdata;
+        this.presentation = presentation;
+        this.rdata = rdata;
+    }
+
+    public String name() {
+        return name.toString();
+    }
+
+    public Name owner() {
+        return name;
+    }
+
+    public QType qtype() {
+        return qtype;
+    }
+
+    public QClass qclass() {
+        return qclass;
+    }
+
+    public int typeCode() {
+        return typeCode;
+    }
+
+    public int classCode() {
+        return classCode;
+    }
+
+    public long ttl() {
+        return ttl;
+    }
+
+    public int rdlength() {
+        return rdlength;
+    }
+
+    /**
+     * The rdata in presentation format.
+     */
+    public String rdata() {
+        String formatted = rdata;
+        if (formatted == null) {
+            rdata = formatted = presentation.format(qtype, wireRdata);
+        }
+        return formatted;
+    }
+
+    /**
+     * The rdata as read off the wire, or {@code null} when the record was built from its presentation format. The
+     * array is shared and must not be modified.
+     */
+    public byte[] wireRdata() {
+        return wireRdata;
+    }
+
+    /**
+     * The address of an A or AAAA record.
+     */
+    public InetAddress address() {
+        if (qtype != QType.A && qtype != QType.AAAA) {
+            throw new IllegalStateException("Not an address record: " + qtype);
+        }
+        try {
+            return wireRdata != null ? InetAddress.getByAddress(wireRdata) : InetAddress.getByName(rdata);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid address rdata: " + rdata(), e);
+        }
+    }
+
+    public DNSRecord withTtl(long ttl) {
+        return new DNSRecord(name, typeCode, classCode, ttl, rdlength, wireRdata, presentation, rdata);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof DNSRecord other)) {
+            return false;
+        }
+        return ttl == other.ttl
+                && rdlength == other.rdlength
+                && name.sameSpelling(other.name)
+                && typeCode == other.typeCode
+                && classCode == other.classCode
+                && (wireRdata != null && other.wireRdata != null
+                ? Arrays.equals(wireRdata, other.wireRdata)
+                : Objects.equals(rdata(), other.rdata()));
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, typeCode, classCode, ttl, rdlength);
+    }
+
+    @Override
+    public String toString() {
+        return "DNSRecord[" +
+                "name=" + name +
+                ", qtype=" + (qtype == QType.UNKNOWN ? "TYPE" + typeCode : qtype) +
+                ", qclass=" + (qclass == QClass.UNKNOWN ? "CLASS" + classCode : qclass) +
+                ", ttl=" + ttl +
+                ", rdlength=" + rdlength +
+                ", rdata=" + rdata() +
+                ']';
+    }
+
+    /**
+     * Formats wire rdata of the given type for presentation.
+     */
+    public interface Presentation {
+        String format(QType qtype, byte[] rdata);
+    }
 }
@@ -0,0 +1,63 @@
+package com.ake3m.dns.model;
+
+/**
+ * The EDNS(0) parameters of a message, carried in the class and TTL fields of its OPT pseudo-record. Options in the
+ * OPT rdata are not kept.
+ * <a href="https://www.rfc-editor.org/rfc/rfc6891#section-6.1.2">RFC 6891 6.1.2. Wire Format</a>
+ */
+public record Edns(int payloadSize, int extendedRcode, int version, boolean dnssecOk) {
+    /**
+     * The largest message a requestor without EDNS accepts over UDP.
+     */
+    public static final int MIN_PAYLOAD_SIZE = 512;
+    /**
+     * The payload size we advertise, small enough to avoid IP fragmentation on common paths.
+     * <a href="https://www.dnsflagday.net/2020/">DNS Flag Day 2020</a>
+     */
+    public static final int DEFAULT_PAYLOAD_SIZE = 1232;
+    /**
+     * The largest payload size we honour from a requestor, and the size of our UDP receive buffers.
+     */
+    public static final int MAX_PAYLOAD_SIZE = 4096;
+
+    private static final Name ROOT = Name.of("");
+    private static final int DO = 0x8000;
+
+    /**
+     * Returns the EDNS parameters of the message's first OPT record, or {@code null} when it has none.
+     */
+    public static Edns of(DNSMessage message) {
+        for (DNSRecord record : message.additionalRecords()) {
+            if (record.qtype() == QType.OPT) {
+                return of(record);
+            }
+        }
+        return null;
+    }
+
+    public static Edns of(DNSRecord opt) {
+        long ttl = opt.ttl();
+        return new Edns(
+                opt.classCode(),
+                (int) (ttl >>> 24) & 0xFF,
+                (int) (ttl >>> 16) & 0xFF,
+                (ttl & DO) != 0
+        );
+    }
+
+    /**
+     * The size of the largest UDP response the requestor of {@code edns} accepts, {@link #MIN_PAYLOAD_SIZE} without
+     * EDNS.
+     */
+    public static int udpLimit(Edns edns) {
+        if (edns == null) {
+            return MIN_PAYLOAD_SIZE;
+        }
+        return Math.min(Math.max(edns.payloadSize(), MIN_PAYLOAD_SIZE), MAX_PAYLOAD_SIZE);
+    }
+
+    public DNSRecord toRecord() {
+        long ttl = ((long) extendedRcode << 24) | ((long) version << 16) | (dnssecOk ? DO : 0);
+        return new DNSRecord(ROOT, QType.OPT.code(), payloadSize, ttl, 0, "");
+    }
+}
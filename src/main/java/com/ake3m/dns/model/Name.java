@@ -0,0 +1,134 @@
+package com.ake3m.dns.model;
+
+import java.util.Arrays;
+
+/**
+ * A domain name in uncompressed wire format: length-prefixed labels ending in the zero-length root label, in one byte
+ * array. Equality and the hash, computed once, ignore ASCII case as
+ * <a href="https://www.rfc-editor.org/rfc/rfc4343">RFC 4343</a> requires, so names can be compared and used as keys
+ * without building or lower-casing strings. The dotted form is only built when {@link #toString()} is called.
+ */
+public final class Name {
+    public static final int MAX_LENGTH = 255;
+    public static final int MAX_LABEL_LENGTH = 63;
+
+    private final byte[] wire;
+    private final int hash;
+    private volatile String text;
+
+    private Name(byte[] wire, String text) {
+        this.wire = wire;
+        this.hash = hash(wire);
+        this.text = text;
+    }
+
+    /**
+     * Wraps labels already in wire format, such as those a decoder collected. The array is not copied.
+     */
+    public static Name ofWire(byte[] wire) {
+        return new Name(wire, null);
+    }
+
+    /**
+     * Parses a dotted name; a trailing dot is optional and the empty string is the root.
+     */
+    public static Name of(String name) {
+        int length = name.endsWith(".") ? name.length() - 1 : name.length();
+        byte[] wire = new byte[length == 0 ? 1 : length + 2];
+        int offset = 0;
+        int start = 0;
+        while (start < length) {
+            int dot = name.indexOf('.', start);
+            int end = dot < 0 || dot > length ? length : dot;
+            if (end - start > MAX_LABEL_LENGTH) {
+                throw new IllegalArgumentException("DNS label longer than " + MAX_LABEL_LENGTH + ": " + name);
+            }
+            wire[offset++] = (byte) (end - start);
+            for (int i = start; i < end; i++) {
+                wire[offset++] = (byte) name.charAt(i);
+            }
+            start = end + 1;
+        }
+        wire[offset++] = 0;
+        if (offset > MAX_LENGTH) {
+            throw new IllegalArgumentException("DNS name longer than " + MAX_LENGTH + ": " + name);
+        }
+        return new Name(offset == wire.length ? wire : Arrays.copyOf(wire, offset), name);
+    }
+
+    /**
+     * The name in wire format. The array is shared and must not be modified.
+     */
+    public byte[] wire() {
+        return wire;
+    }
+
+    public int length() {
+        return wire.length;
+    }
+
+    /**
+     * Whether the two names are spelled the same, case included.
+     */
+    public boolean sameSpelling(Name other) {
+        return Arrays.equals(wire, other.wire);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Name other) || hash != other.hash || wire.length != other.wire.length) {
+            return false;
+        }
+        for (int i = 0; i < wire.length; i++) {
+            if (lower(wire[i]) != lower(other.wire[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        String dotted = text;
+        if (dotted == null) {
+            StringBuilder name = new StringBuilder(wire.length);
+            int pos = 0;
+            while (wire[pos] != 0) {
+                if (!name.isEmpty()) {
+                    name.append('.');
+                }
+                int len = wire[pos++] & 0xFF;
+                for (int i = 0; i < len; i++) {
+                    name.append((char) (wire[pos + i] & 0xFF));
+                }
+                pos += len;
+            }
+            text = dotted = name.toString();
+        }
+        return dotted;
+    }
+
+    private static int hash(byte[] wire) {
+        int hash = 1;
+        for (byte b : wire) {
+            hash = 31 * hash + lower(b);
+        }
+        return hash;
+    }
+
+    /**
+     * Lower-cases ASCII letters only. Length bytes are below 64 and never in the letter range.
+     */
+    private static int lower(byte b) {
+        int c = b & 0xFF;
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+}
@@ -4,7 +4,25 @@ public enum QClass {
     IN              (1),
     CS              (2),
     CH              (3),
-    HS              (4);
+    HS              (4),
+    // https://www.rfc-editor.org/rfc/rfc2136
+    NONE            (254),
+    ANY             (255),
+    /**
+     * Any class without a constant here, such as the UDP payload size an OPT record carries in its class field.
+     * Questions and records keep the actual code, so these are forwarded untouched.
+     */
+    UNKNOWN         (-1);
+
+    private static final QClass[] BY_CODE = new QClass[ANY.code + 1];
+
+    static {
+        for (QClass qclass : values()) {
+            if (qclass != UNKNOWN) {
+                BY_CODE[qclass.code] = qclass;
+            }
+        }
+    }
 
     private final int code;
 
@@ -16,12 +34,11 @@ public enum QClass {
         return code;
     }
 
+    /**
+     * Returns the class for the code, or {@link #UNKNOWN} when there is no constant for it.
+     */
     public static QClass fromInt(int code) {
-        for (QClass qclass : values()) {
-            if (qclass.code == code) {
-                return qclass;
-            }
-        }
-        throw new IllegalArgumentException("Unknown QClass code: " + code);
+        QClass qclass = code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        return qclass != null ? qclass : UNKNOWN;
     }
 }
@@ -22,7 +22,41 @@ public enum QType {
     MX(15),
     TXT(16),
     // https://www.rfc-editor.org/rfc/rfc3596
-    AAAA(28);
+    AAAA(28),
+    // https://www.rfc-editor.org/rfc/rfc2782
+    SRV(33),
+    // https://www.rfc-editor.org/rfc/rfc3403
+    NAPTR(35),
+    // https://www.rfc-editor.org/rfc/rfc6891
+    OPT(41),
+    // https://www.rfc-editor.org/rfc/rfc4034
+    DS(43),
+    RRSIG(46),
+    NSEC(47),
+    DNSKEY(48),
+    // https://www.rfc-editor.org/rfc/rfc5155
+    NSEC3(50),
+    // https://www.rfc-editor.org/rfc/rfc9460
+    SVCB(64),
+    HTTPS(65),
+    ANY(255),
+    // https://www.rfc-editor.org/rfc/rfc8659
+    CAA(257),
+    /**
+     * Any type without a constant here. Questions and records keep the actual code, so these are forwarded untouched.
+     */
+    UNKNOWN(-1);
+
+    private static final QType[] BY_CODE = new QType[CAA.code + 1];
+
+    static {
+        for (QType qtype : values()) {
+            if (qtype != UNKNOWN) {
+                BY_CODE[qtype.code] = qtype;
+            }
+        }
+    }
+
     private final int code;
 
     QType(int code) {
@@ -33,12 +67,11 @@ public enum QType {
         return code;
     }
 
+    /**
+     * Returns the type for the code, or {@link #UNKNOWN} when there is no constant for it.
+     */
     public static QType fromInt(int code) {
-        for (QType qtype : values()) {
-            if (qtype.code == code) {
-                return qtype;
-            }
-        }
-       throw new IllegalArgumentException("Unknown QType code: " + code);
+        QType qtype = code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        return qtype != null ? qtype : UNKNOWN;
     }
 }
@@ -1,19 +1,35 @@
 package com.ake3m.dns.model;
 
 
+/**
+ * The four bit RCODE of the header, one constant per value so every header can be represented.
+ * <a href="https://www.iana.org/assignments/dns-parameters/dns-parameters.xhtml#dns-parameters-6">DNS RCODEs</a>
+ */
 public enum Rcode {
     NOERROR,
     FORMERR,
     SERVFAIL,
     NAMEERR,
     NOTIMP,
-    REFUSED;
+    REFUSED,
+    YXDOMAIN,
+    YXRRSET,
+    NXRRSET,
+    NOTAUTH,
+    NOTZONE,
+    DSOTYPENI,
+    UNASSIGNED12,
+    UNASSIGNED13,
+    UNASSIGNED14,
+    UNASSIGNED15;
+
+    private static final Rcode[] BY_CODE = values();
 
     public int code() {
         return ordinal();
     }
 
     public static Rcode fromInt(int code) {
-        return values()[code];
+        return BY_CODE[code];
     }
 }
@@ -0,0 +1,34 @@
+package com.ake3m.dns.policy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compiles a blocklist into the index file that {@link DomainTrie#read} loads, so the forwarder does not parse the list
+ * at startup:
+ * <pre>
+ * java -cp simple-dns-forwarder.jar com.ake3m.dns.policy.DomainIndexCompiler blocklist.txt blocklist.idx
+ * </pre>
+ */
+public class DomainIndexCompiler {
+    private static final Logger log = LoggerFactory.getLogger(DomainIndexCompiler.class);
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: DomainIndexCompiler <blocklist> <index>");
+            System.exit(2);
+        }
+        Path source = Path.of(args[0]);
+        Path index = Path.of(args[1]);
+
+        long start = System.nanoTime();
+        DomainTrie trie = DomainTrie.load(source);
+        trie.write(index);
+        log.info("Wrote {} domains in {} nodes to {} ({} bytes) in {} ms",
+                trie.size(), trie.nodes(), index, Files.size(index), (System.nanoTime() - start) / 1_000_000);
+    }
+}
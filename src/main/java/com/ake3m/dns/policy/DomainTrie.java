@@ -0,0 +1,431 @@
+package com.ake3m.dns.policy;
+
+import com.ake3m.dns.model.Name;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only set of domains, each of which also covers all of its subdomains, kept as a trie over the labels of the
+ * names from the right, so {@code ads.example.com} is the path {@code com}, {@code example}, {@code ads}. A lookup
+ * walks the labels of a wire-format name from the top level down and costs one binary search among the children of a
+ * node per label, whatever the number of domains.
+ * <p>
+ * The trie is stored in a few flat arrays rather than as objects. Nodes are numbered breadth first, which puts the
+ * children of a node next to each other: those of node {@code n} are the nodes {@code firstChild[n]} up to
+ * {@code firstChild[n + 1]}, ordered by label. Each node holds the offset of its label in a pool of distinct,
+ * lower-cased, length-prefixed labels, and one bit that marks the end of a domain in the set. A node costs about eight
+ * bytes, so millions of domains fit in tens of megabytes. Subdomains of a domain in the set are not stored.
+ * <p>
+ * The same arrays make up the index file that {@link #write} produces and {@link #read} loads back in a single read,
+ * without parsing. The file is copied to the heap rather than mapped, so rewriting it in place, with {@code cp} for
+ * instance, cannot pull pages out from under a lookup, and a trie that has been replaced is freed like any other
+ * object.
+ */
+public final class DomainTrie {
+    private static final Logger log = LoggerFactory.getLogger(DomainTrie.class);
+    private static final int MAX_LABELS = Name.MAX_LENGTH / 2;
+    private static final int MAGIC = 0x444E5354;
+    private static final int VERSION = 1;
+    /**
+     * Magic, version, nodes, size and label pool length, padded so the terminal bits that follow are 8-byte aligned.
+     */
+    private static final int HEADER_LENGTH = 24;
+
+    private final IntBuffer firstChild;
+    private final IntBuffer label;
+    private final ByteBuffer labels;
+    private final LongBuffer terminal;
+    private final int nodes;
+    private final int size;
+
+    private DomainTrie(IntBuffer firstChild, IntBuffer label, ByteBuffer labels, LongBuffer terminal, int size) {
+        this.firstChild = firstChild;
+        this.label = label;
+        this.labels = labels;
+        this.terminal = terminal;
+        this.nodes = label.limit();
+        this.size = size;
+    }
+
+    /**
+     * Reads an index file written by {@link #write} when {@code file} is one, and reads it as a blocklist otherwise.
+     */
+    public static DomainTrie open(Path file) throws IOException {
+        return isIndex(file) ? read(file) : load(file);
+    }
+
+    public static boolean isIndex(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            return channel.read(magic) == 4 && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Reads an index file into the heap. A file that changes while it is read fails the length check instead of
+     * yielding a mix of two indexes.
+     */
+    public static DomainTrie read(Path file) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a domain index: " + file);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported domain index version " + buffer.getInt(4) + ": " + file);
+        }
+        int nodes = buffer.getInt(8);
+        int size = buffer.getInt(12);
+        int labelsLength = buffer.getInt(16);
+        int words = (nodes + 63) >>> 6;
+        long length = HEADER_LENGTH + 8L * words + 4L * (nodes + 1) + 4L * nodes + labelsLength;
+        if (nodes < 1 || labelsLength < 0 || length != buffer.limit()) {
+            throw new IOException("Corrupt domain index: " + file);
+        }
+
+        int pos = HEADER_LENGTH;
+        LongBuffer terminal = slice(buffer, pos, 8 * words).asLongBuffer();
+        pos += 8 * words;
+        IntBuffer firstChild = slice(buffer, pos, 4 * (nodes + 1)).asIntBuffer();
+        pos += 4 * (nodes + 1);
+        IntBuffer label = slice(buffer, pos, 4 * nodes).asIntBuffer();
+        pos += 4 * nodes;
+        ByteBuffer labels = slice(buffer, pos, labelsLength);
+
+        DomainTrie trie = new DomainTrie(firstChild, label, labels, terminal, size);
+        log.info("Read {} blocked domains from {} in {} ms", size, file, (System.nanoTime() - start) / 1_000_000);
+        return trie;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        return buffer.slice(offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Writes the trie as an index file for {@link #read}. The file is written next to {@code file} and then moved over
+     * it, so a forwarder reloading it never reads half an index.
+     */
+    public void write(Path file) throws IOException {
+        int words = (nodes + 63) >>> 6;
+        int labelsLength = labels.limit();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + 8 * words + 4 * (nodes + 1) + 4 * nodes + labelsLength)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(nodes).putInt(size).putInt(labelsLength).position(HEADER_LENGTH);
+        for (int i = 0; i < words; i++) {
+            buffer.putLong(terminal.get(i));
+        }
+        for (int i = 0; i <= nodes; i++) {
+            buffer.putInt(firstChild.get(i));
+        }
+        for (int i = 0; i < nodes; i++) {
+            buffer.putInt(label.get(i));
+        }
+        buffer.put(labels.duplicate().position(0));
+        buffer.flip();
+
+        Path absolute = file.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Reads a blocklist in hosts format ({@code 0.0.0.0 ads.example.com}) or with one domain per line. Text after a
+     * {@code #} is ignored, as are a leading {@code *.} and a trailing dot; lines that are not valid names are skipped.
+     */
+    public static DomainTrie load(Path file) throws IOException {
+        long start = System.nanoTime();
+        List<String> domains = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                parseLine(line, domains);
+            }
+        }
+        DomainTrie trie = of(domains);
+        log.info("Loaded {} blocked domains from {} in {} ms", trie.size(), file, (System.nanoTime() - start) / 1_000_000);
+        return trie;
+    }
+
+    /**
+     * Adds the domains listed on one line of a blocklist to {@code domains}.
+     */
+    static void parseLine(String line, Collection<String> domains) {
+        int comment = line.indexOf('#');
+        String[] parts = (comment < 0 ? line : line.substring(0, comment)).trim().split("\\s+");
+        if (parts[0].isEmpty()) {
+            return;
+        }
+        // in hosts format the address comes first and every name after it is blocked
+        int first = parts.length > 1 && isAddress(parts[0]) ? 1 : 0;
+        for (int i = first; i < parts.length; i++) {
+            String domain = parts[i].startsWith("*.") ? parts[i].substring(2) : parts[i];
+            if (!domain.isEmpty() && !domain.equals(".") && !isAddress(domain) && !domain.equalsIgnoreCase("localhost")) {
+                domains.add(domain);
+            }
+        }
+    }
+
+    private static boolean isAddress(String token) {
+        if (token.indexOf(':') >= 0) {
+            return true;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static DomainTrie of(Collection<String> domains) {
+        List<byte[]> keys = new ArrayList<>(domains.size());
+        int skipped = 0;
+        for (String domain : domains) {
+            try {
+                byte[] key = reversed(Name.of(domain).wire());
+                if (key.length > 0) {
+                    keys.add(key);
+                }
+            } catch (IllegalArgumentException e) {
+                skipped++;
+            }
+        }
+        if (skipped > 0) {
+            log.warn("Skipped {} invalid domain names", skipped);
+        }
+        byte[][] sorted = keys.toArray(new byte[0][]);
+        Arrays.sort(sorted, Arrays::compareUnsigned);
+        return new Builder(sorted).build();
+    }
+
+    /**
+     * The labels of a wire-format name in reverse order, lower-cased and without the root label.
+     */
+    private static byte[] reversed(byte[] wire) {
+        byte[] key = new byte[wire.length - 1];
+        int pos = 0;
+        int end = key.length;
+        while (wire[pos] != 0) {
+            int len = wire[pos] & 0xFF;
+            end -= len + 1;
+            key[end] = (byte) len;
+            for (int i = 1; i <= len; i++) {
+                key[end + i] = lower(wire[pos + i]);
+            }
+            pos += len + 1;
+        }
+        return key;
+    }
+
+    public boolean matches(Name name) {
+        return matches(name.wire(), 0);
+    }
+
+    /**
+     * Whether the uncompressed wire-format name at {@code offset} is one of the domains or a subdomain of one. Names
+     * that are cut short or compressed do not match.
+     */
+    public boolean matches(byte[] message, int offset) {
+        int[] starts = new int[MAX_LABELS];
+        int count = 0;
+        int pos = offset;
+        while (true) {
+            if (pos >= message.length) {
+                return false;
+            }
+            int len = message[pos] & 0xFF;
+            if (len == 0) {
+                break;
+            }
+            if ((len & 0xC0) != 0 || count == MAX_LABELS || pos + len >= message.length) {
+                return false;
+            }
+            starts[count++] = pos;
+            pos += len + 1;
+        }
+
+        int node = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            node = child(node, message, starts[i]);
+            if (node < 0) {
+                return false;
+            }
+            if (isTerminal(node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int child(int node, byte[] message, int pos) {
+        int low = firstChild.get(node);
+        int high = firstChild.get(node + 1) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareLabel(label.get(mid), message, pos);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the pooled label at {@code offset} with the label at {@code pos} in the message, ignoring the case of
+     * the latter, by length first and then byte by byte, the order the keys were sorted in.
+     */
+    private int compareLabel(int offset, byte[] message, int pos) {
+        int len = labels.get(offset) & 0xFF;
+        int cmp = Integer.compare(len, message[pos] & 0xFF);
+        for (int i = 1; cmp == 0 && i <= len; i++) {
+            cmp = Integer.compare(labels.get(offset + i) & 0xFF, lower(message[pos + i]) & 0xFF);
+        }
+        return cmp;
+    }
+
+    private boolean isTerminal(int node) {
+        return (terminal.get(node >>> 6) & (1L << node)) != 0;
+    }
+
+    /**
+     * The number of domains in the set, not counting those covered by a shorter one.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int nodes() {
+        return nodes;
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /**
+     * Lays sorted keys out breadth first. Each node is created with the range of keys that pass through it, all of
+     * which share the same labels up to {@code depth[n]} bytes, and its children are the runs of keys in that range
+     * that share the next label.
+     */
+    private static final class Builder {
+        private final byte[][] keys;
+        private final Map<String, Integer> pooled = new HashMap<>();
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private int[] firstChild = new int[16];
+        private int[] label = new int[16];
+        private int[] from = new int[16];
+        private int[] to = new int[16];
+        private int[] depth = new int[16];
+        private long[] terminal = new long[1];
+        private int nodes;
+        private int size;
+
+        Builder(byte[][] keys) {
+            this.keys = keys;
+        }
+
+        DomainTrie build() {
+            add(0, 0, keys.length, 0, false);
+            for (int node = 0; node < nodes; node++) {
+                firstChild[node] = nodes;
+                if ((terminal[node >>> 6] & (1L << node)) != 0) {
+                    continue;
+                }
+                int pos = depth[node];
+                int i = from[node];
+                while (i < to[node]) {
+                    byte[] first = keys[i];
+                    int next = pos + 1 + (first[pos] & 0xFF);
+                    int j = i + 1;
+                    while (j < to[node] && Arrays.equals(first, pos, next, keys[j], pos, Math.min(next, keys[j].length))) {
+                        j++;
+                    }
+                    // the shortest key sorts first, so it ends here if any key of the run does
+                    boolean ends = first.length == next;
+                    add(intern(first, pos, next), i, j, next, ends);
+                    if (ends) {
+                        size++;
+                    }
+                    i = j;
+                }
+            }
+            ensureCapacity(nodes + 1);
+            firstChild[nodes] = nodes;
+            return new DomainTrie(
+                    IntBuffer.wrap(Arrays.copyOf(firstChild, nodes + 1)),
+                    IntBuffer.wrap(Arrays.copyOf(label, nodes)),
+                    ByteBuffer.wrap(pool.toByteArray()),
+                    LongBuffer.wrap(Arrays.copyOf(terminal, (nodes + 63) >>> 6)),
+                    size);
+        }
+
+        private void add(int labelOffset, int start, int end, int keyDepth, boolean ends) {
+            ensureCapacity(nodes + 1);
+            label[nodes] = labelOffset;
+            from[nodes] = start;
+            to[nodes] = end;
+            depth[nodes] = keyDepth;
+            if (ends) {
+                terminal[nodes >>> 6] |= 1L << nodes;
+            }
+            nodes++;
+        }
+
+        private int intern(byte[] key, int start, int end) {
+            return pooled.computeIfAbsent(new String(key, start, end - start, StandardCharsets.ISO_8859_1), text -> {
+                int offset = pool.size();
+                pool.write(key, start, end - start);
+                return offset;
+            });
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > label.length) {
+                int grown = Math.max(capacity, label.length * 2);
+                firstChild = Arrays.copyOf(firstChild, grown);
+                label = Arrays.copyOf(label, grown);
+                from = Arrays.copyOf(from, grown);
+                to = Arrays.copyOf(to, grown);
+                depth = Arrays.copyOf(depth, grown);
+            }
+            if ((capacity + 63) >>> 6 > terminal.length) {
+                terminal = Arrays.copyOf(terminal, Math.max((capacity + 63) >>> 6, terminal.length * 2));
+            }
+        }
+    }
+}
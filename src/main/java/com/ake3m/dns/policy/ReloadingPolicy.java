@@ -0,0 +1,156 @@
+package com.ake3m.dns.policy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * A policy read from a file and rebuilt in the background whenever the file changes. Queries read the current policy
+ * with {@link #get()}, a single volatile read that never waits: a reload builds the new policy off to the side and
+ * then swaps the reference, so queries in flight finish with the policy they started with and the next ones see the
+ * new one. A reload that fails keeps the previous policy.
+ * <p>
+ * The directory of the file is watched, so replacing the file by moving a new one over it, as editors and
+ * {@link DomainTrie#write} do, is picked up as well as writing to it in place. Changes are collected for
+ * {@link #SETTLE} before reloading, so a file that is still being written is not read half way.
+ */
+public final class ReloadingPolicy<T> implements Supplier<T>, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ReloadingPolicy.class);
+    public static final Duration SETTLE = Duration.ofMillis(200);
+
+    private final Path file;
+    private final Loader<T> loader;
+    private final ToIntFunction<T> sizeOf;
+    private final AtomicReference<T> current = new AtomicReference<>();
+    private final ReentrantLock reloadLock = new ReentrantLock();
+    private final WatchService watcher;
+    private volatile Stats stats = new Stats(0, 0, 0, Duration.ZERO);
+
+    private ReloadingPolicy(Path file, Loader<T> loader, ToIntFunction<T> sizeOf, WatchService watcher) {
+        this.file = file;
+        this.loader = loader;
+        this.sizeOf = sizeOf;
+        this.watcher = watcher;
+    }
+
+    /**
+     * Loads the policy from {@code file}, failing if that does not work, and starts watching the file for changes.
+     * {@code sizeOf} measures a policy for the logs and {@link #stats()}.
+     */
+    public static <T> ReloadingPolicy<T> watch(Path file, Loader<T> loader, ToIntFunction<T> sizeOf) throws IOException {
+        Path absolute = file.toAbsolutePath();
+        ReloadingPolicy<T> policy = new ReloadingPolicy<>(absolute, loader, sizeOf, absolute.getFileSystem().newWatchService());
+        try {
+            // watch first so a change made while the file is being loaded is not missed
+            absolute.getParent().register(policy.watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            long start = System.nanoTime();
+            T initial = loader.load(absolute);
+            policy.current.set(initial);
+            policy.stats = new Stats(0, 0, sizeOf.applyAsInt(initial), Duration.ofNanos(System.nanoTime() - start));
+        } catch (IOException | RuntimeException e) {
+            policy.close();
+            throw e;
+        }
+        Thread thread = new Thread(policy::watchLoop, "policy-watcher-" + absolute.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+        return policy;
+    }
+
+    @Override
+    public T get() {
+        return current.get();
+    }
+
+    /**
+     * Rebuilds the policy from the file now and swaps it in, unless loading fails. Reloads do not overlap.
+     */
+    public boolean reload() {
+        reloadLock.lock();
+        try {
+            long start = System.nanoTime();
+            T next;
+            try {
+                next = loader.load(file);
+            } catch (IOException | RuntimeException e) {
+                stats = new Stats(stats.reloads(), stats.failures() + 1, stats.size(), stats.lastReload());
+                log.warn("Reloading {} failed, keeping the current policy", file, e);
+                return false;
+            }
+            current.set(next);
+            Duration took = Duration.ofNanos(System.nanoTime() - start);
+            int size = sizeOf.applyAsInt(next);
+            stats = new Stats(stats.reloads() + 1, stats.failures(), size, took);
+            log.info("Reloaded {} with {} entries in {} ms", file, size, took.toMillis());
+            return true;
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = touchesFile(key);
+                // let a writer finish and fold the burst of events it causes into one reload
+                WatchKey more;
+                while ((more = watcher.poll(SETTLE.toMillis(), TimeUnit.MILLISECONDS)) != null) {
+                    changed |= touchesFile(more);
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            log.debug("Stopped watching {}", file);
+        }
+    }
+
+    private boolean touchesFile(WatchKey key) {
+        boolean touches = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                touches = true;
+            }
+        }
+        key.reset();
+        return touches;
+    }
+
+    public Stats stats() {
+        return stats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+    }
+
+    public interface Loader<T> {
+        T load(Path file) throws IOException;
+    }
+
+    /**
+     * Successful and failed reloads so far, the size of the current policy as of the last reload, and how long that
+     * reload took.
+     */
+    public record Stats(long reloads, long failures, int size, Duration lastReload) {
+    }
+}
@@ -0,0 +1,167 @@
+package com.ake3m.dns.policy;
+
+import com.ake3m.dns.model.Name;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps domain suffixes to values and finds the value of the longest suffix of a name, such as the upstream pool for
+ * {@code corp.internal} when asked about {@code host.dev.corp.internal}. The suffixes are kept in a trie over their
+ * labels from the right, so a lookup walks the labels of the name in place, one binary search among the children of a
+ * node per label, however many suffixes there are. The root suffix ({@code "."} or {@code ""}) matches every name.
+ */
+public final class SuffixTable<V> {
+    private static final int MAX_LABELS = Name.MAX_LENGTH / 2;
+
+    private final Node<V> root;
+    private final int size;
+
+    private SuffixTable(Node<V> root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public static <V> SuffixTable<V> of(Map<String, V> entries) {
+        Builder<V> root = new Builder<>();
+        int size = 0;
+        for (Map.Entry<String, V> entry : entries.entrySet()) {
+            byte[] wire = Name.of(entry.getKey()).wire();
+            Builder<V> node = root;
+            for (byte[] label : reversedLabels(wire)) {
+                node = node.children.computeIfAbsent(label, l -> new Builder<>());
+            }
+            if (node.value == null) {
+                size++;
+            }
+            node.value = entry.getValue();
+        }
+        return new SuffixTable<>(root.build(), size);
+    }
+
+    private static byte[][] reversedLabels(byte[] wire) {
+        int count = 0;
+        for (int pos = 0; wire[pos] != 0; pos += (wire[pos] & 0xFF) + 1) {
+            count++;
+        }
+        byte[][] labels = new byte[count][];
+        int pos = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            int len = wire[pos] & 0xFF;
+            labels[i] = new byte[len];
+            for (int j = 0; j < len; j++) {
+                labels[i][j] = lower(wire[pos + 1 + j]);
+            }
+            pos += len + 1;
+        }
+        return labels;
+    }
+
+    public V lookup(Name name) {
+        return lookup(name.wire(), 0);
+    }
+
+    /**
+     * The value of the longest suffix of the uncompressed wire-format name at {@code offset}, or {@code null} when no
+     * suffix matches. A name that is cut short or compressed only matches the root.
+     */
+    public V lookup(byte[] message, int offset) {
+        int[] starts = new int[MAX_LABELS];
+        int count = 0;
+        int pos = offset;
+        while (true) {
+            if (pos >= message.length) {
+                return root.value;
+            }
+            int len = message[pos] & 0xFF;
+            if (len == 0) {
+                break;
+            }
+            if ((len & 0xC0) != 0 || count == MAX_LABELS || pos + len >= message.length) {
+                return root.value;
+            }
+            starts[count++] = pos;
+            pos += len + 1;
+        }
+
+        Node<V> node = root;
+        V best = root.value;
+        for (int i = count - 1; i >= 0; i--) {
+            node = node.child(message, starts[i]);
+            if (node == null) {
+                break;
+            }
+            if (node.value != null) {
+                best = node.value;
+            }
+        }
+        return best;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /**
+     * Orders labels by length and then byte by byte, the order {@link Node#child} searches in.
+     */
+    private static int compare(byte[] a, byte[] b) {
+        int cmp = Integer.compare(a.length, b.length);
+        return cmp != 0 ? cmp : Arrays.compareUnsigned(a, b);
+    }
+
+    private static final class Node<V> {
+        private final byte[][] labels;
+        private final Node<V>[] children;
+        private final V value;
+
+        Node(byte[][] labels, Node<V>[] children, V value) {
+            this.labels = labels;
+            this.children = children;
+            this.value = value;
+        }
+
+        Node<V> child(byte[] message, int pos) {
+            int len = message[pos] & 0xFF;
+            int low = 0;
+            int high = labels.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                byte[] label = labels[mid];
+                int cmp = Integer.compare(label.length, len);
+                for (int i = 0; cmp == 0 && i < len; i++) {
+                    cmp = Integer.compare(label[i] & 0xFF, lower(message[pos + 1 + i]) & 0xFF);
+                }
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Builder<V> {
+        private final TreeMap<byte[], Builder<V>> children = new TreeMap<>(SuffixTable::compare);
+        private V value;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Node<V> build() {
+            byte[][] labels = children.keySet().toArray(new byte[0][]);
+            Node<V>[] built = new Node[labels.length];
+            int i = 0;
+            for (Builder<V> child : children.values()) {
+                built[i++] = child.build();
+            }
+            return new Node<>(labels, built, value);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.ake3m.dns.cache;
+
+import com.ake3m.dns.model.DNSHeader;
+import com.ake3m.dns.model.DNSMessage;
+import com.ake3m.dns.model.DNSQuestion;
+import com.ake3m.dns.model.DNSRecord;
+import com.ake3m.dns.model.Edns;
+import com.ake3m.dns.model.QClass;
+import com.ake3m.dns.model.QType;
+import com.ake3m.dns.model.Rcode;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResponseCacheTest {
+    private final AtomicLong now = new AtomicLong();
+    private final ResponseCache cache = new ResponseCache(64, now::get);
+
+    @Test
+    void hitIsReaddressedWithDecrementedTtls() {
+        cache.put(key("EXAMPLE.COM"), response("EXAMPLE.COM", Rcode.NOERROR, 300, 60));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        DNSMessage hit = get("example.com", 0x1234);
+
+        assertEquals(0x1234, hit.header().id());
+        assertEquals("example.com", hit.questions()[0].qname());
+        assertEquals(290, hit.answers()[0].ttl());
+        assertEquals(50, hit.answers()[1].ttl());
+    }
+
+    @Test
+    void requestsThatDifferInDnssecBitsDoNotShareEntries() {
+        DNSQuestion question = new DNSQuestion("EXAMPLE.COM", QType.A, QClass.IN);
+        DNSMessage cd = new DNSMessage(new DNSHeader(1, 0, 0, 0, 0, 1, 0, 1, Rcode.NOERROR, 1, 0, 0, 0),
+                new DNSQuestion[]{question}, new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{});
+        DNSMessage withDo = new DNSMessage(new DNSHeader(1, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 1),
+                new DNSQuestion[]{question}, new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{new Edns(1232, 0, 0, true).toRecord()});
+        cache.put(key("EXAMPLE.COM"), response("EXAMPLE.COM", Rcode.NOERROR, 300));
+
+        assertNull(cache.get(CacheKey.of(cd), cd));
+        assertNull(cache.get(CacheKey.of(withDo), withDo));
+        assertEquals(1, get("EXAMPLE.COM", 1).answers().length);
+    }
+
+    @Test
+    void entryExpiresWithShortestAnswerTtl() {
+        cache.put(key("EXAMPLE.COM"), response("EXAMPLE.COM", Rcode.NOERROR, 300, 60));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(60));
+
+        assertNull(get("EXAMPLE.COM", 1));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void errorsAndZeroTtlsAreNotCached() {
+        cache.put(key("FAIL.COM"), response("FAIL.COM", Rcode.SERVFAIL, 300));
+        cache.put(key("ZERO.COM"), response("ZERO.COM", Rcode.NOERROR, 0));
+
+        assertNull(get("FAIL.COM", 1));
+        assertNull(get("ZERO.COM", 1));
+    }
+
+    @Test
+    void truncatedResponsesAreNotCached() {
+        DNSMessage response = response("BIG.COM", Rcode.NOERROR, 300);
+        DNSHeader h = response.header();
+        DNSHeader truncated = new DNSHeader(h.id(), h.qr(), h.opcode(), h.aa(), 1, h.rd(), h.ra(), h.z(), h.rcode(), h.qdcount(), h.ancount(), h.nscount(), h.arcount());
+        cache.put(key("BIG.COM"), new DNSMessage(truncated, response.questions(), response.answers(), response.authorityRecords(), response.additionalRecords()));
+
+        assertNull(get("BIG.COM", 1));
+    }
+
+    @Test
+    void nxdomainIsCachedForSmallerOfSoaTtlAndMinimum() {
+        cache.put(key("TYPO.COM"), negative("TYPO.COM", Rcode.NAMEERR, 900, 600));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(599));
+        DNSMessage hit = get("TYPO.COM", 7);
+        assertEquals(Rcode.NAMEERR, hit.header().rcode());
+        assertEquals(7, hit.header().id());
+        assertEquals(301, hit.authorityRecords()[0].ttl());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertNull(get("TYPO.COM", 7));
+    }
+
+    @Test
+    void nodataIsCachedForSoaTtl() {
+        cache.put(key("EMPTY.COM"), negative("EMPTY.COM", Rcode.NOERROR, 30, 600));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(29));
+        assertEquals(0, get("EMPTY.COM", 7).answers().length);
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertNull(get("EMPTY.COM", 7));
+    }
+
+    @Test
+    void negativeAnswersWithoutSoaAreNotCached() {
+        cache.put(key("TYPO.COM"), response("TYPO.COM", Rcode.NAMEERR));
+
+        assertNull(get("TYPO.COM", 7));
+    }
+
+    @Test
+    void sizeIsBounded() {
+        for (int i = 0; i < 1000; i++) {
+            String name = "HOST" + i + ".EXAMPLE.COM";
+            cache.put(key(name), response(name, Rcode.NOERROR, 300));
+        }
+
+        assertTrue(cache.size() <= 64);
+    }
+
+    private DNSMessage get(String name, int id) {
+        DNSHeader header = new DNSHeader(id, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 0);
+        DNSMessage request = new DNSMessage(header, new DNSQuestion[]{new DNSQuestion(name, QType.A, QClass.IN)},
+                new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{});
+        return cache.get(CacheKey.of(request), request);
+    }
+
+    private static CacheKey key(String name) {
+        return CacheKey.of(new DNSQuestion(name, QType.A, QClass.IN));
+    }
+
+    private static DNSMessage response(String name, Rcode rcode, long... ttls) {
+        DNSRecord[] answers = new DNSRecord[ttls.length];
+        for (int i = 0; i < ttls.length; i++) {
+            answers[i] = new DNSRecord(name, QType.A, QClass.IN, ttls[i], 4, "10.0.0." + (i + 1));
+        }
+        DNSHeader header = new DNSHeader(0xAAAA, 1, 0, 0, 0, 1, 1, 0, rcode, 1, answers.length, 0, 0);
+        return new DNSMessage(header, new DNSQuestion[]{new DNSQuestion(name, QType.A, QClass.IN)}, answers, new DNSRecord[]{}, new DNSRecord[]{});
+    }
+
+    private static DNSMessage negative(String name, Rcode rcode, long soaTtl, long minimum) {
+        DNSRecord soa = new DNSRecord("COM", QType.SOA, QClass.IN, soaTtl, 0,
+                "a.gtld-servers.net nstld.verisign-grs.com 1700000000 1800 900 604800 " + minimum);
+        DNSHeader header = new DNSHeader(0xAAAA, 1, 0, 0, 0, 1, 1, 0, rcode, 1, 0, 1, 0);
+        return new DNSMessage(header, new DNSQuestion[]{new DNSQuestion(name, QType.A, QClass.IN)}, new DNSRecord[]{}, new DNSRecord[]{soa}, new DNSRecord[]{});
+    }
+}
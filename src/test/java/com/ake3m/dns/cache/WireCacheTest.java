@@ -0,0 +1,155 @@
+package com.ake3m.dns.cache;
+
+import com.ake3m.dns.converter.DNSHeaderEntityConverter;
+import com.ake3m.dns.converter.DNSQuestionEntityConverter;
+import com.ake3m.dns.converter.DNSRecordEntityConverter;
+import com.ake3m.dns.handling.Converter;
+import com.ake3m.dns.model.DNSHeader;
+import com.ake3m.dns.model.DNSMessage;
+import com.ake3m.dns.model.DNSQuestion;
+import com.ake3m.dns.model.DNSRecord;
+import com.ake3m.dns.model.Edns;
+import com.ake3m.dns.model.QClass;
+import com.ake3m.dns.model.QType;
+import com.ake3m.dns.model.Rcode;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.ake3m.dns.converter.ByteConverter.writeSOA;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class WireCacheTest {
+    private final Converter converter = new Converter(
+            new DNSHeaderEntityConverter(),
+            new DNSQuestionEntityConverter(),
+            new DNSRecordEntityConverter());
+    private final AtomicLong now = new AtomicLong();
+    private final WireCache cache = new WireCache(64, now::get);
+
+    @Test
+    void hitPatchesIdAndTtlsInPlace() {
+        byte[] query = query(0x1111, "EXAMPLE.COM");
+        cache.store(query, query.length, response(0x1111, "EXAMPLE.COM", Rcode.NOERROR, 300, 60));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        byte[] second = query(0x2222, "example.com");
+        DNSMessage hit = converter.toDNSResponse(cache.lookup(second, second.length));
+
+        assertEquals(0x2222, hit.header().id());
+        assertEquals(2, hit.answers().length);
+        assertEquals(290, hit.answers()[0].ttl());
+        assertEquals(50, hit.answers()[1].ttl());
+        assertEquals(110, hit.authorityRecords()[0].ttl());
+        assertEquals("10.0.0.1", hit.answers()[0].rdata());
+    }
+
+    @Test
+    void hitEchoesTheQueriersSpellingOfTheName() {
+        byte[] query = query(0x1111, "EXAMPLE.COM");
+        cache.store(query, query.length, response(0x1111, "EXAMPLE.COM", Rcode.NOERROR, 300));
+
+        byte[] second = query(0x2222, "eXaMpLe.CoM");
+        DNSMessage hit = converter.toDNSResponse(cache.lookup(second, second.length));
+
+        assertEquals("eXaMpLe.CoM", hit.questions()[0].qname());
+    }
+
+    @Test
+    void entryExpiresWithShortestAnswerTtl() {
+        byte[] query = query(0x1111, "EXAMPLE.COM");
+        cache.store(query, query.length, response(0x1111, "EXAMPLE.COM", Rcode.NOERROR, 300, 60));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(60));
+
+        assertNull(cache.lookup(query, query.length));
+    }
+
+    @Test
+    void errorsAreNotCached() {
+        byte[] query = query(0x1111, "EXAMPLE.COM");
+        cache.store(query, query.length, response(0x1111, "EXAMPLE.COM", Rcode.SERVFAIL, 300));
+
+        assertNull(cache.lookup(query, query.length));
+    }
+
+    @Test
+    void nxdomainIsCachedWithItsRcode() {
+        byte[] query = query(0x1111, "TYPO.COM");
+        String rdata = "a.gtld-servers.net nstld.verisign-grs.com 1700000000 1800 900 604800 600";
+        DNSRecord soa = new DNSRecord("COM", QType.SOA, QClass.IN, 900, writeSOA(rdata, 0, new byte[256]), rdata);
+        DNSHeader header = new DNSHeader(0x1111, 1, 0, 0, 0, 1, 1, 0, Rcode.NAMEERR, 1, 0, 1, 0);
+        DNSQuestion question = new DNSQuestion("TYPO.COM", QType.A, QClass.IN);
+        cache.store(query, query.length, converter.toDNSResponse(new DNSMessage(header, new DNSQuestion[]{question}, new DNSRecord[]{}, new DNSRecord[]{soa}, new DNSRecord[]{})));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(599));
+        DNSMessage hit = converter.toDNSResponse(cache.lookup(query, query.length));
+        assertEquals(Rcode.NAMEERR, hit.header().rcode());
+        assertEquals(301, hit.authorityRecords()[0].ttl());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertNull(cache.lookup(query, query.length));
+    }
+
+    @Test
+    void truncatedResponsesAreNotCached() {
+        byte[] query = query(0x1111, "EXAMPLE.COM");
+        byte[] response = response(0x1111, "EXAMPLE.COM", Rcode.NOERROR, 300);
+        response[2] |= 0x02;
+        cache.store(query, query.length, response);
+
+        assertNull(cache.lookup(query, query.length));
+    }
+
+    @Test
+    void differentTypesDoNotShareEntries() {
+        byte[] query = query(0x1111, "EXAMPLE.COM");
+        cache.store(query, query.length, response(0x1111, "EXAMPLE.COM", Rcode.NOERROR, 300));
+
+        DNSHeader header = new DNSHeader(0x1111, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 0);
+        DNSQuestion aaaa = new DNSQuestion("EXAMPLE.COM", QType.AAAA, QClass.IN);
+        byte[] other = converter.toDNSRequest(new DNSMessage(header, new DNSQuestion[]{aaaa}, new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{}));
+
+        assertNull(cache.lookup(other, other.length));
+    }
+
+    @Test
+    void queriesThatDifferInDnssecBitsDoNotShareEntries() {
+        byte[] query = query(0x1111, "EXAMPLE.COM");
+        cache.store(query, query.length, response(0x1111, "EXAMPLE.COM", Rcode.NOERROR, 300));
+
+        DNSQuestion question = new DNSQuestion("EXAMPLE.COM", QType.A, QClass.IN);
+        DNSHeader cdHeader = new DNSHeader(0x1111, 0, 0, 0, 0, 1, 0, 1, Rcode.NOERROR, 1, 0, 0, 0);
+        byte[] cd = converter.toDNSRequest(new DNSMessage(cdHeader, new DNSQuestion[]{question}, new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{}));
+        DNSHeader ednsHeader = new DNSHeader(0x1111, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 1);
+        byte[] withDo = converter.toDNSRequest(new DNSMessage(ednsHeader, new DNSQuestion[]{question}, new DNSRecord[]{}, new DNSRecord[]{},
+                new DNSRecord[]{new Edns(1232, 0, 0, true).toRecord()}));
+        byte[] withoutDo = converter.toDNSRequest(new DNSMessage(ednsHeader, new DNSQuestion[]{question}, new DNSRecord[]{}, new DNSRecord[]{},
+                new DNSRecord[]{new Edns(1232, 0, 0, false).toRecord()}));
+        cache.store(withoutDo, withoutDo.length, response(0x1111, "EXAMPLE.COM", Rcode.NOERROR, 300));
+
+        assertNull(cache.lookup(cd, cd.length));
+        assertNull(cache.lookup(withDo, withDo.length));
+        assertNotNull(cache.lookup(withoutDo, withoutDo.length));
+    }
+
+    private byte[] query(int id, String name) {
+        DNSHeader header = new DNSHeader(id, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 0);
+        DNSQuestion question = new DNSQuestion(name, QType.A, QClass.IN);
+        return converter.toDNSRequest(new DNSMessage(header, new DNSQuestion[]{question}, new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{}));
+    }
+
+    private byte[] response(int id, String name, Rcode rcode, long... ttls) {
+        DNSRecord[] answers = new DNSRecord[ttls.length];
+        for (int i = 0; i < ttls.length; i++) {
+            answers[i] = new DNSRecord(name, QType.A, QClass.IN, ttls[i], 4, "10.0.0." + (i + 1));
+        }
+        DNSRecord[] authority = {new DNSRecord(name, QType.A, QClass.IN, 120, 4, "10.0.0.9")};
+        DNSHeader header = new DNSHeader(id, 1, 0, 0, 0, 1, 1, 0, rcode, 1, answers.length, 1, 0);
+        DNSQuestion question = new DNSQuestion(name, QType.A, QClass.IN);
+        return converter.toDNSResponse(new DNSMessage(header, new DNSQuestion[]{question}, answers, authority, new DNSRecord[]{}));
+    }
+}
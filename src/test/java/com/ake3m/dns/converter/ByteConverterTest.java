@@ -1,10 +1,15 @@
 package com.ake3m.dns.converter;
 
+import com.ake3m.dns.model.Name;
 import org.junit.jupiter.api.Test;
 
 import static com.ake3m.dns.converter.ByteConverter.readName;
+import static com.ake3m.dns.converter.ByteConverter.readWireName;
 import static com.ake3m.dns.converter.ByteConverter.writeName;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 class ByteConverterTest {
 
@@ -87,4 +92,46 @@ class ByteConverterTest {
         assertEquals(23, q2.offset());
         assertEquals("MAIL.ISI.EDU", q2.value());
     }
-}
\ No newline at end of file
+
+    @Test
+    void shouldReadWireNameFollowingCompressionPointers() {
+        byte[] bytes = new byte[]{
+                6, 'V', 'E', 'N', 'E', 'R', 'A',
+                3, 'I', 'S', 'I',
+                3, 'E', 'D', 'U',
+                0x00,
+
+                4, 'M', 'A', 'I', 'L',
+                (byte) 0xC0, 0x07,
+        };
+
+        Result<Name> q2 = readWireName(bytes, 16);
+
+        assertEquals(23, q2.offset());
+        assertEquals("MAIL.ISI.EDU", q2.value().toString());
+        assertEquals(Name.of("mail.isi.edu."), q2.value());
+        assertEquals(Name.of("mail.isi.edu").hashCode(), q2.value().hashCode());
+        assertFalse(Name.of("mail.isi.edu").sameSpelling(q2.value()));
+        assertNotEquals(Name.of("MAIL.ISI"), q2.value());
+    }
+
+    @Test
+    void shouldWriteWireNameAsItsLabels() {
+        byte[] out = new byte[512];
+        int offset = writeName(Name.of("VENERA.ISI.EDU"), 0, out);
+
+        assertEquals(16, offset);
+        assertEquals("VENERA.ISI.EDU", readName(out, 0).value());
+        assertEquals(1, Name.of("").length());
+    }
+
+    @Test
+    void shouldRejectCompressionLoops() {
+        byte[] bytes = new byte[]{(byte) 0xC0, 0x00};
+        byte[] labelled = new byte[]{0x01, 'a', (byte) 0xC0, 0x00};
+
+        assertThrows(IllegalArgumentException.class, () -> readWireName(bytes, 0));
+        assertThrows(IllegalArgumentException.class, () -> readName(bytes, 0));
+        assertThrows(IllegalArgumentException.class, () -> readName(labelled, 0));
+    }
+}
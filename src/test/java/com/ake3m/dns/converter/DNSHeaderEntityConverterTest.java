@@ -167,7 +167,7 @@ class DNSHeaderEntityConverterTest {
             assertEquals(value, header.value().z());
         }
 
-        @ValueSource(ints = {0, 1, 2, 3, 4, 5})
+        @ValueSource(ints = {0, 1, 2, 3, 4, 5, 9, 11, 15})
         @ParameterizedTest(name = "should read RCODE={0}")
         void shouldReadRcode(int value) {
             int flags = createMockFlags(value);
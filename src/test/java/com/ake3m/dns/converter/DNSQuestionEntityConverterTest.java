@@ -11,6 +11,7 @@ import org.junit.jupiter.params.provider.EnumSource;
 
 import static com.ake3m.dns.converter.ByteConverter.readName;
 import static com.ake3m.dns.converter.ByteConverter.writeU16;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 class DNSQuestionEntityConverterTest {
@@ -82,6 +83,25 @@ class DNSQuestionEntityConverterTest {
             assertEquals(12, questionResult.offset());
             assertEquals(qclass, questionResult.value().qclass());
         }
+
+        @Test
+        void shouldKeepCodesWithoutAConstant() {
+            byte[] bytes = new byte[12];
+            System.arraycopy(new byte[]{6, 'V', 'E', 'N', 'E', 'R', 'A', 0x00}, 0, bytes, 0, 8);
+            writeU16(bytes, 8, 1234);
+            writeU16(bytes, 10, 4096);
+
+            DNSQuestion question = converter.read(bytes, 0).value();
+            byte[] out = new byte[12];
+            int offset = converter.write(question, 0, out);
+
+            assertEquals(QType.UNKNOWN, question.qtype());
+            assertEquals(QClass.UNKNOWN, question.qclass());
+            assertEquals(1234, question.typeCode());
+            assertEquals(4096, question.classCode());
+            assertEquals(12, offset);
+            assertArrayEquals(bytes, out);
+        }
     }
 
     @Nested
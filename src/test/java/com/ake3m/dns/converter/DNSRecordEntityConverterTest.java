@@ -7,8 +7,11 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
+import java.net.InetAddress;
+
 import static com.ake3m.dns.converter.ByteConverter.writeU16;
 import static com.ake3m.dns.converter.ByteConverter.writeU32;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 class DNSRecordEntityConverterTest {
@@ -35,6 +38,50 @@ class DNSRecordEntityConverterTest {
             return bytes;
         }
 
+        @Test
+        void shouldKeepWireRdataAndFormatItOnDemand() throws Exception {
+            DNSRecord record = converter.read(aRecordBytes(), 0).value();
+
+            assertArrayEquals(new byte[]{93, (byte) 184, (byte) 216, 34}, record.wireRdata());
+            assertEquals(InetAddress.getByName("93.184.216.34"), record.address());
+            assertEquals("93.184.216.34", record.rdata());
+        }
+
+        @Test
+        void shouldWriteWireRdataBackUnchanged() {
+            byte[] in = aRecordBytes();
+            DNSRecord record = converter.read(in, 0).value().withTtl(300);
+
+            byte[] out = new byte[in.length];
+            int offset = converter.write(record, 0, out);
+
+            assertEquals(in.length, offset);
+            assertArrayEquals(in, out);
+        }
+
+        @Test
+        void shouldWriteRecordsOfUnknownTypeAndClassBackUnchanged() {
+            byte[] in = aRecordBytes();
+            writeU16(in, 8, QType.HTTPS.code() + 1000);
+            writeU16(in, 10, 1232);
+            DNSRecord record = converter.read(in, 0).value();
+
+            byte[] out = new byte[in.length];
+            converter.write(record, 0, out);
+
+            assertEquals(QType.UNKNOWN, record.qtype());
+            assertEquals(QClass.UNKNOWN, record.qclass());
+            assertArrayEquals(in, out);
+        }
+
+        @Test
+        void shouldFormatUnknownRdataAsHex() {
+            byte[] bytes = aRecordBytes();
+            writeU16(bytes, 8, QType.HINFO.code());
+
+            assertEquals("5DB8D822", converter.read(bytes, 0).value().rdata());
+        }
+
         @Test
         void shouldReadQname() {
             Result<DNSRecord> recordResult = converter.read(aRecordBytes(), 0);
@@ -99,5 +146,104 @@ class DNSRecordEntityConverterTest {
             assertEquals(record.rdlength(), roundTripped.value().rdlength());
             assertEquals(record.rdata(), roundTripped.value().rdata());
         }
+
+        @Test
+        void shouldCompressRepeatedOwnerNamesAndNameRdata() {
+            DNSRecord first = new DNSRecord("WWW.EXAMPLE.COM", QType.A, QClass.IN, 300, 4, "93.184.216.34");
+            DNSRecord second = new DNSRecord("WWW.EXAMPLE.COM", QType.A, QClass.IN, 300, 4, "93.184.216.35");
+            DNSRecord ns = new DNSRecord("EXAMPLE.COM", QType.NS, QClass.IN, 60, 0, "NS1.EXAMPLE.COM");
+
+            byte[] out = new byte[512];
+            NameCompressor names = NameCompressor.forMessage();
+            int offset = converter.write(first, 12, out, names);
+            int secondOffset = offset;
+            offset = converter.write(second, offset, out, names);
+            int nsOffset = offset;
+            offset = converter.write(ns, offset, out, names);
+
+            assertEquals(12 + 17 + 14, secondOffset);
+            assertEquals(0xC0, out[secondOffset] & 0xFF);
+            assertEquals(12, out[secondOffset + 1]);
+            assertEquals(secondOffset + 2 + 14, nsOffset);
+            assertEquals(0xC0, out[nsOffset] & 0xFF);
+            assertEquals(16, out[nsOffset + 1]);
+            assertEquals(nsOffset + 2 + 10 + 6, offset);
+
+            Result<DNSRecord> roundTripped = converter.read(out, nsOffset);
+            assertEquals("EXAMPLE.COM", roundTripped.value().name());
+            assertEquals(6, roundTripped.value().rdlength());
+            assertEquals("NS1.EXAMPLE.COM", roundTripped.value().rdata());
+            assertEquals("WWW.EXAMPLE.COM", converter.read(out, secondOffset).value().name());
+        }
+
+        @Test
+        void shouldRoundTripMxPreferenceAndCompressedExchange() {
+            DNSRecord mx = new DNSRecord("EXAMPLE.COM", QType.MX, QClass.IN, 300, 0, "10 MAIL.EXAMPLE.COM");
+            DNSRecord minfo = new DNSRecord("EXAMPLE.COM", QType.MINFO, QClass.IN, 300, 0, "ADMIN.EXAMPLE.COM ERRORS.EXAMPLE.COM");
+
+            byte[] out = new byte[512];
+            NameCompressor names = NameCompressor.forMessage();
+            int offset = converter.write(mx, 12, out, names);
+            int minfoOffset = offset;
+            offset = converter.write(minfo, offset, out, names);
+
+            // owner 13, fixed fields 10, preference 2, MAIL label 5, pointer to EXAMPLE.COM 2
+            assertEquals(12 + 13 + 10 + 2 + 5 + 2, minfoOffset);
+            assertEquals(0, out[12 + 23] & 0xFF);
+            assertEquals(10, out[12 + 24] & 0xFF);
+            assertEquals(0xC0, out[minfoOffset - 2] & 0xFF);
+            assertEquals(12, out[minfoOffset - 1]);
+
+            Result<DNSRecord> roundTripped = converter.read(out, 12);
+            assertEquals("10 MAIL.EXAMPLE.COM", roundTripped.value().rdata());
+            assertEquals(9, roundTripped.value().rdlength());
+            assertEquals(minfoOffset, roundTripped.offset());
+
+            Result<DNSRecord> minfoRoundTripped = converter.read(out, minfoOffset);
+            assertEquals("ADMIN.EXAMPLE.COM ERRORS.EXAMPLE.COM", minfoRoundTripped.value().rdata());
+            assertEquals(offset, minfoRoundTripped.offset());
+        }
+
+        @Test
+        void shouldKeepCompressingOnceTheTableGrows() {
+            byte[] out = new byte[4096];
+            NameCompressor names = NameCompressor.forMessage();
+            int offset = 12;
+            for (int i = 0; i < 40; i++) {
+                offset = converter.write(new DNSRecord("HOST" + i + ".EXAMPLE.COM", QType.A, QClass.IN, 300, 4, "10.0.0.1"), offset, out, names);
+            }
+            int repeat = offset;
+            offset = converter.write(new DNSRecord("HOST0.EXAMPLE.COM", QType.A, QClass.IN, 300, 4, "10.0.0.1"), offset, out, names);
+
+            assertEquals(0xC0, out[repeat] & 0xFF);
+            assertEquals(12, out[repeat + 1]);
+            assertEquals(repeat + 2 + 14, offset);
+        }
+
+        @Test
+        void shouldNotCompressAgainstNamesOfEarlierMessages() {
+            DNSRecord record = new DNSRecord("VENERA", QType.A, QClass.IN, 300, 4, "93.184.216.34");
+
+            byte[] out = new byte[512];
+            converter.write(record, 12, out, NameCompressor.forMessage());
+            int offset = converter.write(record, 12, out, NameCompressor.forMessage());
+
+            assertEquals(12 + 22, offset);
+        }
+
+        @Test
+        void shouldNotCompressAgainstNamesOfTheMessageThatReleasedTheCompressor() {
+            DNSRecord record = new DNSRecord("VENERA", QType.A, QClass.IN, 300, 4, "93.184.216.34");
+
+            byte[] out = new byte[512];
+            NameCompressor first = NameCompressor.acquire();
+            converter.write(record, 12, out, first);
+            first.release();
+            NameCompressor second = NameCompressor.acquire();
+            int offset = converter.write(record, 12, out, second);
+            second.release();
+
+            assertEquals(12 + 22, offset);
+        }
     }
-}
\ No newline at end of file
+}
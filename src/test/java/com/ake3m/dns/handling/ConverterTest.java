@@ -7,6 +7,7 @@ import com.ake3m.dns.model.DNSHeader;
 import com.ake3m.dns.model.DNSMessage;
 import com.ake3m.dns.model.DNSQuestion;
 import com.ake3m.dns.model.DNSRecord;
+import com.ake3m.dns.model.Edns;
 import com.ake3m.dns.model.QClass;
 import com.ake3m.dns.model.QType;
 import com.ake3m.dns.model.Rcode;
@@ -16,6 +17,9 @@ import org.junit.jupiter.api.Test;
 import static com.ake3m.dns.converter.ByteConverter.writeIPv6;
 import static com.ake3m.dns.converter.ByteConverter.writeName;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class ConverterTest {
     private DNSHeaderEntityConverter headerConv;
@@ -202,4 +206,114 @@ class ConverterTest {
         writeIPv6(in.additionalRecords()[0].rdata(), 0, viaIn);
         for (int i = 0; i < 16; i++) assertEquals(viaIn[i], norm[i]);
     }
+
+    @Test
+    void toDnsResponseRewritesHeaderWithoutReencodingSections() {
+        byte[] packet = new byte[512];
+        DNSHeader header = new DNSHeader(0x3333, 1, 0, 0, 0, 1, 1, 0, Rcode.NOERROR, 1, 1, 0, 0);
+        int offset = headerConv.write(header, packet);
+        offset = questionConv.write(new DNSQuestion("EXAMPLE.COM", QType.A, QClass.IN), offset, packet);
+        int answerOffset = offset;
+        byte[] answer = {
+                (byte) 0xC0, 0x0C,          // compressed pointer to the question name
+                0x00, 0x01, 0x00, 0x01,     // A IN
+                0x00, 0x00, 0x01, 0x2C,     // TTL 300
+                0x00, 0x04, 93, (byte) 184, (byte) 216, 34
+        };
+        System.arraycopy(answer, 0, packet, offset, answer.length);
+
+        DNSMessage received = converter.toDNSResponse(packet);
+        DNSMessage readdressed = received.withHeader(received.header().withId(0x4444));
+
+        assertNotNull(readdressed.sections());
+        byte[] out = converter.toDNSResponse(readdressed);
+
+        assertEquals(0x44, out[0]);
+        assertEquals(0x44, out[1]);
+        for (int i = 2; i < answerOffset + answer.length; i++) assertEquals(packet[i], out[i]);
+        assertEquals("EXAMPLE.COM", readdressed.answers()[0].name());
+        assertEquals("93.184.216.34", readdressed.answers()[0].rdata());
+    }
+
+    @Test
+    void toDnsRequestAdvertisesOurPayloadSizeUpstream() {
+        DNSHeader header = new DNSHeader(0x5555, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 1);
+        DNSQuestion q = new DNSQuestion("EXAMPLE.COM", QType.A, QClass.IN);
+        Edns requested = new Edns(4096, 0, 0, true);
+        DNSMessage in = new DNSMessage(header, new DNSQuestion[]{q}, new DNSRecord[]{}, new DNSRecord[]{},
+                new DNSRecord[]{requested.toRecord()});
+
+        byte[] bytes = converter.toDNSRequest(in);
+        DNSMessage parsed = converter.toDNSRequest(bytes);
+
+        assertEquals(1, parsed.header().arcount());
+        assertEquals(new Edns(Edns.DEFAULT_PAYLOAD_SIZE, 0, 0, true), Edns.of(parsed));
+        assertEquals(12 + 17 + 11, bytes.length);
+    }
+
+    @Test
+    void toDnsResponseTruncatesToTheRequestorsPayloadSize() {
+        DNSMessage response = manyAnswers(40);
+
+        byte[] plain = converter.toDNSResponse(response, null);
+        byte[] edns = converter.toDNSResponse(response, new Edns(Edns.DEFAULT_PAYLOAD_SIZE, 0, 0, false));
+
+        DNSMessage truncated = converter.toDNSResponse(plain);
+        assertEquals(1, truncated.header().tc());
+        assertEquals(0, truncated.header().ancount());
+        assertEquals("EXAMPLE.COM", truncated.questions()[0].qname());
+        assertNull(Edns.of(truncated));
+
+        DNSMessage full = converter.toDNSResponse(edns);
+        assertEquals(0, full.header().tc());
+        assertEquals(40, full.header().ancount());
+        assertEquals(Edns.DEFAULT_PAYLOAD_SIZE, Edns.of(full).payloadSize());
+    }
+
+    @Test
+    void toDnsResponseStopsAtTheLastWholeRRsetThatFits() {
+        DNSRecord[] answers = new DNSRecord[40];
+        for (int i = 0; i < answers.length; i++) {
+            answers[i] = new DNSRecord(i < 20 ? "EXAMPLE.COM" : "WWW.EXAMPLE.COM", QType.A, QClass.IN, 300, 4, "10.0.0." + i);
+        }
+        DNSMessage response = new DNSMessage(
+                new DNSHeader(0x7777, 1, 0, 0, 0, 1, 1, 0, Rcode.NOERROR, 1, answers.length, 0, 0),
+                new DNSQuestion[]{new DNSQuestion("EXAMPLE.COM", QType.A, QClass.IN)},
+                answers,
+                new DNSRecord[]{},
+                new DNSRecord[]{}
+        );
+
+        byte[] bytes = converter.toDNSResponse(response, null);
+        DNSMessage truncated = converter.toDNSResponse(bytes);
+
+        assertTrue(bytes.length <= Edns.MIN_PAYLOAD_SIZE);
+        assertEquals(1, truncated.header().tc());
+        assertEquals(20, truncated.answers().length);
+        assertEquals("10.0.0.19", truncated.answers()[19].rdata());
+    }
+
+    @Test
+    void toDnsResponseDropsOptForRequestorsWithoutEdns() {
+        DNSMessage response = manyAnswers(1);
+
+        DNSMessage out = converter.toDNSResponse(converter.toDNSResponse(response, null));
+
+        assertEquals(0, out.header().arcount());
+        assertEquals(1, out.answers().length);
+    }
+
+    private static DNSMessage manyAnswers(int count) {
+        DNSRecord[] answers = new DNSRecord[count];
+        for (int i = 0; i < count; i++) {
+            answers[i] = new DNSRecord("EXAMPLE.COM", QType.A, QClass.IN, 300, 4, "10.0.0." + i);
+        }
+        return new DNSMessage(
+                new DNSHeader(0x6666, 1, 0, 0, 0, 1, 1, 0, Rcode.NOERROR, 1, count, 0, 1),
+                new DNSQuestion[]{new DNSQuestion("EXAMPLE.COM", QType.A, QClass.IN)},
+                answers,
+                new DNSRecord[]{},
+                new DNSRecord[]{new Edns(4096, 0, 0, false).toRecord()}
+        );
+    }
 }
@@ -3,6 +3,8 @@ package com.ake3m.dns.handling;
 import com.ake3m.dns.converter.DNSHeaderEntityConverter;
 import com.ake3m.dns.converter.DNSQuestionEntityConverter;
 import com.ake3m.dns.converter.DNSRecordEntityConverter;
+import com.ake3m.dns.handling.transport.TcpFraming;
+import com.ake3m.dns.handling.upstream.HedgePolicy;
 import com.ake3m.dns.model.DNSHeader;
 import com.ake3m.dns.model.DNSMessage;
 import com.ake3m.dns.model.DNSQuestion;
@@ -15,6 +17,12 @@ import org.junit.jupiter.api.Test;
 
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -40,6 +48,15 @@ class DNSClientTest {
 
     @Test
     void forwardSendsRequestAndParsesResponse() throws Exception {
+        assertForwardSendsRequestAndParsesResponse(DNSClient.Mode.SERIAL);
+    }
+
+    @Test
+    void virtualThreadForwardSendsRequestAndParsesResponse() throws Exception {
+        assertForwardSendsRequestAndParsesResponse(DNSClient.Mode.VIRTUAL_THREAD);
+    }
+
+    private void assertForwardSendsRequestAndParsesResponse(DNSClient.Mode mode) throws Exception {
         try (DatagramSocket server = new DatagramSocket(0)) {
             server.setSoTimeout(3000);
             int port = server.getLocalPort();
@@ -88,7 +105,7 @@ class DNSClientTest {
             serverThread.start();
 
             executor = Executors.newSingleThreadExecutor();
-            DNSClient client = new DNSClient("127.0.0.1", port, converter);
+            DNSClient client = new DNSClient("127.0.0.1", port, converter, mode);
 
             DNSHeader header = new DNSHeader(0x4455, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 0);
             DNSQuestion q = new DNSQuestion("EXAMPLE.COM", QType.A, QClass.IN);
@@ -106,4 +123,304 @@ class DNSClientTest {
             client.close();
         }
     }
+
+    @Test
+    void serialForwardSkipsResponsesToOtherQueries() throws Exception {
+        try (DatagramSocket server = new DatagramSocket(0)) {
+            server.setSoTimeout(3000);
+            Thread serverThread = new Thread(() -> {
+                try {
+                    byte[] buf = new byte[512];
+                    DatagramPacket request = new DatagramPacket(buf, buf.length);
+                    server.receive(request);
+                    DNSMessage message = converter.toDNSRequest(buf);
+
+                    byte[] stale = converter.toDNSResponse(answer(message, message.header().id() ^ 0xFFFF, "6.6.6.6"));
+                    server.send(new DatagramPacket(stale, stale.length, request.getSocketAddress()));
+                    byte[] out = converter.toDNSResponse(answer(message, message.header().id(), "1.1.1.1"));
+                    server.send(new DatagramPacket(out, out.length, request.getSocketAddress()));
+                } catch (Exception ignored) {
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            DNSClient client = new DNSClient("127.0.0.1", server.getLocalPort(), converter, DNSClient.Mode.SERIAL);
+            DNSHeader header = new DNSHeader(0x4455, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 0);
+            DNSMessage request = new DNSMessage(header, new DNSQuestion[]{new DNSQuestion("ONE.EXAMPLE.COM", QType.A, QClass.IN)}, new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{});
+
+            DNSMessage response = ((Either.Right<DNSError, DNSMessage>) client.forward(request).get(3, TimeUnit.SECONDS)).data();
+
+            assertEquals(0x4455, response.header().id());
+            assertEquals("1.1.1.1", response.answers()[0].rdata());
+
+            client.close();
+        }
+    }
+
+    @Test
+    void multiplexedForwardMatchesOutOfOrderResponsesAndDropsUnmatched() throws Exception {
+        try (DatagramSocket server = new DatagramSocket(0)) {
+            server.setSoTimeout(3000);
+            int port = server.getLocalPort();
+
+            CountDownLatch handled = new CountDownLatch(1);
+            Thread serverThread = new Thread(() -> {
+                try {
+                    DatagramPacket[] requests = new DatagramPacket[2];
+                    DNSMessage[] messages = new DNSMessage[2];
+                    for (int i = 0; i < 2; i++) {
+                        byte[] buf = new byte[512];
+                        requests[i] = new DatagramPacket(buf, buf.length);
+                        server.receive(requests[i]);
+                        messages[i] = converter.toDNSRequest(buf);
+                    }
+
+                    DNSMessage unmatched = answer(messages[0], messages[0].header().id() ^ 0xFFFF, "6.6.6.6");
+                    byte[] bogus = converter.toDNSResponse(unmatched);
+                    server.send(new DatagramPacket(bogus, bogus.length, requests[0].getSocketAddress()));
+
+                    DNSQuestion asked = messages[0].questions()[0];
+                    DNSMessage respelled = new DNSMessage(messages[0].header(),
+                            new DNSQuestion[]{new DNSQuestion(asked.qname().toLowerCase(), asked.qtype(), asked.qclass())},
+                            new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{});
+                    byte[] spoofed = converter.toDNSResponse(answer(respelled, messages[0].header().id(), "6.6.6.6"));
+                    server.send(new DatagramPacket(spoofed, spoofed.length, requests[0].getSocketAddress()));
+
+                    for (int i = 1; i >= 0; i--) {
+                        String name = messages[i].questions()[0].qname();
+                        DNSMessage response = answer(messages[i], messages[i].header().id(), name.startsWith("ONE") ? "1.1.1.1" : "2.2.2.2");
+                        byte[] out = converter.toDNSResponse(response);
+                        server.send(new DatagramPacket(out, out.length, requests[i].getSocketAddress()));
+                    }
+                } catch (Exception ignored) {
+                } finally {
+                    handled.countDown();
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            DNSClient client = new DNSClient("127.0.0.1", port, converter, DNSClient.Mode.MULTIPLEXED);
+
+            DNSHeader header = new DNSHeader(0x4455, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 0);
+            DNSMessage one = new DNSMessage(header, new DNSQuestion[]{new DNSQuestion("ONE.EXAMPLE.COM", QType.A, QClass.IN)}, new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{});
+            DNSMessage two = new DNSMessage(header, new DNSQuestion[]{new DNSQuestion("TWO.EXAMPLE.COM", QType.A, QClass.IN)}, new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{});
+
+            CompletableFuture<Either<DNSError, DNSMessage>> first = client.forward(one);
+            CompletableFuture<Either<DNSError, DNSMessage>> second = client.forward(two);
+
+            DNSMessage firstData = ((Either.Right<DNSError, DNSMessage>) first.get(3, TimeUnit.SECONDS)).data();
+            DNSMessage secondData = ((Either.Right<DNSError, DNSMessage>) second.get(3, TimeUnit.SECONDS)).data();
+
+            assertEquals(0x4455, firstData.header().id());
+            assertEquals("1.1.1.1", firstData.answers()[0].rdata());
+            assertEquals(0x4455, secondData.header().id());
+            assertEquals("2.2.2.2", secondData.answers()[0].rdata());
+
+            assertTrue(handled.await(1, TimeUnit.SECONDS));
+
+            client.close();
+        }
+    }
+
+    @Test
+    void hedgedForwardIsAnsweredBySecondUpstreamWhenFirstIsSilent() throws Exception {
+        assertHedgedForwardIsAnsweredBySecondUpstream(DNSClient.Mode.MULTIPLEXED);
+    }
+
+    /**
+     * The virtual thread transport answers on the calling virtual thread, which must not keep the hedge from going out.
+     */
+    @Test
+    void virtualThreadHedgedForwardIsAnsweredBySecondUpstreamWhenFirstIsSilent() throws Exception {
+        assertHedgedForwardIsAnsweredBySecondUpstream(DNSClient.Mode.VIRTUAL_THREAD);
+    }
+
+    private void assertHedgedForwardIsAnsweredBySecondUpstream(DNSClient.Mode mode) throws Exception {
+        try (DatagramSocket silent = new DatagramSocket(0); DatagramSocket server = new DatagramSocket(0)) {
+            server.setSoTimeout(3000);
+
+            Thread serverThread = new Thread(() -> {
+                try {
+                    byte[] buf = new byte[512];
+                    DatagramPacket req = new DatagramPacket(buf, buf.length);
+                    server.receive(req);
+                    DNSMessage request = converter.toDNSRequest(buf);
+                    byte[] out = converter.toDNSResponse(answer(request, request.header().id(), "3.3.3.3"));
+                    server.send(new DatagramPacket(out, out.length, req.getSocketAddress()));
+                } catch (Exception ignored) {
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            // the silent upstream is listed first, so it is the primary unless the selector explores
+            DNSClient client = new DNSClient(
+                    List.of(new InetSocketAddress("127.0.0.1", silent.getLocalPort()),
+                            new InetSocketAddress("127.0.0.1", server.getLocalPort())),
+                    converter,
+                    mode,
+                    new HedgePolicy(0.95, Duration.ofMillis(10), 0.05),
+                    DNSClient.DEFAULT_DEADLINE);
+
+            DNSHeader header = new DNSHeader(0x4455, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 0);
+            DNSMessage request = new DNSMessage(header, new DNSQuestion[]{new DNSQuestion("EXAMPLE.COM", QType.A, QClass.IN)}, new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{});
+
+            executor = Executors.newVirtualThreadPerTaskExecutor();
+            long start = System.nanoTime();
+            DNSMessage data = ((Either.Right<DNSError, DNSMessage>) executor.submit(() -> client.forward(request).join()).get(3, TimeUnit.SECONDS)).data();
+
+            // well before the silent primary's first retransmission timeout
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+            assertEquals(0x4455, data.header().id());
+            assertEquals("3.3.3.3", data.answers()[0].rdata());
+
+            client.close();
+        }
+    }
+
+    @Test
+    void forwardRetransmitsAfterLostQuery() throws Exception {
+        try (DatagramSocket server = new DatagramSocket(0)) {
+            server.setSoTimeout(3000);
+
+            Thread serverThread = new Thread(() -> {
+                try {
+                    byte[] buf = new byte[512];
+                    DatagramPacket req = new DatagramPacket(buf, buf.length);
+                    server.receive(req); // the first query is lost
+                    req.setLength(buf.length);
+                    server.receive(req);
+                    DNSMessage request = converter.toDNSRequest(buf);
+                    byte[] out = converter.toDNSResponse(answer(request, request.header().id(), "4.4.4.4"));
+                    server.send(new DatagramPacket(out, out.length, req.getSocketAddress()));
+                } catch (Exception ignored) {
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            DNSClient client = new DNSClient("127.0.0.1", server.getLocalPort(), converter, DNSClient.Mode.MULTIPLEXED);
+
+            Either<DNSError, DNSMessage> response = client.forward(query()).get(3, TimeUnit.SECONDS);
+
+            DNSMessage data = ((Either.Right<DNSError, DNSMessage>) response).data();
+            assertEquals("4.4.4.4", data.answers()[0].rdata());
+            assertEquals(1, client.upstreams().get(0).rtt().samples());
+
+            client.close();
+        }
+    }
+
+    @Test
+    void forwardReportsElapsedTimeWhenDeadlinePasses() throws Exception {
+        try (DatagramSocket silent = new DatagramSocket(0)) {
+            DNSClient client = new DNSClient(
+                    List.of(new InetSocketAddress("127.0.0.1", silent.getLocalPort())),
+                    converter,
+                    DNSClient.Mode.MULTIPLEXED,
+                    null,
+                    Duration.ofMillis(300));
+
+            Either<DNSError, DNSMessage> response = client.forward(query()).get(3, TimeUnit.SECONDS);
+
+            DNSError.UpstreamTimeout timeout = (DNSError.UpstreamTimeout) ((Either.Left<DNSError, DNSMessage>) response).error();
+            assertTrue(timeout.timeout().compareTo(Duration.ofMillis(300)) >= 0, timeout.toString());
+            assertTrue(timeout.timeout().compareTo(Duration.ofSeconds(2)) < 0, timeout.toString());
+
+            client.close();
+        }
+    }
+
+    @Test
+    void forwardRawRelaysUpstreamBytesVerbatim() throws Exception {
+        try (DatagramSocket server = new DatagramSocket(0)) {
+            server.setSoTimeout(3000);
+            byte[][] sent = new byte[1][];
+
+            Thread serverThread = new Thread(() -> {
+                try {
+                    byte[] buf = new byte[512];
+                    DatagramPacket req = new DatagramPacket(buf, buf.length);
+                    server.receive(req);
+                    DNSMessage request = converter.toDNSRequest(buf);
+                    byte[] out = converter.toDNSResponse(answer(request, request.header().id(), "5.5.5.5"));
+                    sent[0] = out;
+                    server.send(new DatagramPacket(out, out.length, req.getSocketAddress()));
+                } catch (Exception ignored) {
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            DNSClient client = new DNSClient("127.0.0.1", server.getLocalPort(), converter, DNSClient.Mode.MULTIPLEXED);
+            byte[] query = converter.toDNSRequest(query());
+
+            byte[] response = ((Either.Right<DNSError, byte[]>) client.forwardRaw(query).get(3, TimeUnit.SECONDS)).data();
+
+            assertEquals(0x44, response[0]);
+            assertEquals(0x55, response[1]);
+            for (int i = 2; i < response.length; i++) assertEquals(sent[0][i], response[i]);
+
+            client.close();
+        }
+    }
+
+    @Test
+    void forwardRepeatsTruncatedAnswerOverTcp() throws Exception {
+        try (DatagramSocket udp = new DatagramSocket(0);
+             ServerSocket tcp = new ServerSocket(udp.getLocalPort())) {
+            udp.setSoTimeout(3000);
+            tcp.setSoTimeout(3000);
+
+            Thread serverThread = new Thread(() -> {
+                try {
+                    byte[] buf = new byte[512];
+                    DatagramPacket req = new DatagramPacket(buf, buf.length);
+                    udp.receive(req);
+                    DNSMessage request = converter.toDNSRequest(buf);
+                    DNSHeader h = request.header();
+                    DNSHeader truncated = new DNSHeader(h.id(), 1, h.opcode(), 0, 1, h.rd(), 0, 0, Rcode.NOERROR, 1, 0, 0, 0);
+                    byte[] out = converter.toDNSResponse(new DNSMessage(truncated, request.questions(),
+                            new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{}));
+                    udp.send(new DatagramPacket(out, out.length, req.getSocketAddress()));
+
+                    try (Socket connection = tcp.accept()) {
+                        DNSMessage tcpRequest = converter.toDNSRequest(TcpFraming.readFrame(connection.getInputStream()));
+                        byte[] full = converter.toDNSResponse(answer(tcpRequest, tcpRequest.header().id(), "6.6.6.6"));
+                        TcpFraming.writeFrame(connection.getOutputStream(), full);
+                    }
+                } catch (Exception ignored) {
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            DNSClient client = new DNSClient("127.0.0.1", udp.getLocalPort(), converter, DNSClient.Mode.MULTIPLEXED);
+
+            Either<DNSError, DNSMessage> response = client.forward(query()).get(3, TimeUnit.SECONDS);
+
+            DNSMessage data = ((Either.Right<DNSError, DNSMessage>) response).data();
+            assertEquals(0, data.header().tc());
+            assertEquals("6.6.6.6", data.answers()[0].rdata());
+
+            client.close();
+        }
+    }
+
+    private static DNSMessage query() {
+        DNSHeader header = new DNSHeader(0x4455, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 0);
+        DNSQuestion q = new DNSQuestion("EXAMPLE.COM", QType.A, QClass.IN);
+        return new DNSMessage(header, new DNSQuestion[]{q}, new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{});
+    }
+
+    private static DNSMessage answer(DNSMessage request, int id, String address) {
+        DNSHeader h = request.header();
+        DNSHeader respHeader = new DNSHeader(id, 1, h.opcode(), 0, 0, h.rd(), 0, 0, Rcode.NOERROR, 1, 1, 0, 0);
+        DNSQuestion q = request.questions()[0];
+        DNSRecord a = new DNSRecord(q.qname(), QType.A, QClass.IN, 60, 4, address);
+        return new DNSMessage(respHeader, new DNSQuestion[]{q}, new DNSRecord[]{a}, new DNSRecord[]{}, new DNSRecord[]{});
+    }
 }
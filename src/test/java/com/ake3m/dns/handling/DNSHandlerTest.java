@@ -3,6 +3,7 @@ package com.ake3m.dns.handling;
 import com.ake3m.dns.converter.DNSHeaderEntityConverter;
 import com.ake3m.dns.converter.DNSQuestionEntityConverter;
 import com.ake3m.dns.converter.DNSRecordEntityConverter;
+import com.ake3m.dns.converter.WireQuestion;
 import com.ake3m.dns.handling.Either.Right;
 import com.ake3m.dns.model.*;
 import org.junit.jupiter.api.Test;
@@ -10,11 +11,15 @@ import org.junit.jupiter.api.Test;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class DNSHandlerTest {
@@ -91,4 +96,267 @@ class DNSHandlerTest {
             client.close();
         }
     }
+
+    @Test
+    void handlerCoalescesConcurrentIdenticalQuestions() throws Exception {
+        AtomicInteger forwarded = new AtomicInteger();
+        CompletableFuture<Either<DNSError, DNSMessage>> upstream = new CompletableFuture<>();
+        DNSHandler.Forwarder forwarder = request -> {
+            forwarded.incrementAndGet();
+            return upstream;
+        };
+        DNSHandler handler = new DNSHandler(forwarder, List.of(), List.of());
+
+        CompletableFuture<Either<DNSError, DNSMessage>> first = handler.handle(query(0x0001, "EXAMPLE.COM"));
+        CompletableFuture<Either<DNSError, DNSMessage>> second = handler.handle(query(0x0002, "example.com"));
+
+        DNSHeader h = new DNSHeader(0x0001, 1, 0, 0, 0, 1, 1, 0, Rcode.NOERROR, 1, 1, 0, 0);
+        DNSQuestion q = new DNSQuestion("EXAMPLE.COM", QType.A, QClass.IN);
+        DNSRecord a = new DNSRecord("EXAMPLE.COM", QType.A, QClass.IN, 10, 4, "1.2.3.4");
+        upstream.complete(Either.right(new DNSMessage(h, new DNSQuestion[]{q}, new DNSRecord[]{a}, new DNSRecord[]{}, new DNSRecord[]{})));
+
+        DNSMessage firstResponse = ((Right<DNSError, DNSMessage>) first.get(1, TimeUnit.SECONDS)).data();
+        DNSMessage secondResponse = ((Right<DNSError, DNSMessage>) second.get(1, TimeUnit.SECONDS)).data();
+
+        assertEquals(1, forwarded.get());
+        assertEquals(0x0001, firstResponse.header().id());
+        assertEquals(0x0002, secondResponse.header().id());
+        assertEquals("example.com", secondResponse.questions()[0].qname());
+        assertEquals("1.2.3.4", secondResponse.answers()[0].rdata());
+    }
+
+    @Test
+    void forwarderThatThrowsFailsTheQueryAndIsNotCoalescedOnto() {
+        AtomicInteger forwarded = new AtomicInteger();
+        DNSHandler.Forwarder forwarder = request -> {
+            forwarded.incrementAndGet();
+            throw new IllegalStateException("upstream gone");
+        };
+        DNSHandler handler = new DNSHandler(forwarder, List.of(), List.of());
+
+        CompletableFuture<Either<DNSError, DNSMessage>> first = handler.handle(query(0x0001, "EXAMPLE.COM"));
+        CompletableFuture<Either<DNSError, DNSMessage>> second = handler.handle(query(0x0002, "EXAMPLE.COM"));
+
+        assertTrue(first.isCompletedExceptionally());
+        assertTrue(second.isCompletedExceptionally());
+        assertEquals(2, forwarded.get());
+    }
+
+    @Test
+    void handlerDoesNotCoalesceQuestionsThatDifferInCheckingDisabled() {
+        AtomicInteger forwarded = new AtomicInteger();
+        DNSHandler.Forwarder forwarder = request -> {
+            forwarded.incrementAndGet();
+            return new CompletableFuture<>();
+        };
+        DNSHandler handler = new DNSHandler(forwarder, List.of(), List.of());
+
+        DNSMessage checked = query(0x0001, "EXAMPLE.COM");
+        DNSHeader h = checked.header();
+        DNSHeader cd = new DNSHeader(0x0002, h.qr(), h.opcode(), h.aa(), h.tc(), h.rd(), h.ra(), 1, h.rcode(), h.qdcount(), h.ancount(), h.nscount(), h.arcount());
+        handler.handle(checked);
+        handler.handle(checked.withHeader(cd));
+
+        assertEquals(2, forwarded.get());
+    }
+
+    @Test
+    void handlerRelaysRawBytesWhenNoInterceptorNeedsTheMessage() throws Exception {
+        AtomicInteger forwarded = new AtomicInteger();
+        CompletableFuture<Either<DNSError, byte[]>> upstream = new CompletableFuture<>();
+        DNSHandler.Forwarder forwarder = new DNSHandler.Forwarder() {
+            @Override
+            public CompletableFuture<Either<DNSError, DNSMessage>> forward(DNSMessage request) {
+                throw new AssertionError("raw queries must not be decoded");
+            }
+
+            @Override
+            public boolean forwardsRaw() {
+                return true;
+            }
+
+            @Override
+            public CompletableFuture<Either<DNSError, byte[]>> forwardRaw(byte[] query) {
+                forwarded.incrementAndGet();
+                return upstream;
+            }
+        };
+        DNSHandler.Interceptor logOnly = new DNSHandler.Interceptor() {
+            @Override
+            public DNSMessage intercept(DNSMessage request, DNSHandler.Chain chain) {
+                throw new AssertionError("interceptor must be skipped");
+            }
+
+            @Override
+            public boolean needsMessage() {
+                return false;
+            }
+        };
+        DNSHandler handler = new DNSHandler(forwarder, List.of(logOnly), List.of(logOnly));
+
+        byte[] firstQuery = converter.toDNSRequest(query(0x0001, "EXAMPLE.COM"));
+        byte[] secondQuery = converter.toDNSRequest(query(0x0002, "example.com"));
+        CompletableFuture<Either<DNSError, byte[]>> first = handler.handleRaw(firstQuery, firstQuery.length);
+        CompletableFuture<Either<DNSError, byte[]>> second = handler.handleRaw(secondQuery, secondQuery.length);
+
+        DNSHeader h = new DNSHeader(0x0001, 1, 0, 0, 0, 1, 1, 0, Rcode.NOERROR, 1, 1, 0, 0);
+        DNSQuestion q = new DNSQuestion("EXAMPLE.COM", QType.A, QClass.IN);
+        DNSRecord a = new DNSRecord("EXAMPLE.COM", QType.A, QClass.IN, 10, 4, "1.2.3.4");
+        byte[] response = converter.toDNSResponse(new DNSMessage(h, new DNSQuestion[]{q}, new DNSRecord[]{a}, new DNSRecord[]{}, new DNSRecord[]{}));
+        upstream.complete(Either.right(response));
+
+        byte[] firstResponse = ((Right<DNSError, byte[]>) first.get(1, TimeUnit.SECONDS)).data();
+        byte[] secondResponse = ((Right<DNSError, byte[]>) second.get(1, TimeUnit.SECONDS)).data();
+
+        assertEquals(1, forwarded.get());
+        assertSame(response, firstResponse);
+        DNSMessage readdressed = converter.toDNSResponse(secondResponse);
+        assertEquals(0x0002, readdressed.header().id());
+        assertEquals("example.com", readdressed.questions()[0].qname());
+        assertEquals("1.2.3.4", readdressed.answers()[0].rdata());
+    }
+
+    @Test
+    void forwarderWithoutRawSupportAnswersRawQueriesWithServfail() throws Exception {
+        DNSHandler.Forwarder forwarder = request -> new CompletableFuture<>();
+        byte[] query = converter.toDNSRequest(query(0x0042, "EXAMPLE.COM"));
+
+        Either<DNSError, byte[]> response = forwarder.forwardRaw(query).get(1, TimeUnit.SECONDS);
+
+        Either.Left<DNSError, byte[]> left = (Either.Left<DNSError, byte[]>) response;
+        assertTrue(left.error() instanceof DNSError.InternalError);
+        DNSMessage servfail = converter.toDNSResponse(left.data());
+        assertEquals(0x0042, servfail.header().id());
+        assertEquals(1, servfail.header().qr());
+        assertEquals(Rcode.SERVFAIL, servfail.header().rcode());
+        assertEquals(0, servfail.header().qdcount());
+    }
+
+    @Test
+    void handlerDecodesWhenAnInterceptorNeedsTheMessage() {
+        DNSHandler.Forwarder forwarder = new DNSHandler.Forwarder() {
+            @Override
+            public CompletableFuture<Either<DNSError, DNSMessage>> forward(DNSMessage request) {
+                return new CompletableFuture<>();
+            }
+
+            @Override
+            public boolean forwardsRaw() {
+                return true;
+            }
+        };
+        DNSHandler handler = new DNSHandler(forwarder, List.of((msg, chain) -> chain.next(msg)), List.of());
+
+        byte[] query = converter.toDNSRequest(query(0x0001, "EXAMPLE.COM"));
+
+        assertNull(handler.handleRaw(query, query.length));
+    }
+
+    @Test
+    void stageAnsweringLocallySkipsLaterStagesAndTheForwarder() throws Exception {
+        DNSHandler.Forwarder forwarder = request -> {
+            throw new AssertionError("answered queries must not be forwarded");
+        };
+        DNSHandler.Stage answer = (request, next) -> {
+            DNSHeader h = request.header();
+            DNSHeader header = new DNSHeader(h.id(), 1, h.opcode(), 0, 0, h.rd(), 1, 0, Rcode.NAMEERR, 1, 0, 0, 0);
+            return CompletableFuture.completedFuture(Either.right(
+                    new DNSMessage(header, request.questions(), new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{})));
+        };
+        DNSHandler.Stage never = (request, next) -> {
+            throw new AssertionError("stages after an answer must not run");
+        };
+        DNSHandler handler = new DNSHandler(forwarder, List.of(), List.of(), List.of(answer, never));
+
+        DNSMessage response = ((Right<DNSError, DNSMessage>) handler.handle(query(0x0A0A, "BLOCKED.EXAMPLE")).get(1, TimeUnit.SECONDS)).data();
+
+        assertEquals(0x0A0A, response.header().id());
+        assertEquals(Rcode.NAMEERR, response.header().rcode());
+    }
+
+    @Test
+    void asyncStageRewritesTheRequestAndSeesTheResponse() throws Exception {
+        AtomicReference<String> forwardedName = new AtomicReference<>();
+        DNSHandler.Forwarder forwarder = request -> {
+            forwardedName.set(request.questions()[0].qname());
+            DNSHeader h = new DNSHeader(request.header().id(), 1, 0, 0, 0, 1, 1, 0, Rcode.NOERROR, 1, 1, 0, 0);
+            DNSRecord a = new DNSRecord(request.questions()[0].qname(), QType.A, QClass.IN, 10, 4, "1.2.3.4");
+            return CompletableFuture.completedFuture(Either.right(
+                    new DNSMessage(h, request.questions(), new DNSRecord[]{a}, new DNSRecord[]{}, new DNSRecord[]{})));
+        };
+        AtomicInteger answers = new AtomicInteger();
+        DNSHandler.Stage rewrite = (request, next) -> CompletableFuture
+                .supplyAsync(() -> {
+                    DNSQuestion q = request.questions()[0];
+                    DNSQuestion alias = new DNSQuestion("ALIAS." + q.qname(), q.qtype(), q.qclass());
+                    return new DNSMessage(request.header(), new DNSQuestion[]{alias}, request.answers(), request.authorityRecords(), request.additionalRecords());
+                })
+                .thenCompose(next::proceed)
+                .thenApply(response -> {
+                    response.mapRight(message -> {
+                        answers.addAndGet(message.answers().length);
+                        return message;
+                    });
+                    return response;
+                });
+        DNSHandler handler = new DNSHandler(forwarder, List.of(), List.of(), List.of(rewrite));
+
+        DNSMessage response = ((Right<DNSError, DNSMessage>) handler.handle(query(0x0B0B, "EXAMPLE.COM")).get(1, TimeUnit.SECONDS)).data();
+
+        assertEquals("ALIAS.EXAMPLE.COM", forwardedName.get());
+        assertEquals("1.2.3.4", response.answers()[0].rdata());
+        assertEquals(1, answers.get());
+    }
+
+    @Test
+    void rawStageAnswersWithoutDecoding() throws Exception {
+        DNSHandler.Forwarder forwarder = new DNSHandler.Forwarder() {
+            @Override
+            public CompletableFuture<Either<DNSError, DNSMessage>> forward(DNSMessage request) {
+                throw new AssertionError("raw queries must not be decoded");
+            }
+
+            @Override
+            public boolean forwardsRaw() {
+                return true;
+            }
+
+            @Override
+            public CompletableFuture<Either<DNSError, byte[]>> forwardRaw(byte[] query) {
+                throw new AssertionError("answered queries must not be forwarded");
+            }
+        };
+        byte[] refused = converter.toDNSResponse(new DNSMessage(
+                new DNSHeader(0x0C0C, 1, 0, 0, 0, 1, 1, 0, Rcode.REFUSED, 1, 0, 0, 0),
+                new DNSQuestion[]{new DNSQuestion("EXAMPLE.COM", QType.A, QClass.IN)},
+                new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{}));
+        DNSHandler.Stage refuse = new DNSHandler.Stage() {
+            @Override
+            public CompletableFuture<Either<DNSError, DNSMessage>> apply(DNSMessage request, DNSHandler.Next next) {
+                throw new AssertionError("raw queries must not be decoded");
+            }
+
+            @Override
+            public boolean needsMessage() {
+                return false;
+            }
+
+            @Override
+            public CompletableFuture<Either<DNSError, byte[]>> applyRaw(byte[] query, WireQuestion question, DNSHandler.RawNext next) {
+                return CompletableFuture.completedFuture(Either.right(refused));
+            }
+        };
+        DNSHandler handler = new DNSHandler(forwarder, List.of(), List.of(), List.of(refuse));
+
+        byte[] query = converter.toDNSRequest(query(0x0C0C, "EXAMPLE.COM"));
+        byte[] response = ((Right<DNSError, byte[]>) handler.handleRaw(query, query.length).get(1, TimeUnit.SECONDS)).data();
+
+        assertSame(refused, response);
+    }
+
+    private static DNSMessage query(int id, String name) {
+        DNSHeader h = new DNSHeader(id, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 0);
+        DNSQuestion q = new DNSQuestion(name, QType.A, QClass.IN);
+        return new DNSMessage(h, new DNSQuestion[]{q}, new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{});
+    }
 }
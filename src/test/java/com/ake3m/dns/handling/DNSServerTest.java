@@ -1,8 +1,12 @@
 package com.ake3m.dns.handling;
 
+import com.ake3m.dns.cache.CachingForwarder;
+import com.ake3m.dns.cache.ResponseCache;
+import com.ake3m.dns.cache.WireCache;
 import com.ake3m.dns.converter.DNSHeaderEntityConverter;
 import com.ake3m.dns.converter.DNSQuestionEntityConverter;
 import com.ake3m.dns.converter.DNSRecordEntityConverter;
+import com.ake3m.dns.handling.transport.TcpFraming;
 import com.ake3m.dns.model.DNSHeader;
 import com.ake3m.dns.model.DNSMessage;
 import com.ake3m.dns.model.DNSQuestion;
@@ -12,12 +16,23 @@ import com.ake3m.dns.model.QType;
 import com.ake3m.dns.model.Rcode;
 import org.junit.jupiter.api.Test;
 
+import java.net.ConnectException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -25,6 +40,20 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 class DNSServerTest {
     @Test
     void serverReceivesPacketAndResponds() throws Exception {
+        assertServerResponds(DNSServer.Engine.SOCKET, 1, ExecutionMode.ASYNC);
+    }
+
+    @Test
+    void channelServerReceivesPacketAndResponds() throws Exception {
+        assertServerResponds(DNSServer.Engine.CHANNEL, 2, ExecutionMode.ASYNC);
+    }
+
+    @Test
+    void virtualThreadServerReceivesPacketAndResponds() throws Exception {
+        assertServerResponds(DNSServer.Engine.CHANNEL, 1, ExecutionMode.VIRTUAL_THREAD);
+    }
+
+    private static void assertServerResponds(DNSServer.Engine engine, int workers, ExecutionMode executionMode) throws Exception {
         DNSHeaderEntityConverter h = new DNSHeaderEntityConverter();
         DNSQuestionEntityConverter q = new DNSQuestionEntityConverter();
         DNSRecordEntityConverter r = new DNSRecordEntityConverter();
@@ -57,7 +86,7 @@ class DNSServerTest {
             return CompletableFuture.completedFuture(Either.right(resp));
         };
 
-        DNSServer server = new DNSServer(port, handler, converter);
+        DNSServer server = new DNSServer(port, handler, converter, engine, workers, executionMode);
 
         Thread t = new Thread(() -> {
             started.countDown();
@@ -78,12 +107,10 @@ class DNSServerTest {
             byte[] payload = converter.toDNSRequest(query);
 
             DatagramPacket packet = new DatagramPacket(payload, payload.length, new InetSocketAddress("127.0.0.1", port));
-            client.send(packet);
-
             byte[] buf = new byte[512];
             DatagramPacket resp = new DatagramPacket(buf, buf.length);
-            client.setSoTimeout(30000);
-            client.receive(resp);
+            client.setSoTimeout(200);
+            receiveRetrying(client, packet, resp);
 
             byte[] data = new byte[resp.getLength()];
             System.arraycopy(resp.getData(), 0, data, 0, resp.getLength());
@@ -95,4 +122,220 @@ class DNSServerTest {
             assertEquals("203.0.113.5", response.answers()[0].rdata());
         }
     }
+
+    @Test
+    void tcpAnswersPipelinedQueriesOutOfOrder() throws Exception {
+        Converter converter = converter();
+        CompletableFuture<Either<DNSError, DNSMessage>> slow = new CompletableFuture<>();
+        DNSServer.Handler handler = req -> {
+            if (req.questions()[0].qname().equals("SLOW.EXAMPLE")) {
+                return slow;
+            }
+            return CompletableFuture.completedFuture(Either.right(answer(req)));
+        };
+        int port = startTcp(converter, handler, new DNSServer.Tcp(Duration.ofSeconds(5), 10, 10));
+
+        try (Socket socket = connect(port)) {
+            DNSMessage slowQuery = query(0x0001, "SLOW.EXAMPLE");
+            TcpFraming.writeFrame(socket.getOutputStream(), converter.toDNSRequest(slowQuery));
+            TcpFraming.writeFrame(socket.getOutputStream(), converter.toDNSRequest(query(0x0002, "FAST.EXAMPLE")));
+
+            DNSMessage first = converter.toDNSResponse(TcpFraming.readFrame(socket.getInputStream()));
+            slow.complete(Either.right(answer(slowQuery)));
+            DNSMessage second = converter.toDNSResponse(TcpFraming.readFrame(socket.getInputStream()));
+
+            assertEquals(0x0002, first.header().id());
+            assertEquals("FAST.EXAMPLE", first.answers()[0].name());
+            assertEquals(0x0001, second.header().id());
+            assertEquals("SLOW.EXAMPLE", second.answers()[0].name());
+        }
+    }
+
+    @Test
+    void tcpClosesIdleConnectionsAndRefusesThoseOverTheLimit() throws Exception {
+        Converter converter = converter();
+        DNSServer.Handler handler = req -> CompletableFuture.completedFuture(Either.right(answer(req)));
+        int port = startTcp(converter, handler, new DNSServer.Tcp(Duration.ofMillis(300), 1, 10));
+
+        try (Socket first = connect(port)) {
+            TcpFraming.writeFrame(first.getOutputStream(), converter.toDNSRequest(query(0x0003, "EXAMPLE.COM")));
+            assertEquals(0x0003, converter.toDNSResponse(TcpFraming.readFrame(first.getInputStream())).header().id());
+
+            try (Socket second = new Socket("127.0.0.1", port)) {
+                second.setSoTimeout(2000);
+                assertEquals(-1, second.getInputStream().read());
+            }
+
+            first.setSoTimeout(2000);
+            assertEquals(-1, first.getInputStream().read());
+        }
+    }
+
+    @Test
+    void tcpClientThatStopsReadingDoesNotHoldUpOthers() throws Exception {
+        Converter converter = converter();
+        ExecutorService shared = Executors.newSingleThreadExecutor();
+        DNSServer.Handler handler = req -> CompletableFuture.supplyAsync(() -> {
+            DNSHeader h = req.header();
+            int count = req.questions()[0].qname().equals("BIG.EXAMPLE") ? 3000 : 1;
+            DNSRecord[] answers = new DNSRecord[count];
+            for (int i = 0; i < count; i++) {
+                answers[i] = new DNSRecord(req.questions()[0].qname(), QType.A, QClass.IN, 120, 4, "203.0.113." + i % 256);
+            }
+            DNSHeader header = new DNSHeader(h.id(), 1, h.opcode(), 0, 0, h.rd(), 1, 0, Rcode.NOERROR, 1, count, 0, 0);
+            return Either.right(new DNSMessage(header, req.questions(), answers, new DNSRecord[]{}, new DNSRecord[]{}));
+        }, shared);
+        int port = startTcp(converter, handler, new DNSServer.Tcp(Duration.ofSeconds(5), 10, 1000, Duration.ofMillis(300)));
+
+        try (Socket healthy = connect(port); Socket stalled = new Socket()) {
+            stalled.setReceiveBufferSize(1024);
+            stalled.connect(new InetSocketAddress("127.0.0.1", port));
+            for (int id = 0; id < 200; id++) {
+                TcpFraming.writeFrame(stalled.getOutputStream(), converter.toDNSRequest(query(id, "BIG.EXAMPLE")));
+            }
+            Thread.sleep(100);
+
+            long start = System.nanoTime();
+            TcpFraming.writeFrame(healthy.getOutputStream(), converter.toDNSRequest(query(0x0007, "SMALL.EXAMPLE")));
+            DNSMessage answer = converter.toDNSResponse(TcpFraming.readFrame(healthy.getInputStream()));
+            assertEquals(0x0007, answer.header().id());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+
+            // what the server managed to write before giving up can be read, then the connection ends
+            stalled.setSoTimeout(3000);
+            byte[] drain = new byte[65536];
+            try {
+                while (stalled.getInputStream().read(drain) >= 0) {
+                }
+            } catch (SocketException closed) {
+            }
+        } finally {
+            shared.shutdownNow();
+        }
+    }
+
+    @Test
+    void cachedAnswerTruncatedOverUdpIsServedWholeOverTcp() throws Exception {
+        Converter converter = converter();
+        AtomicInteger handled = new AtomicInteger();
+        DNSHandler.Forwarder upstream = new DNSHandler.Forwarder() {
+            @Override
+            public CompletableFuture<Either<DNSError, DNSMessage>> forward(DNSMessage request) {
+                throw new AssertionError("raw queries must not be decoded");
+            }
+
+            @Override
+            public boolean forwardsRaw() {
+                return true;
+            }
+
+            @Override
+            public CompletableFuture<Either<DNSError, byte[]>> forwardRaw(byte[] query) {
+                handled.incrementAndGet();
+                DNSMessage req = converter.toDNSRequest(query);
+                DNSHeader h = req.header();
+                DNSRecord[] answers = new DNSRecord[300];
+                for (int i = 0; i < answers.length; i++) {
+                    answers[i] = new DNSRecord(req.questions()[0].qname(), QType.A, QClass.IN, 120, 4, "203.0.113." + i % 256);
+                }
+                DNSHeader header = new DNSHeader(h.id(), 1, h.opcode(), 0, 0, h.rd(), 1, 0, Rcode.NOERROR, 1, answers.length, 0, 0);
+                return CompletableFuture.completedFuture(Either.right(converter.toDNSResponse(
+                        new DNSMessage(header, req.questions(), answers, new DNSRecord[]{}, new DNSRecord[]{}))));
+            }
+        };
+        DNSHandler handler = new DNSHandler(new CachingForwarder(upstream, new ResponseCache(16), new WireCache(16)), List.of(), List.of());
+        int port = startTcp(converter, handler, new DNSServer.Tcp(Duration.ofSeconds(5), 10, 10));
+
+        byte[] udpQuery = converter.toDNSRequest(query(0x0004, "BIG.EXAMPLE"));
+        byte[] buffer = new byte[4096];
+        DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+        try (DatagramSocket client = new DatagramSocket()) {
+            client.setSoTimeout(200);
+            receiveRetrying(client, new DatagramPacket(udpQuery, udpQuery.length, new InetSocketAddress("127.0.0.1", port)), response);
+        }
+        DNSMessage truncated = converter.toDNSResponse(Arrays.copyOf(buffer, response.getLength()));
+
+        DNSMessage whole;
+        try (Socket socket = connect(port)) {
+            TcpFraming.writeFrame(socket.getOutputStream(), converter.toDNSRequest(query(0x0005, "BIG.EXAMPLE")));
+            whole = converter.toDNSResponse(TcpFraming.readFrame(socket.getInputStream()));
+        }
+
+        assertEquals(1, truncated.header().tc());
+        assertTrue(truncated.answers().length < 300);
+        assertEquals(0x0005, whole.header().id());
+        assertEquals(0, whole.header().tc());
+        assertEquals(300, whole.answers().length);
+        assertEquals(1, handled.get());
+    }
+
+    private static Converter converter() {
+        return new Converter(new DNSHeaderEntityConverter(), new DNSQuestionEntityConverter(), new DNSRecordEntityConverter());
+    }
+
+    private static int startTcp(Converter converter, DNSServer.Handler handler, DNSServer.Tcp tcp) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        DNSServer server = new DNSServer(port, handler, converter, DNSServer.Engine.SOCKET, 1, ExecutionMode.ASYNC, tcp);
+        Thread t = new Thread(() -> {
+            try {
+                server.start();
+            } catch (Exception ignored) {
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return port;
+    }
+
+    /**
+     * Like {@link #receiveRetrying}, retries until the server's listener is up.
+     */
+    private static Socket connect(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Socket socket = new Socket("127.0.0.1", port);
+                socket.setSoTimeout(3000);
+                return socket;
+            } catch (ConnectException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private static DNSMessage query(int id, String name) {
+        DNSHeader header = new DNSHeader(id, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 0);
+        DNSQuestion question = new DNSQuestion(name, QType.A, QClass.IN);
+        return new DNSMessage(header, new DNSQuestion[]{question}, new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{});
+    }
+
+    private static DNSMessage answer(DNSMessage req) {
+        DNSHeader inH = req.header();
+        DNSHeader outH = new DNSHeader(inH.id(), 1, inH.opcode(), 0, 0, inH.rd(), 0, 0, Rcode.NOERROR, 1, 1, 0, 0);
+        String name = req.questions()[0].qname();
+        DNSRecord a = new DNSRecord(name, QType.A, QClass.IN, 120, 4, "203.0.113.5");
+        return new DNSMessage(outH, req.questions(), new DNSRecord[]{a}, new DNSRecord[]{}, new DNSRecord[]{});
+    }
+
+    /**
+     * The server binds on its own thread, so resend until it is listening rather than racing the first packet.
+     */
+    static void receiveRetrying(DatagramSocket client, DatagramPacket request, DatagramPacket response) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            client.send(request);
+            try {
+                client.receive(response);
+                return;
+            } catch (SocketTimeoutException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,129 @@
+package com.ake3m.dns.handling.interceptor;
+
+import com.ake3m.dns.cache.CachingForwarder;
+import com.ake3m.dns.cache.ResponseCache;
+import com.ake3m.dns.cache.WireCache;
+import com.ake3m.dns.converter.DNSHeaderEntityConverter;
+import com.ake3m.dns.converter.DNSQuestionEntityConverter;
+import com.ake3m.dns.converter.DNSRecordEntityConverter;
+import com.ake3m.dns.converter.WireQuestion;
+import com.ake3m.dns.handling.Converter;
+import com.ake3m.dns.handling.DNSError;
+import com.ake3m.dns.handling.DNSHandler;
+import com.ake3m.dns.handling.Either;
+import com.ake3m.dns.handling.Either.Right;
+import com.ake3m.dns.model.DNSHeader;
+import com.ake3m.dns.model.DNSMessage;
+import com.ake3m.dns.model.DNSQuestion;
+import com.ake3m.dns.model.DNSRecord;
+import com.ake3m.dns.model.QClass;
+import com.ake3m.dns.model.QType;
+import com.ake3m.dns.model.Rcode;
+import com.ake3m.dns.policy.DomainTrie;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class BlocklistInterceptorTest {
+    private final Converter converter = new Converter(
+            new DNSHeaderEntityConverter(),
+            new DNSQuestionEntityConverter(),
+            new DNSRecordEntityConverter());
+    private final DomainTrie blocklist = DomainTrie.of(List.of("ads.example.com"));
+
+    @Test
+    void answersBlockedRawQueriesWithTheNullAddress() throws Exception {
+        BlocklistInterceptor interceptor = new BlocklistInterceptor(blocklist, BlocklistInterceptor.Answer.NULL_ADDRESS);
+        byte[] query = converter.toDNSRequest(query(0x1234, "Banner.ADS.example.com", QType.AAAA));
+
+        byte[] response = ((Right<DNSError, byte[]>) interceptor.applyRaw(query, WireQuestion.of(query, query.length), q -> {
+            throw new AssertionError("blocked queries must not be forwarded");
+        }).get()).data();
+
+        DNSMessage message = converter.toDNSResponse(response);
+        assertEquals(0x1234, message.header().id());
+        assertEquals(1, message.header().qr());
+        assertEquals(1, message.header().rd());
+        assertEquals(Rcode.NOERROR, message.header().rcode());
+        assertEquals("Banner.ADS.example.com", message.questions()[0].qname());
+        assertEquals(1, message.answers().length);
+        assertEquals(QType.AAAA, message.answers()[0].qtype());
+        assertEquals(BlocklistInterceptor.BLOCKED_TTL, message.answers()[0].ttl());
+        assertEquals(16, message.answers()[0].rdlength());
+    }
+
+    @Test
+    void answersBlockedQueriesWithNxdomainAndPassesOthersOn() throws Exception {
+        BlocklistInterceptor interceptor = new BlocklistInterceptor(blocklist, BlocklistInterceptor.Answer.NXDOMAIN);
+        CompletableFuture<Either<DNSError, DNSMessage>> upstream = new CompletableFuture<>();
+
+        DNSMessage blocked = ((Right<DNSError, DNSMessage>) interceptor.apply(query(0x0001, "ads.example.com", QType.A), request -> {
+            throw new AssertionError("blocked queries must not be forwarded");
+        }).get()).data();
+        CompletableFuture<Either<DNSError, DNSMessage>> allowed = interceptor.apply(query(0x0002, "www.example.com", QType.A), request -> upstream);
+
+        assertEquals(Rcode.NAMEERR, blocked.header().rcode());
+        assertEquals(0, blocked.answers().length);
+        assertSame(upstream, allowed);
+    }
+
+    @Test
+    void seesCachedNamesAndItsAnswersAreNotCached() throws Exception {
+        AtomicReference<DomainTrie> current = new AtomicReference<>(DomainTrie.of(List.of()));
+        AtomicInteger forwarded = new AtomicInteger();
+        DNSHandler.Forwarder upstream = new DNSHandler.Forwarder() {
+            @Override
+            public CompletableFuture<Either<DNSError, DNSMessage>> forward(DNSMessage request) {
+                throw new AssertionError("raw queries must not be decoded");
+            }
+
+            @Override
+            public boolean forwardsRaw() {
+                return true;
+            }
+
+            @Override
+            public CompletableFuture<Either<DNSError, byte[]>> forwardRaw(byte[] query) {
+                forwarded.incrementAndGet();
+                DNSMessage request = converter.toDNSRequest(query);
+                DNSHeader h = new DNSHeader(request.header().id(), 1, 0, 0, 0, 1, 1, 0, Rcode.NOERROR, 1, 1, 0, 0);
+                DNSRecord a = new DNSRecord(request.questions()[0].qname(), QType.A, QClass.IN, 3600, 4, "192.0.2.1");
+                return CompletableFuture.completedFuture(Either.right(converter.toDNSResponse(
+                        new DNSMessage(h, request.questions(), new DNSRecord[]{a}, new DNSRecord[]{}, new DNSRecord[]{}))));
+            }
+        };
+        DNSHandler handler = new DNSHandler(
+                new CachingForwarder(upstream, new ResponseCache(16), new WireCache(16)),
+                List.of(), List.of(),
+                List.of(new BlocklistInterceptor(current::get, BlocklistInterceptor.Answer.NULL_ADDRESS)));
+        byte[] query = converter.toDNSRequest(query(0x0001, "www.example.com", QType.A));
+
+        String first = answer(handler, query);
+        current.set(DomainTrie.of(List.of("www.example.com")));
+        String blocked = answer(handler, query);
+        current.set(DomainTrie.of(List.of()));
+        String unblocked = answer(handler, query);
+
+        assertEquals("192.0.2.1", first);
+        assertEquals("0.0.0.0", blocked);
+        assertEquals("192.0.2.1", unblocked);
+        assertEquals(1, forwarded.get());
+    }
+
+    private String answer(DNSHandler handler, byte[] query) throws Exception {
+        byte[] response = ((Right<DNSError, byte[]>) handler.handleRaw(query, query.length).get()).data();
+        return converter.toDNSResponse(response).answers()[0].rdata();
+    }
+
+    private static DNSMessage query(int id, String name, QType qtype) {
+        DNSHeader h = new DNSHeader(id, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 0);
+        DNSQuestion q = new DNSQuestion(name, qtype, QClass.IN);
+        return new DNSMessage(h, new DNSQuestion[]{q}, new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{});
+    }
+}
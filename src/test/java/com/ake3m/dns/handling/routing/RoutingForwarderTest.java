@@ -0,0 +1,161 @@
+package com.ake3m.dns.handling.routing;
+
+import com.ake3m.dns.converter.DNSHeaderEntityConverter;
+import com.ake3m.dns.converter.DNSQuestionEntityConverter;
+import com.ake3m.dns.converter.DNSRecordEntityConverter;
+import com.ake3m.dns.handling.Converter;
+import com.ake3m.dns.handling.DNSClient;
+import com.ake3m.dns.handling.DNSError;
+import com.ake3m.dns.handling.DNSHandler;
+import com.ake3m.dns.handling.Either;
+import com.ake3m.dns.model.DNSHeader;
+import com.ake3m.dns.model.DNSMessage;
+import com.ake3m.dns.model.DNSQuestion;
+import com.ake3m.dns.model.DNSRecord;
+import com.ake3m.dns.model.Name;
+import com.ake3m.dns.model.QClass;
+import com.ake3m.dns.model.QType;
+import com.ake3m.dns.model.Rcode;
+import com.ake3m.dns.policy.SuffixTable;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RoutingForwarderTest {
+    private final Converter converter = new Converter(
+            new DNSHeaderEntityConverter(),
+            new DNSQuestionEntityConverter(),
+            new DNSRecordEntityConverter());
+
+    @Test
+    void routesDecodedAndRawQueriesByLongestSuffix() {
+        List<String> seen = new ArrayList<>();
+        SuffixTable<DNSHandler.Forwarder> table = SuffixTable.of(Map.of(
+                "corp.internal", recording("corp", seen),
+                "lab.corp.internal", recording("lab", seen)));
+        RoutingForwarder forwarder = new RoutingForwarder(() -> table, recording("public", seen));
+
+        forwarder.forward(query("host.corp.internal"));
+        forwarder.forward(query("gpu.LAB.corp.internal"));
+        forwarder.forward(query("example.com"));
+        byte[] raw = converter.toDNSRequest(query("db.corp.internal"));
+        forwarder.forwardRaw(raw);
+
+        assertEquals(List.of("corp", "lab", "public", "corp raw"), seen);
+    }
+
+    @Test
+    void parsesRoutesWithOptions() {
+        Route route = Route.parse("corp.internal  10.0.0.53,10.0.0.54:5353  mode=tcp deadline=1500 cache=0 # internal");
+
+        assertEquals("corp.internal", route.suffix());
+        assertEquals(List.of(new InetSocketAddress("10.0.0.53", 53), new InetSocketAddress("10.0.0.54", 5353)), route.upstreams());
+        assertEquals(DNSClient.Mode.TCP, route.mode());
+        assertEquals(Duration.ofMillis(1500), route.deadline());
+        assertEquals(0, route.cacheSize());
+        assertEquals(Route.DEFAULT_CACHE_SIZE, Route.parse(". 8.8.8.8").cacheSize());
+        assertNull(Route.parse("   # comment only"));
+        assertThrows(IllegalArgumentException.class, () -> Route.parse("corp.internal 10.0.0.53 ttl=5"));
+    }
+
+    @Test
+    void rebuildingKeepsPoolsOfUnchangedRoutes() throws Exception {
+        Route corp = Route.parse("corp.internal 127.0.0.1:5301");
+        Route lab = Route.parse("lab.internal 127.0.0.1:5302 cache=0");
+        try (UpstreamPools pools = new UpstreamPools(converter, Duration.ofSeconds(1))) {
+            SuffixTable<DNSHandler.Forwarder> first = pools.build(List.of(corp, lab));
+            SuffixTable<DNSHandler.Forwarder> second = pools.build(List.of(corp, Route.parse("lab.internal 127.0.0.1:5303 cache=0")));
+
+            assertSame(first.lookup(Name.of("corp.internal")), second.lookup(Name.of("corp.internal")));
+            assertNotSame(first.lookup(Name.of("lab.internal")), second.lookup(Name.of("lab.internal")));
+            assertEquals(2, pools.size());
+        }
+    }
+
+    @Test
+    void routeCacheSizeGovernsRawQueriesToo() throws Exception {
+        try (DatagramSocket upstream = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            AtomicInteger answered = new AtomicInteger();
+            Thread server = new Thread(() -> {
+                try {
+                    while (true) {
+                        byte[] buf = new byte[512];
+                        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                        upstream.receive(packet);
+                        DNSMessage request = converter.toDNSRequest(buf);
+                        DNSHeader h = request.header();
+                        DNSHeader header = new DNSHeader(h.id(), 1, 0, 0, 0, h.rd(), 1, 0, Rcode.NOERROR, 1, 1, 0, 0);
+                        DNSRecord a = new DNSRecord(request.questions()[0].qname(), QType.A, QClass.IN, 300, 4, "10.0.0.1");
+                        byte[] out = converter.toDNSResponse(new DNSMessage(header, request.questions(), new DNSRecord[]{a}, new DNSRecord[]{}, new DNSRecord[]{}));
+                        answered.incrementAndGet();
+                        upstream.send(new DatagramPacket(out, out.length, packet.getSocketAddress()));
+                    }
+                } catch (Exception ignored) {
+                }
+            });
+            server.setDaemon(true);
+            server.start();
+
+            String address = "127.0.0.1:" + upstream.getLocalPort();
+            try (UpstreamPools pools = new UpstreamPools(converter, Duration.ofSeconds(1))) {
+                SuffixTable<DNSHandler.Forwarder> table = pools.build(List.of(
+                        Route.parse("cached.internal " + address),
+                        Route.parse("uncached.internal " + address + " cache=0")));
+                RoutingForwarder forwarder = new RoutingForwarder(() -> table, recording("public", new ArrayList<>()));
+
+                for (String name : List.of("host.cached.internal", "host.uncached.internal")) {
+                    byte[] raw = converter.toDNSRequest(query(name));
+                    for (int i = 0; i < 2; i++) {
+                        assertInstanceOf(Either.Right.class, forwarder.forwardRaw(raw).get(3, TimeUnit.SECONDS));
+                    }
+                }
+
+                assertEquals(3, answered.get());
+            }
+        }
+    }
+
+    private static DNSHandler.Forwarder recording(String name, List<String> seen) {
+        return new DNSHandler.Forwarder() {
+            @Override
+            public CompletableFuture<Either<DNSError, DNSMessage>> forward(DNSMessage request) {
+                seen.add(name);
+                return new CompletableFuture<>();
+            }
+
+            @Override
+            public boolean forwardsRaw() {
+                return true;
+            }
+
+            @Override
+            public CompletableFuture<Either<DNSError, byte[]>> forwardRaw(byte[] query) {
+                seen.add(name + " raw");
+                return new CompletableFuture<>();
+            }
+        };
+    }
+
+    private static DNSMessage query(String name) {
+        DNSHeader h = new DNSHeader(0x0101, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 0);
+        DNSQuestion q = new DNSQuestion(name, QType.A, QClass.IN);
+        return new DNSMessage(h, new DNSQuestion[]{q}, new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{});
+    }
+}
@@ -0,0 +1,251 @@
+package com.ake3m.dns.handling.transport;
+
+import com.ake3m.dns.converter.DNSHeaderEntityConverter;
+import com.ake3m.dns.converter.DNSQuestionEntityConverter;
+import com.ake3m.dns.converter.DNSRecordEntityConverter;
+import com.ake3m.dns.handling.Converter;
+import com.ake3m.dns.model.DNSHeader;
+import com.ake3m.dns.model.DNSMessage;
+import com.ake3m.dns.model.DNSQuestion;
+import com.ake3m.dns.model.DNSRecord;
+import com.ake3m.dns.model.QClass;
+import com.ake3m.dns.model.QType;
+import com.ake3m.dns.model.Rcode;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PooledTcpTransportTest {
+    private final Converter converter = new Converter(
+            new DNSHeaderEntityConverter(),
+            new DNSQuestionEntityConverter(),
+            new DNSRecordEntityConverter());
+
+    @Test
+    void pipelinedQueriesShareOneConnectionAndAreAnsweredOutOfOrder() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            server.setSoTimeout(3000);
+            AtomicInteger accepted = new AtomicInteger();
+            Thread serverThread = new Thread(() -> {
+                try (Socket connection = server.accept()) {
+                    accepted.incrementAndGet();
+                    InputStream in = connection.getInputStream();
+                    byte[] first = TcpFraming.readFrame(in);
+                    byte[] second = TcpFraming.readFrame(in);
+                    OutputStream out = connection.getOutputStream();
+                    TcpFraming.writeFrame(out, answer(second, addressFor(second)));
+                    TcpFraming.writeFrame(out, answer(first, addressFor(first)));
+                    Thread.sleep(1000);
+                } catch (Exception ignored) {
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            try (PooledTcpTransport transport = new PooledTcpTransport(address(server), 1, Duration.ofSeconds(5))) {
+                CompletableFuture<byte[]> first = transport.exchange(query(0x0101, "ONE.EXAMPLE"), Duration.ofSeconds(3));
+                CompletableFuture<byte[]> second = transport.exchange(query(0x0202, "TWO.EXAMPLE"), Duration.ofSeconds(3));
+
+                DNSMessage one = converter.toDNSResponse(first.get(3, TimeUnit.SECONDS));
+                DNSMessage two = converter.toDNSResponse(second.get(3, TimeUnit.SECONDS));
+
+                assertEquals(0x0101, one.header().id());
+                assertEquals("1.1.1.1", one.answers()[0].rdata());
+                assertEquals(0x0202, two.header().id());
+                assertEquals("2.2.2.2", two.answers()[0].rdata());
+                assertEquals(1, accepted.get());
+            }
+        }
+    }
+
+    @Test
+    void reconnectsAfterTheUpstreamClosesTheConnection() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            server.setSoTimeout(3000);
+            AtomicInteger accepted = new AtomicInteger();
+            Thread serverThread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 2; i++) {
+                        try (Socket connection = server.accept()) {
+                            accepted.incrementAndGet();
+                            byte[] query = TcpFraming.readFrame(connection.getInputStream());
+                            TcpFraming.writeFrame(connection.getOutputStream(), answer(query, "3.3.3." + i));
+                        }
+                    }
+                } catch (Exception ignored) {
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            try (PooledTcpTransport transport = new PooledTcpTransport(address(server), 1, Duration.ofSeconds(5))) {
+                byte[] first = transport.exchange(query(0x0303, "EXAMPLE.COM"), Duration.ofSeconds(3)).get(3, TimeUnit.SECONDS);
+                Thread.sleep(100);
+                byte[] second = transport.exchange(query(0x0404, "EXAMPLE.COM"), Duration.ofSeconds(3)).get(3, TimeUnit.SECONDS);
+
+                assertEquals("3.3.3.0", converter.toDNSResponse(first).answers()[0].rdata());
+                assertEquals("3.3.3.1", converter.toDNSResponse(second).answers()[0].rdata());
+                assertEquals(2, accepted.get());
+            }
+        }
+    }
+
+    @Test
+    void dropsAnswersToAnotherSpellingOfTheQuestion() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            server.setSoTimeout(3000);
+            Thread serverThread = new Thread(() -> {
+                try (Socket connection = server.accept()) {
+                    byte[] query = TcpFraming.readFrame(connection.getInputStream());
+                    byte[] respelled = Arrays.copyOf(query, query.length);
+                    respelled[13] ^= 0x20;
+                    OutputStream out = connection.getOutputStream();
+                    TcpFraming.writeFrame(out, answer(respelled, "6.6.6.6"));
+                    TcpFraming.writeFrame(out, answer(query, "5.5.5.5"));
+                    Thread.sleep(1000);
+                } catch (Exception ignored) {
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            try (PooledTcpTransport transport = new PooledTcpTransport(address(server), 1, Duration.ofSeconds(5))) {
+                byte[] response = transport.exchange(query(0x0606, "EXAMPLE.COM"), Duration.ofSeconds(3)).get(3, TimeUnit.SECONDS);
+
+                assertEquals("5.5.5.5", converter.toDNSResponse(response).answers()[0].rdata());
+            }
+        }
+    }
+
+    @Test
+    void resendAfterTheConnectionClosesGetsOnlyWhatIsLeftOfTheTimeout() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            server.setSoTimeout(3000);
+            Thread serverThread = new Thread(() -> {
+                try (Socket first = server.accept()) {
+                    TcpFraming.readFrame(first.getInputStream());
+                    Thread.sleep(600);
+                    first.close();
+                    try (Socket second = server.accept()) {
+                        TcpFraming.readFrame(second.getInputStream());
+                        Thread.sleep(3000);
+                    }
+                } catch (Exception ignored) {
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            try (PooledTcpTransport transport = new PooledTcpTransport(address(server), 1, Duration.ofSeconds(5))) {
+                long start = System.nanoTime();
+                CompletableFuture<byte[]> result = transport.exchange(query(0x0505, "EXAMPLE.COM"), Duration.ofSeconds(1));
+
+                ExecutionException failure = assertThrows(ExecutionException.class, () -> result.get(3, TimeUnit.SECONDS));
+                long elapsed = System.nanoTime() - start;
+
+                assertInstanceOf(TimeoutException.class, failure.getCause());
+                assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(1400), "took " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+            }
+        }
+    }
+
+    @Test
+    void exchangeDoesNotWaitForAnUpstreamThatStoppedReading() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            server.setSoTimeout(3000);
+            Thread serverThread = new Thread(() -> {
+                try (Socket connection = server.accept()) {
+                    Thread.sleep(5000);
+                } catch (Exception ignored) {
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            try (PooledTcpTransport transport = new PooledTcpTransport(address(server), 1, Duration.ofSeconds(5))) {
+                transport.exchange(query(0x0707, "EXAMPLE.COM"), Duration.ofMillis(200));
+                for (int i = 0; i < 100 && transport.connections() == 0; i++) {
+                    Thread.sleep(10);
+                }
+
+                byte[] large = new byte[65_000];
+                long start = System.nanoTime();
+                for (int i = 0; i < 400; i++) {
+                    transport.exchange(large, Duration.ofMillis(200));
+                }
+                long elapsed = System.nanoTime() - start;
+
+                assertTrue(elapsed < TimeUnit.SECONDS.toNanos(1), "took " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+            }
+        }
+    }
+
+    @Test
+    void closesConnectionsIdleForTheKeepalive() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            server.setSoTimeout(3000);
+            Thread serverThread = new Thread(() -> {
+                try (Socket connection = server.accept()) {
+                    byte[] query = TcpFraming.readFrame(connection.getInputStream());
+                    TcpFraming.writeFrame(connection.getOutputStream(), answer(query, "4.4.4.4"));
+                    connection.getInputStream().read();
+                } catch (Exception ignored) {
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            try (PooledTcpTransport transport = new PooledTcpTransport(address(server), 2, Duration.ofMillis(200))) {
+                transport.exchange(query(0x0505, "EXAMPLE.COM"), Duration.ofSeconds(3)).get(3, TimeUnit.SECONDS);
+                assertEquals(1, transport.connections());
+
+                for (int i = 0; i < 100 && transport.connections() > 0; i++) {
+                    Thread.sleep(20);
+                }
+                assertEquals(0, transport.connections());
+            }
+        }
+    }
+
+    /**
+     * The two queries may reach the upstream in either order, so each is answered by its name.
+     */
+    private String addressFor(byte[] query) {
+        return converter.toDNSRequest(query).questions()[0].qname().equals("ONE.EXAMPLE") ? "1.1.1.1" : "2.2.2.2";
+    }
+
+    private static InetSocketAddress address(ServerSocket server) {
+        return new InetSocketAddress("127.0.0.1", server.getLocalPort());
+    }
+
+    private byte[] query(int id, String name) {
+        DNSHeader header = new DNSHeader(id, 0, 0, 0, 0, 1, 0, 0, Rcode.NOERROR, 1, 0, 0, 0);
+        DNSQuestion question = new DNSQuestion(name, QType.A, QClass.IN);
+        return converter.toDNSRequest(new DNSMessage(header, new DNSQuestion[]{question}, new DNSRecord[]{}, new DNSRecord[]{}, new DNSRecord[]{}));
+    }
+
+    private byte[] answer(byte[] query, String address) {
+        DNSMessage request = converter.toDNSRequest(query);
+        DNSHeader h = request.header();
+        DNSHeader header = new DNSHeader(h.id(), 1, h.opcode(), 0, 0, h.rd(), 1, 0, Rcode.NOERROR, 1, 1, 0, 0);
+        DNSQuestion question = request.questions()[0];
+        DNSRecord a = new DNSRecord(question.qname(), QType.A, QClass.IN, 60, 4, address);
+        return converter.toDNSResponse(new DNSMessage(header, new DNSQuestion[]{question}, new DNSRecord[]{a}, new DNSRecord[]{}, new DNSRecord[]{}));
+    }
+}
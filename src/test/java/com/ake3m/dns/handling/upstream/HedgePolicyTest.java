@@ -0,0 +1,93 @@
+package com.ake3m.dns.handling.upstream;
+
+import com.ake3m.dns.handling.transport.Transport;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HedgePolicyTest {
+
+    @Test
+    void histogramPercentileIsTheUpperBoundOfItsBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(Duration.ZERO, histogram.percentile(0.95));
+
+        for (int i = 0; i < 95; i++) {
+            histogram.record(Duration.ofMillis(10));
+        }
+        for (int i = 0; i < 5; i++) {
+            histogram.record(Duration.ofMillis(200));
+        }
+
+        assertEquals(100, histogram.count());
+        Duration p50 = histogram.percentile(0.5);
+        assertTrue(p50.compareTo(Duration.ofMillis(10)) > 0 && p50.compareTo(Duration.ofMillis(12)) <= 0, p50.toString());
+        Duration p99 = histogram.percentile(0.99);
+        assertTrue(p99.compareTo(Duration.ofMillis(200)) > 0 && p99.compareTo(Duration.ofMillis(240)) <= 0, p99.toString());
+    }
+
+    @Test
+    void histogramDecaysOldSamples() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 0; i < LatencyHistogram.DECAY_THRESHOLD; i++) {
+            histogram.record(Duration.ofMillis(1));
+        }
+
+        assertEquals(LatencyHistogram.DECAY_THRESHOLD / 2, histogram.count());
+    }
+
+    @Test
+    void delayFollowsPrimaryPercentileOnceSampled() {
+        HedgePolicy policy = new HedgePolicy(0.95, Duration.ofMillis(5), 0.05);
+        Upstream upstream = new Upstream(new InetSocketAddress("127.0.0.1", 5301), new NoopTransport());
+
+        assertEquals(HedgePolicy.DEFAULT_DELAY, policy.delay(upstream));
+
+        for (int i = 0; i < HedgePolicy.MIN_SAMPLES; i++) {
+            upstream.recordSuccess(Duration.ofMillis(1));
+        }
+        assertEquals(Duration.ofMillis(5), policy.delay(upstream));
+
+        for (int i = 0; i < HedgePolicy.MIN_SAMPLES * 2; i++) {
+            upstream.recordSuccess(Duration.ofMillis(40));
+        }
+        Duration delay = policy.delay(upstream);
+        assertTrue(delay.compareTo(Duration.ofMillis(40)) > 0 && delay.compareTo(Duration.ofMillis(48)) <= 0, delay.toString());
+    }
+
+    @Test
+    void budgetAllowsOnlyItsShareOfQueriesAfterTheBurst() {
+        HedgePolicy policy = new HedgePolicy(0.95, Duration.ZERO, 0.1);
+        while (policy.tryAcquire()) {
+            // drain the initial burst
+        }
+
+        int hedges = 0;
+        for (int i = 0; i < 100; i++) {
+            policy.earn();
+            if (policy.tryAcquire()) {
+                hedges++;
+            }
+        }
+
+        assertEquals(10, hedges);
+        assertFalse(policy.tryAcquire());
+    }
+
+    private static final class NoopTransport implements Transport {
+        @Override
+        public CompletableFuture<byte[]> exchange(byte[] query, Duration timeout) {
+            return new CompletableFuture<>();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.ake3m.dns.handling.upstream;
+
+import com.ake3m.dns.handling.transport.Transport;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpstreamSelectorTest {
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    void estimatorFollowsRfc6298() {
+        RttEstimator rtt = new RttEstimator();
+
+        rtt.record(Duration.ofMillis(100));
+        assertEquals(Duration.ofMillis(100), rtt.srtt());
+        assertEquals(Duration.ofMillis(50), rtt.rttvar());
+
+        rtt.record(Duration.ofMillis(20));
+        assertEquals(Duration.ofMillis(90), rtt.srtt());
+        assertEquals(Duration.ofMillis(57).plusNanos(500_000), rtt.rttvar());
+    }
+
+    @Test
+    void rtoIsSrttPlusFourRttvarWithinClamps() {
+        RttEstimator rtt = new RttEstimator();
+        assertEquals(RttEstimator.INITIAL_RTO, rtt.rto());
+
+        rtt.record(Duration.ofMillis(100));
+        assertEquals(Duration.ofMillis(300), rtt.rto());
+
+        RttEstimator fast = new RttEstimator();
+        fast.record(Duration.ofMillis(1));
+        assertEquals(RttEstimator.MIN_RTO, fast.rto());
+
+        RttEstimator slow = new RttEstimator();
+        slow.record(Duration.ofSeconds(3));
+        assertEquals(RttEstimator.MAX_RTO, slow.rto());
+    }
+
+    @Test
+    void selectsFastestUpstream() {
+        Upstream slow = upstream(5301);
+        Upstream fast = upstream(5302);
+        slow.recordSuccess(Duration.ofMillis(80));
+        fast.recordSuccess(Duration.ofMillis(10));
+
+        UpstreamSelector selector = new UpstreamSelector(List.of(slow, fast), 0);
+
+        assertSame(fast, selector.select());
+        assertSame(slow, selector.select(fast));
+    }
+
+    @Test
+    void triesUnsampledUpstreamsFirst() {
+        Upstream sampled = upstream(5301);
+        Upstream fresh = upstream(5302);
+        sampled.recordSuccess(Duration.ofMillis(1));
+
+        UpstreamSelector selector = new UpstreamSelector(List.of(sampled, fresh), 0);
+
+        assertSame(fresh, selector.select());
+    }
+
+    @Test
+    void failedUnsampledUpstreamDoesNotOutrankSampledOnes() {
+        Upstream sampled = upstream(5301);
+        Upstream failed = upstream(5302);
+        sampled.recordSuccess(Duration.ofMillis(50));
+        failed.recordFailure();
+
+        UpstreamSelector selector = new UpstreamSelector(List.of(sampled, failed), 0);
+
+        assertSame(sampled, selector.select());
+    }
+
+    @Test
+    void probesUnhealthyUpstreamOnceAfterBackoff() {
+        Upstream failing = upstream(5301);
+        Upstream other = upstream(5302);
+        failing.recordSuccess(Duration.ofMillis(1));
+        other.recordSuccess(Duration.ofMillis(50));
+        for (int i = 0; i < Upstream.FAILURE_THRESHOLD; i++) {
+            failing.recordFailure();
+        }
+
+        UpstreamSelector selector = new UpstreamSelector(List.of(failing, other), 0);
+
+        assertFalse(failing.healthy());
+        assertSame(other, selector.select());
+
+        now.addAndGet(Upstream.BACKOFF.toNanos());
+        assertSame(failing, selector.select());
+        assertSame(other, selector.select());
+        assertFalse(failing.healthy());
+
+        failing.recordFailure();
+        now.addAndGet(Upstream.BACKOFF.toNanos());
+        assertSame(failing, selector.select());
+        assertSame(other, selector.select());
+
+        failing.recordSuccess(Duration.ofMillis(1));
+        assertTrue(failing.healthy());
+        assertSame(failing, selector.select());
+    }
+
+    private Upstream upstream(int port) {
+        return new Upstream(new InetSocketAddress("127.0.0.1", port), new NoopTransport(), now::get);
+    }
+
+    private static final class NoopTransport implements Transport {
+        @Override
+        public CompletableFuture<byte[]> exchange(byte[] query, Duration timeout) {
+            return new CompletableFuture<>();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.ake3m.dns.policy;
+
+import com.ake3m.dns.model.Name;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DomainTrieTest {
+
+    @Test
+    void matchesDomainsAndTheirSubdomainsIgnoringCase() {
+        DomainTrie trie = DomainTrie.of(List.of("ads.example.com", "tracker.net", "a.b.c.org"));
+
+        assertTrue(trie.matches(Name.of("ads.example.com")));
+        assertTrue(trie.matches(Name.of("x.y.ADS.Example.COM")));
+        assertTrue(trie.matches(Name.of("tracker.net.")));
+        assertTrue(trie.matches(Name.of("a.b.c.org")));
+
+        assertFalse(trie.matches(Name.of("example.com")));
+        assertFalse(trie.matches(Name.of("notads.example.com")));
+        assertFalse(trie.matches(Name.of("b.c.org")));
+        assertFalse(trie.matches(Name.of("net")));
+        assertFalse(trie.matches(Name.of("")));
+    }
+
+    @Test
+    void keepsOnlyTheShortestOfNestedDomains() {
+        DomainTrie trie = DomainTrie.of(List.of("sub.example.com", "example.com", "EXAMPLE.com", "deep.sub.example.com", "other.com"));
+
+        assertEquals(2, trie.size());
+        assertTrue(trie.matches(Name.of("sub.example.com")));
+        assertTrue(trie.matches(Name.of("www.other.com")));
+        assertFalse(trie.matches(Name.of("com")));
+    }
+
+    @Test
+    void readsHostsAndPlainListLines() {
+        List<String> domains = new ArrayList<>();
+        DomainTrie.parseLine("# a comment", domains);
+        DomainTrie.parseLine("0.0.0.0 ads.example.com tracker.example.com # inline", domains);
+        DomainTrie.parseLine("127.0.0.1 localhost", domains);
+        DomainTrie.parseLine(":: ipv6.example.com", domains);
+        DomainTrie.parseLine("  plain.example.org.  ", domains);
+        DomainTrie.parseLine("*.wild.example.net", domains);
+        DomainTrie.parseLine("", domains);
+
+        assertEquals(List.of("ads.example.com", "tracker.example.com", "ipv6.example.com", "plain.example.org.", "wild.example.net"), domains);
+    }
+
+    @Test
+    void doesNotMatchTruncatedOrCompressedNames() {
+        DomainTrie trie = DomainTrie.of(List.of("example.com"));
+
+        assertFalse(trie.matches(new byte[]{7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o'}, 0));
+        assertFalse(trie.matches(new byte[]{(byte) 0xC0, 12}, 0));
+        assertTrue(trie.matches(new byte[]{0, 0, 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0}, 2));
+    }
+
+    @Test
+    void indexMatchesLikeTheTrieItWasWrittenFrom() throws Exception {
+        Path dir = Files.createTempDirectory("domain-trie");
+        Path list = dir.resolve("blocklist.txt");
+        Files.writeString(list, "0.0.0.0 ads.example.com\ntracker.net\n# comment\n");
+        Path index = dir.resolve("blocklist.idx");
+        DomainTrie.load(list).write(index);
+
+        DomainTrie read = DomainTrie.open(index);
+
+        assertTrue(DomainTrie.isIndex(index));
+        assertFalse(DomainTrie.isIndex(list));
+        assertEquals(2, read.size());
+        assertTrue(read.matches(Name.of("www.ADS.example.com")));
+        assertTrue(read.matches(Name.of("tracker.net")));
+        assertFalse(read.matches(Name.of("example.com")));
+    }
+
+    @Test
+    void rewritingAnIndexLeavesTriesReadFromItIntact() throws Exception {
+        Path dir = Files.createTempDirectory("domain-trie");
+        Path index = dir.resolve("blocklist.idx");
+        DomainTrie.of(List.of("old.example.com")).write(index);
+        DomainTrie before = DomainTrie.read(index);
+
+        DomainTrie.of(List.of("new.example.com", "other.example.org")).write(index);
+        DomainTrie after = DomainTrie.read(index);
+
+        assertTrue(before.matches(Name.of("old.example.com")));
+        assertFalse(before.matches(Name.of("new.example.com")));
+        assertTrue(after.matches(Name.of("new.example.com")));
+        assertFalse(after.matches(Name.of("old.example.com")));
+    }
+
+    @Test
+    void overwritingAnIndexInPlaceLeavesTriesReadFromItIntact() throws Exception {
+        Path dir = Files.createTempDirectory("domain-trie");
+        Path index = dir.resolve("blocklist.idx");
+        DomainTrie.of(List.of("old.example.com")).write(index);
+        DomainTrie before = DomainTrie.read(index);
+
+        Files.write(index, new byte[0]);
+
+        assertTrue(before.matches(Name.of("old.example.com")));
+        assertThrows(IOException.class, () -> DomainTrie.read(index));
+    }
+
+    @Test
+    void rejectsFilesThatAreNotAnIndex() throws Exception {
+        Path dir = Files.createTempDirectory("domain-trie");
+        Path list = dir.resolve("blocklist.txt");
+        Files.writeString(list, "ads.example.com\n");
+
+        assertThrows(IOException.class, () -> DomainTrie.read(list));
+    }
+}
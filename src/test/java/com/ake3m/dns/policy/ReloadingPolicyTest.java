@@ -0,0 +1,71 @@
+package com.ake3m.dns.policy;
+
+import com.ake3m.dns.model.Name;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReloadingPolicyTest {
+
+    @Test
+    void swapsInTheNewPolicyWhenTheFileIsReplaced() throws Exception {
+        Path dir = Files.createTempDirectory("reloading-policy");
+        Path list = dir.resolve("blocklist.txt");
+        Files.writeString(list, "old.example.com\n");
+
+        try (ReloadingPolicy<DomainTrie> policy = ReloadingPolicy.watch(list, DomainTrie::open, DomainTrie::size)) {
+            assertTrue(policy.get().matches(Name.of("old.example.com")));
+
+            Path next = dir.resolve("next.txt");
+            Files.writeString(next, "new.example.com\nother.example.org\n");
+            Files.move(next, list, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            for (int i = 0; i < 100 && policy.stats().reloads() == 0; i++) {
+                Thread.sleep(50);
+            }
+
+            assertTrue(policy.get().matches(Name.of("new.example.com")));
+            assertFalse(policy.get().matches(Name.of("old.example.com")));
+            assertEquals(2, policy.stats().size());
+        }
+    }
+
+    @Test
+    void keepsTheCurrentPolicyWhenReloadingFails() throws Exception {
+        Path dir = Files.createTempDirectory("reloading-policy");
+        Path file = dir.resolve("policy.txt");
+        Files.writeString(file, "one\n");
+
+        ReloadingPolicy.Loader<List<String>> loader = path -> {
+            List<String> lines = Files.readAllLines(path);
+            if (lines.contains("broken")) {
+                throw new IOException("unparseable policy");
+            }
+            return lines;
+        };
+        try (ReloadingPolicy<List<String>> policy = ReloadingPolicy.watch(file, loader, List::size)) {
+            List<String> before = policy.get();
+            Files.writeString(file, "broken\n");
+
+            assertFalse(policy.reload());
+            assertSame(before, policy.get());
+            // the watcher may retry the broken file on its own as well
+            assertTrue(policy.stats().failures() >= 1);
+
+            Files.writeString(file, "one\ntwo\n");
+
+            assertTrue(policy.reload());
+            assertEquals(List.of("one", "two"), policy.get());
+            assertEquals(2, policy.stats().size());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.ake3m.dns.policy;
+
+import com.ake3m.dns.model.Name;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class SuffixTableTest {
+
+    @Test
+    void findsTheLongestMatchingSuffix() {
+        SuffixTable<String> table = SuffixTable.of(Map.of(
+                "corp.internal", "corp",
+                "dev.corp.internal", "dev",
+                "example.com", "example"));
+
+        assertEquals("corp", table.lookup(Name.of("corp.internal")));
+        assertEquals("corp", table.lookup(Name.of("host.CORP.internal")));
+        assertEquals("dev", table.lookup(Name.of("build.dev.corp.internal")));
+        assertEquals("corp", table.lookup(Name.of("build.prod.corp.internal")));
+        assertEquals("example", table.lookup(Name.of("www.example.com.")));
+
+        assertNull(table.lookup(Name.of("internal")));
+        assertNull(table.lookup(Name.of("notcorp.internal")));
+        assertNull(table.lookup(Name.of("example.org")));
+        assertEquals(3, table.size());
+    }
+
+    @Test
+    void rootSuffixMatchesEverythingElse() {
+        SuffixTable<String> table = SuffixTable.of(Map.of(".", "default", "corp.internal", "corp"));
+
+        assertEquals("corp", table.lookup(Name.of("a.corp.internal")));
+        assertEquals("default", table.lookup(Name.of("example.com")));
+        assertEquals("default", table.lookup(Name.of("")));
+        assertEquals("default", table.lookup(new byte[]{(byte) 0xC0, 12}, 0));
+    }
+}